@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import bo.htakey.rimic.net.CryptState;
+
+/**
+ * Benchmarks OCB-AES128 encryption and decryption of voice-sized packets.
+ *
+ * A decrypt always needs a packet with a fresh IV, otherwise it is rejected as a replay. The
+ * decrypt benchmarks therefore encrypt each packet as part of the measured operation; subtract
+ * the encrypt score of the same payload size to get the cost of decryption alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptStateBenchmark {
+    @Param({"20", "60", "120", "250", "400"})
+    public int payloadSize;
+
+    private CryptState mSender;
+    private CryptState mReceiver;
+    private byte[] mPlain;
+    private byte[] mEncrypted;
+    private byte[] mLate;
+    private byte[] mDecrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(0);
+        byte[] key = new byte[CryptState.AES_BLOCK_SIZE];
+        byte[] clientNonce = new byte[CryptState.AES_BLOCK_SIZE];
+        byte[] serverNonce = new byte[CryptState.AES_BLOCK_SIZE];
+        random.nextBytes(key);
+        random.nextBytes(clientNonce);
+        random.nextBytes(serverNonce);
+
+        mSender = new CryptState();
+        mSender.setKeys(key, clientNonce, serverNonce);
+        mReceiver = new CryptState();
+        mReceiver.setKeys(key, serverNonce, clientNonce);
+
+        mPlain = new byte[payloadSize];
+        random.nextBytes(mPlain);
+        mEncrypted = new byte[payloadSize + 4];
+        mLate = new byte[payloadSize + 4];
+        mDecrypted = new byte[payloadSize];
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        mSender.encrypt(mPlain, 0, payloadSize, mEncrypted, 0);
+        return mEncrypted;
+    }
+
+    /**
+     * Packets arriving in order, the common case.
+     */
+    @Benchmark
+    public boolean decryptInOrder() throws Exception {
+        mSender.encrypt(mPlain, 0, payloadSize, mEncrypted, 0);
+        return mReceiver.decrypt(mEncrypted, 0, payloadSize + 4, mDecrypted, 0);
+    }
+
+    /**
+     * Every pair of packets arrives swapped, so half of the packets take the late path.
+     */
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public boolean decryptLate() throws Exception {
+        mSender.encrypt(mPlain, 0, payloadSize, mLate, 0);
+        mSender.encrypt(mPlain, 0, payloadSize, mEncrypted, 0);
+        return mReceiver.decrypt(mEncrypted, 0, payloadSize + 4, mDecrypted, 0) &
+                mReceiver.decrypt(mLate, 0, payloadSize + 4, mDecrypted, 0);
+    }
+
+    /**
+     * Every other packet is lost. The lost packet is empty, which only advances the sender's IV.
+     */
+    @Benchmark
+    public boolean decryptLost() throws Exception {
+        mSender.encrypt(mPlain, 0, 0, mLate, 0);
+        mSender.encrypt(mPlain, 0, payloadSize, mEncrypted, 0);
+        return mReceiver.decrypt(mEncrypted, 0, payloadSize + 4, mDecrypted, 0);
+    }
+}
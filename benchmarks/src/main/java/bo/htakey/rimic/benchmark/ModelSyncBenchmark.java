@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import bo.htakey.rimic.model.Channel;
+import bo.htakey.rimic.model.ChannelSnapshot;
+import bo.htakey.rimic.model.ModelSnapshot;
+import bo.htakey.rimic.model.User;
+import bo.htakey.rimic.model.UserSnapshot;
+
+/**
+ * Measures building the channel tree of a large server, in the order ModelHandler receives it
+ * during synchronization, and reading the subtree user counts the channel list displays.
+ * Also compares publishing a model snapshot after every message of the synchronization against
+ * building it once at the end, as ModelHandler does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ModelSyncBenchmark {
+    @Param({"1000"})
+    public int channels;
+
+    @Param({"5000"})
+    public int users;
+
+    private String[] mChannelNames;
+    private int[] mChannelPositions;
+    private int[] mChannelParents;
+    private String[] mUserNames;
+    private int[] mUserChannels;
+    private Channel[] mSyncedChannels;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        mChannelNames = new String[channels];
+        mChannelPositions = new int[channels];
+        mChannelParents = new int[channels];
+        for (int i = 0; i < channels; i++) {
+            mChannelNames[i] = randomName(random);
+            // Most servers leave positions at 0, so that channels sort by name.
+            mChannelPositions[i] = random.nextInt(4) == 0 ? random.nextInt(10) : 0;
+            // Parents always precede their children, giving a tree a few levels deep.
+            mChannelParents[i] = i == 0 ? -1 : random.nextInt(Math.max(1, i / 4));
+        }
+        mUserNames = new String[users];
+        mUserChannels = new int[users];
+        for (int i = 0; i < users; i++) {
+            mUserNames[i] = randomName(random);
+            mUserChannels[i] = random.nextInt(channels);
+        }
+        mSyncedChannels = sync();
+    }
+
+    /**
+     * Builds the tree from ChannelState and UserState messages, as during synchronization.
+     */
+    @Benchmark
+    public Channel[] sync() {
+        Channel[] tree = new Channel[channels];
+        for (int i = 0; i < channels; i++) {
+            Channel channel = new Channel(i, false);
+            channel.setName(mChannelNames[i]);
+            channel.setPosition(mChannelPositions[i]);
+            if (i > 0) {
+                Channel parent = tree[mChannelParents[i]];
+                channel.setParent(parent);
+                parent.addSubchannel(channel);
+            }
+            tree[i] = channel;
+        }
+        for (int i = 0; i < users; i++) {
+            // Users join the root channel first, then move to their own.
+            User user = new User(i + 1, mUserNames[i]);
+            user.setChannel(tree[0]);
+            user.setChannel(tree[mUserChannels[i]]);
+        }
+        return tree;
+    }
+
+    /**
+     * Synchronizes while publishing a snapshot after every message, as after synchronization.
+     */
+    @Benchmark
+    public ModelSnapshot syncPublishingEachMessage() {
+        ModelSnapshot snapshot = ModelSnapshot.EMPTY;
+        Channel[] tree = new Channel[channels];
+        for (int i = 0; i < channels; i++) {
+            Channel channel = new Channel(i, false);
+            channel.setName(mChannelNames[i]);
+            channel.setPosition(mChannelPositions[i]);
+            if (i > 0) {
+                Channel parent = tree[mChannelParents[i]];
+                channel.setParent(parent);
+                parent.addSubchannel(channel);
+            }
+            tree[i] = channel;
+            snapshot = putChannelPath(snapshot.toBuilder(), channel).build();
+        }
+        for (int i = 0; i < users; i++) {
+            // A new user's state arrives in one message.
+            User user = new User(i + 1, mUserNames[i]);
+            user.setChannel(tree[0]);
+            user.setChannel(tree[mUserChannels[i]]);
+            snapshot = putChannelPath(snapshot.toBuilder().putUser(new UserSnapshot(user)),
+                    tree[mUserChannels[i]]).build();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Synchronizes silently, then builds the snapshot of the whole model once.
+     */
+    @Benchmark
+    public ModelSnapshot syncPublishingOnce() {
+        Channel[] tree = sync();
+        ModelSnapshot.Builder builder = ModelSnapshot.EMPTY.toBuilder();
+        for (Channel channel : tree) {
+            builder.putChannel(new ChannelSnapshot(channel));
+            for (User user : channel.getUsers()) {
+                builder.putUser(new UserSnapshot(user));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads the user count of every channel, as the channel list does on each refresh.
+     */
+    @Benchmark
+    public int countUsers() {
+        int total = 0;
+        for (Channel channel : mSyncedChannels) {
+            total += channel.getSubchannelUserCount();
+        }
+        return total;
+    }
+
+    /**
+     * Copies a channel and its parent, and updates the user counts above them, as ModelHandler does.
+     */
+    private static ModelSnapshot.Builder putChannelPath(ModelSnapshot.Builder builder,
+                                                        Channel channel) {
+        for (int depth = 0; channel != null; channel = channel.getParent(), depth++) {
+            final ChannelSnapshot previous = builder.getChannel(channel.getId());
+            if (depth < 2 || previous == null) {
+                builder.putChannel(new ChannelSnapshot(channel, previous));
+                continue;
+            }
+            final ChannelSnapshot updated = previous.withSubchannelUserCount(channel.getSubchannelUserCount());
+            if (updated == previous) break;
+            builder.putChannel(updated);
+        }
+        return builder;
+    }
+
+    private static String randomName(Random random) {
+        char[] name = new char[6 + random.nextInt(10)];
+        for (int i = 0; i < name.length; i++) {
+            char c = (char) ('a' + random.nextInt(26));
+            name[i] = random.nextBoolean() ? Character.toUpperCase(c) : c;
+        }
+        return new String(name);
+    }
+}
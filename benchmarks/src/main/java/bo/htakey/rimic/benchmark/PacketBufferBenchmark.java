@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import bo.htakey.rimic.net.PacketBuffer;
+
+/**
+ * Benchmarks the Mumble variable-length integer encoding in {@link PacketBuffer}.
+ * Each parameter selects values that encode to the same number of bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBufferBenchmark {
+    private static final int VALUES = 256;
+
+    /** Number of bits of the encoded values, or "negative" for small negative values. */
+    @Param({"7", "14", "21", "28", "32", "negative"})
+    public String bits;
+
+    private final long[] mValues = new long[VALUES];
+    private PacketBuffer mWriteBuffer;
+    private PacketBuffer mReadBuffer;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        for (int i = 0; i < VALUES; i++) {
+            if ("negative".equals(bits)) {
+                mValues[i] = -1 - random.nextInt(0x1000);
+            } else {
+                int width = Integer.parseInt(bits);
+                // Set the top bit so that every value needs the full width.
+                long top = 1L << (width - 1);
+                mValues[i] = top | (random.nextLong() & (top - 1));
+            }
+        }
+
+        mWriteBuffer = new PacketBuffer(ByteBuffer.allocate(VALUES * 9));
+        mReadBuffer = new PacketBuffer(ByteBuffer.allocate(VALUES * 9));
+        for (long value : mValues) {
+            mReadBuffer.writeLong(value);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public int writeLong() {
+        PacketBuffer buffer = mWriteBuffer;
+        buffer.rewind();
+        for (long value : mValues) {
+            buffer.writeLong(value);
+        }
+        return buffer.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public long readLong() {
+        PacketBuffer buffer = mReadBuffer;
+        buffer.rewind();
+        long sum = 0;
+        for (int i = 0; i < VALUES; i++) {
+            sum += buffer.readLong();
+        }
+        return sum;
+    }
+}
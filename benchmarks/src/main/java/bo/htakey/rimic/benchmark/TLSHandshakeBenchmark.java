@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import bo.htakey.rimic.net.RimicCertificateGenerator;
+import bo.htakey.rimic.net.RimicSSLSocketFactory;
+
+/**
+ * Measures the TLS handshake of {@link RimicSSLSocketFactory} against a local server, with and
+ * without session resumption.
+ *
+ * Both sides authenticate with a generated RSA certificate, as Mumble clients do. The full
+ * handshake creates a new factory per connection, as RimicConnection used to on every reconnect.
+ * The resumed handshake shares one factory, so its session cache is reused.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TLSHandshakeBenchmark {
+    private KeyManagerFactory mClientKeys;
+    private RimicSSLSocketFactory mSharedFactory;
+    private SSLServerSocket mServerSocket;
+    private Thread mServerThread;
+
+    @Setup
+    public void setUp() throws Exception {
+        mClientKeys = createKeyManagerFactory();
+
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(createKeyManagerFactory().getKeyManagers(),
+                new TrustManager[] { new TrustAllManager() }, null);
+        mServerSocket = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mServerSocket.setWantClientAuth(true);
+        mServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "TLSHandshakeBenchmark server");
+        mServerThread.start();
+
+        mSharedFactory = createSocketFactory();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        mServerThread.join();
+    }
+
+    @Benchmark
+    public SSLSocket fullHandshake() throws Exception {
+        return handshake(createSocketFactory());
+    }
+
+    @Benchmark
+    public SSLSocket resumedHandshake() throws Exception {
+        return handshake(mSharedFactory);
+    }
+
+    private SSLSocket handshake(RimicSSLSocketFactory factory) throws IOException {
+        final int port = mServerSocket.getLocalPort();
+        Socket plain = new Socket(InetAddress.getLoopbackAddress(), port);
+        final SSLSocket socket;
+        try {
+            socket = factory.createSocket(plain, "localhost", port);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        try {
+            socket.startHandshake();
+            // Wait for the server's reply, so that TLS 1.3 session tickets have arrived.
+            socket.getOutputStream().write(0);
+            socket.getInputStream().read();
+        } finally {
+            socket.close();
+        }
+        return socket;
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                SSLSocket socket = (SSLSocket) mServerSocket.accept();
+                try {
+                    socket.getInputStream().read();
+                    socket.getOutputStream().write(0);
+                } finally {
+                    socket.close();
+                }
+            } catch (SocketException e) {
+                // Closed by tearDown.
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private RimicSSLSocketFactory createSocketFactory() throws Exception {
+        return new RimicSSLSocketFactory(mClientKeys.getKeyManagers(), new TrustAllManager());
+    }
+
+    private static KeyManagerFactory createKeyManagerFactory() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        RimicCertificateGenerator.generateCertificate(output);
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12", new BouncyCastleProvider());
+        keyStore.load(new ByteArrayInputStream(output.toByteArray()), new char[0]);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, new char[0]);
+        return kmf;
+    }
+
+    /**
+     * Accepts the generated self-signed certificates.
+     */
+    private static class TrustAllManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
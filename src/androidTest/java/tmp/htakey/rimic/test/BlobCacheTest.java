@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import bo.htakey.rimic.util.BlobCache;
+
+/**
+ * Tests the memory and disk tiers of {@link BlobCache}.
+ */
+public class BlobCacheTest extends TestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("blobs", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testPutAsync() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        BlobCache cache = new BlobCache(mDirectory, 1024 * 1024, 1024 * 1024, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        ByteString blob = randomBlob(1000, 0);
+        cache.putAsync(blob);
+        assertFalse("Nothing is hashed or written on the caller", cache.contains(BlobCache.sha1(blob)));
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(blob, toByteString(cache.get(BlobCache.sha1(blob))));
+    }
+
+    public void testKeyedByContentHash() {
+        BlobCache cache = new BlobCache(null, 1024 * 1024, 0);
+        ByteString blob = randomBlob(1000, 0);
+        ByteString hash = cache.put(blob);
+        assertEquals(BlobCache.sha1(blob), hash);
+        assertEquals(BlobCache.HASH_LENGTH, hash.size());
+        assertEquals(blob, toByteString(cache.get(hash)));
+        assertTrue(cache.get(hash).isReadOnly());
+        assertNull(cache.get(BlobCache.sha1(randomBlob(1000, 1))));
+        assertNull("Blobs the server sends in full are not cached",
+                cache.put(randomBlob(BlobCache.MIN_BLOB_SIZE - 1, 2)));
+    }
+
+    public void testMemoryIsBoundedBySize() {
+        BlobCache cache = new BlobCache(null, 3000, 0);
+        ByteString first = cache.put(randomBlob(1000, 0));
+        ByteString second = cache.put(randomBlob(1000, 1));
+        cache.get(first);
+        ByteString third = cache.put(randomBlob(1000, 2));
+        ByteString fourth = cache.put(randomBlob(1000, 3));
+        assertNotNull("Recently used blobs are kept", cache.get(first));
+        assertNull("The least recently used blob is evicted", cache.get(second));
+        assertNotNull(cache.get(third));
+        assertNotNull(cache.get(fourth));
+    }
+
+    public void testSharedThroughDisk() throws IOException {
+        ByteString blob = randomBlob(5000, 0);
+        ByteString hash = new BlobCache(mDirectory, 1024, 1024 * 1024).put(blob);
+
+        // A new cache, such as in a later session, finds the blob on disk.
+        BlobCache cache = new BlobCache(mDirectory, 1024 * 1024, 1024 * 1024);
+        assertTrue(cache.contains(hash));
+        assertEquals(blob, toByteString(cache.get(hash)));
+
+        // Corrupt files are discarded rather than returned.
+        for (File file : mDirectory.listFiles()) {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(randomBlob(5000, 1).toByteArray());
+            out.close();
+        }
+        assertNull(new BlobCache(mDirectory, 0, 1024 * 1024).get(hash));
+        assertFalse(new BlobCache(mDirectory, 0, 1024 * 1024).contains(hash));
+    }
+
+    public void testDiskIsTrimmed() {
+        BlobCache cache = new BlobCache(mDirectory, 0, 10000);
+        for (int i = 0; i < 20; i++) {
+            cache.put(randomBlob(1000, i));
+        }
+        long size = 0;
+        for (File file : mDirectory.listFiles()) size += file.length();
+        assertTrue("Disk size " + size + " is bounded", size <= 10000);
+    }
+
+    private static ByteString randomBlob(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return ByteString.copyFrom(data);
+    }
+
+    private static ByteString toByteString(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return ByteString.copyFrom(data);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bo.htakey.rimic.util.ConcurrentIntMap;
+
+/**
+ * Tests {@link ConcurrentIntMap} against a HashMap, and lookups during concurrent writes.
+ */
+public class ConcurrentIntMapTest extends TestCase {
+
+    public void testMatchesHashMap() {
+        ConcurrentIntMap<String> map = new ConcurrentIntMap<String>();
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // A small key range forces repeated removal and reuse of entries.
+            int key = random.nextInt(512) - 64;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = Integer.toString(i);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int key = -64; key < 448; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.values().size());
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(0));
+    }
+
+    public void testLookupsDuringWrites() throws Exception {
+        final ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>();
+        // Stable keys are never removed, so a lookup must always find them.
+        for (int key = 0; key < 100; key++) {
+            map.put(key, key);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(0);
+                for (int i = 0; i < 200000; i++) {
+                    int key = 100 + random.nextInt(5000);
+                    if (random.nextBoolean()) {
+                        map.put(key, key);
+                    } else {
+                        map.remove(key);
+                    }
+                }
+                done.set(true);
+            }
+        });
+        writer.start();
+        int lookups = 0;
+        while (!done.get()) {
+            int key = lookups++ % 100;
+            assertEquals(Integer.valueOf(key), map.get(key));
+        }
+        writer.join();
+    }
+
+    public void testLookupsDuringChurn() throws Exception {
+        final ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger wrong = new AtomicInteger();
+        // Readers race a writer that removes and re-inserts a few keys, so removed entries are
+        // constantly reused by other keys.
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int lookups = 0;
+                    while (!done.get()) {
+                        int key = lookups++ % 24;
+                        Integer value = map.get(key);
+                        if (value != null && value != key) wrong.incrementAndGet();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        Random random = new Random(0);
+        long end = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 10000; i++) {
+                int key = random.nextInt(24);
+                if (random.nextBoolean()) {
+                    map.put(key, key);
+                } else {
+                    map.remove(key);
+                }
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+        assertEquals("Lookups returning the value of another key", 0, wrong.get());
+    }
+}
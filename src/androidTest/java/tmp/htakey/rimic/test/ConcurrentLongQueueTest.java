@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import bo.htakey.rimic.util.ConcurrentLongQueue;
+
+/**
+ * Tests ordering and capacity of {@link ConcurrentLongQueue}, and offers from several threads.
+ */
+public class ConcurrentLongQueueTest extends TestCase {
+
+    public void testOrderAndCapacity() {
+        ConcurrentLongQueue queue = new ConcurrentLongQueue(5);
+        assertEquals(8, queue.capacity());
+        long[] values = new long[16];
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 8; i++) assertTrue(queue.offer(lap * 8 + i));
+            assertFalse("A full queue refuses values", queue.offer(-1));
+            assertEquals(3, queue.drainTo(new long[3]));
+            assertEquals(5, queue.drainTo(values));
+            for (int i = 0; i < 5; i++) assertEquals(lap * 8 + 3 + i, values[i]);
+            assertEquals(0, queue.drainTo(values));
+        }
+    }
+
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final ConcurrentLongQueue queue = new ConcurrentLongQueue(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer(((long) producer << 32) | i)) Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        long[] values = new long[16];
+        int received = 0;
+        while (received < producers * perProducer) {
+            int count = queue.drainTo(values);
+            for (int i = 0; i < count; i++) {
+                int producer = (int) (values[i] >>> 32);
+                assertEquals("Values from one producer stay in order",
+                        next[producer]++, (int) values[i]);
+            }
+            received += count;
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, queue.drainTo(values));
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2015 Andrew Comminos <andrew@comminos.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import bo.htakey.rimic.net.CryptState;
+
+/**
+ * Tests the OCB-AES128 implementation in {@link CryptState} against the OCB test vectors used by
+ * Mumble, and checks that its output is identical to the original array-allocating implementation.
+ */
+public class CryptStateTest extends TestCase {
+    private static final int AES_BLOCK_SIZE = CryptState.AES_BLOCK_SIZE;
+    // Larger than a datagram, so that growing the bulk block buffers is covered too.
+    private static final int MAX_PACKET_LENGTH = 2048;
+
+    private byte[] mKey;
+    private byte[] mClientNonce;
+    private byte[] mServerNonce;
+    private Random mRandom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRandom = new Random(0x52696d6963L);
+        mKey = randomBytes(AES_BLOCK_SIZE);
+        mClientNonce = randomBytes(AES_BLOCK_SIZE);
+        mServerNonce = randomBytes(AES_BLOCK_SIZE);
+    }
+
+    /**
+     * Test vectors from draft-krovetz-ocb-00, as used by Mumble's TestCrypt.
+     */
+    public void testVectors() throws Exception {
+        final byte[] rawkey = new byte[AES_BLOCK_SIZE];
+        for (int i = 0; i < AES_BLOCK_SIZE; i++)
+            rawkey[i] = (byte) i;
+        // The nonce is the raw key. The IV is incremented before each packet, so start one below.
+        final byte[] iv = rawkey.clone();
+        iv[0] = (byte) 0xFF;
+        iv[1] = 0x00;
+
+        final byte[] blanktag = { (byte) 0xBF, 0x31, 0x08, 0x13, 0x07, 0x73, (byte) 0xAD, 0x5E,
+                (byte) 0xC7, 0x0E, (byte) 0xC6, (byte) 0x9E, 0x78, 0x75, (byte) 0xA7, (byte) 0xB0 };
+        final byte[] longtag = { (byte) 0x9D, (byte) 0xB0, (byte) 0xCD, (byte) 0xF8, (byte) 0x80,
+                (byte) 0xF7, 0x3E, 0x3E, 0x10, (byte) 0xD4, (byte) 0xEB, 0x32, 0x17, 0x76, 0x66,
+                (byte) 0x88 };
+        final byte[] crypted = { (byte) 0xF7, 0x5D, 0x6B, (byte) 0xC8, (byte) 0xB4, (byte) 0xDC,
+                (byte) 0x8D, 0x66, (byte) 0xB8, 0x36, (byte) 0xA2, (byte) 0xB0, (byte) 0x8B, 0x32,
+                (byte) 0xA6, 0x36, (byte) 0x9F, 0x1C, (byte) 0xD3, (byte) 0xC5, 0x22, (byte) 0x8D,
+                0x79, (byte) 0xFD, 0x6C, 0x26, 0x7F, 0x5F, 0x6A, (byte) 0xA7, (byte) 0xB2, 0x31,
+                (byte) 0xC7, (byte) 0xDF, (byte) 0xB9, (byte) 0xD5, (byte) 0x99, 0x51, (byte) 0xAE,
+                (byte) 0x9C };
+
+        CryptState crypt = new CryptState();
+        crypt.setKeys(rawkey, iv, iv);
+        byte[] blank = new byte[4];
+        crypt.encrypt(new byte[0], 0, 0, blank, 0);
+        assertTrue("Empty message tag matches", rangeEquals(blanktag, 0, blank, 1, 3));
+
+        crypt.setKeys(rawkey, iv, iv);
+        byte[] source = new byte[40];
+        for (int i = 0; i < source.length; i++)
+            source[i] = (byte) i;
+        byte[] packet = new byte[source.length + 4];
+        crypt.encrypt(source, 0, source.length, packet, 0);
+        assertEquals("IV byte matches the nonce", rawkey[0], packet[0]);
+        assertTrue("Long message tag matches", rangeEquals(longtag, 0, packet, 1, 3));
+        assertTrue("Long message ciphertext matches", rangeEquals(crypted, 0, packet, 4, crypted.length));
+
+        byte[] plain = new byte[source.length];
+        assertTrue("Test vector decrypts", crypt.decrypt(packet, 0, packet.length, plain, 0));
+        assertTrue("Test vector decrypts to the source", Arrays.equals(source, plain));
+    }
+
+    public void testEncryptMatchesLegacy() throws Exception {
+        CryptState crypt = new CryptState();
+        crypt.setKeys(mKey, mClientNonce, mServerNonce);
+        LegacyCryptState legacy = new LegacyCryptState();
+        legacy.setKeys(mKey, mClientNonce, mServerNonce);
+
+        byte[] dst = new byte[MAX_PACKET_LENGTH + 4 + 7];
+        for (int length = 0; length <= MAX_PACKET_LENGTH; length++) {
+            byte[] plain = randomBytes(length);
+            byte[] expected = legacy.encrypt(plain, length);
+
+            Arrays.fill(dst, (byte) 0);
+            crypt.encrypt(plain, 0, length, dst, 7);
+            assertTrue("Encrypted packet of length " + length + " matches",
+                    rangeEquals(expected, 0, dst, 7, length + 4));
+        }
+        assertTrue("Encrypt IV matches", Arrays.equals(legacy.mEncryptIV, crypt.getEncryptIV()));
+    }
+
+    public void testInPlaceEncrypt() throws Exception {
+        CryptState crypt = new CryptState();
+        crypt.setKeys(mKey, mClientNonce, mServerNonce);
+        LegacyCryptState legacy = new LegacyCryptState();
+        legacy.setKeys(mKey, mClientNonce, mServerNonce);
+
+        for (int length = 0; length <= 200; length++) {
+            byte[] plain = randomBytes(length);
+            byte[] expected = legacy.encrypt(plain, length);
+
+            byte[] buffer = new byte[length + 4];
+            System.arraycopy(plain, 0, buffer, 4, length);
+            crypt.encrypt(buffer, 4, length, buffer, 0);
+            assertTrue("In place encrypted packet of length " + length + " matches",
+                    Arrays.equals(expected, buffer));
+        }
+    }
+
+    public void testDecryptMatchesLegacy() throws Exception {
+        CryptState sender = new CryptState();
+        sender.setKeys(mKey, mServerNonce, mClientNonce);
+        CryptState crypt = new CryptState();
+        crypt.setKeys(mKey, mClientNonce, mServerNonce);
+        LegacyCryptState legacy = new LegacyCryptState();
+        legacy.setKeys(mKey, mClientNonce, mServerNonce);
+
+        byte[] dst = new byte[MAX_PACKET_LENGTH + 3];
+        byte[] previous = null;
+        for (int i = 0; i < 2000; i++) {
+            int length = mRandom.nextInt(MAX_PACKET_LENGTH);
+            byte[] packet = sender.encrypt(randomBytes(length), length);
+
+            byte[][] received;
+            switch (mRandom.nextInt(8)) {
+                case 0: // Lost
+                    received = new byte[0][];
+                    break;
+                case 1: // Late, delivered after the following packet
+                    if (previous == null) {
+                        previous = packet;
+                        received = new byte[0][];
+                    } else {
+                        received = new byte[][] { packet, previous };
+                        previous = null;
+                    }
+                    break;
+                case 2: // Repeated
+                    received = new byte[][] { packet, packet };
+                    break;
+                case 3: // Corrupted
+                    byte[] corrupted = packet.clone();
+                    corrupted[corrupted.length - 1] ^= 0x10;
+                    received = new byte[][] { corrupted, packet };
+                    break;
+                default:
+                    received = new byte[][] { packet };
+                    break;
+            }
+
+            for (byte[] data : received) {
+                byte[] expected = legacy.decrypt(data, data.length);
+                Arrays.fill(dst, (byte) 0);
+                boolean success = crypt.decrypt(data, 0, data.length, dst, 3);
+                assertEquals("Decrypt result of packet " + i + " matches", expected != null, success);
+                if (expected != null) {
+                    assertTrue("Decrypted packet " + i + " matches",
+                            rangeEquals(expected, 0, dst, 3, expected.length));
+                }
+                assertTrue("Decrypt IV after packet " + i + " matches",
+                        Arrays.equals(legacy.mDecryptIV, crypt.getDecryptIV()));
+            }
+        }
+    }
+
+    public void testInPlaceDecrypt() throws Exception {
+        CryptState sender = new CryptState();
+        sender.setKeys(mKey, mServerNonce, mClientNonce);
+        CryptState crypt = new CryptState();
+        crypt.setKeys(mKey, mClientNonce, mServerNonce);
+
+        for (int length = 0; length <= 200; length++) {
+            byte[] plain = randomBytes(length);
+            byte[] packet = sender.encrypt(plain, length);
+            assertTrue("In place decryption of length " + length + " succeeds",
+                    crypt.decrypt(packet, 0, packet.length, packet, 0));
+            assertTrue("In place decrypted packet of length " + length + " matches",
+                    rangeEquals(plain, 0, packet, 0, length));
+        }
+    }
+
+    public void testByteBufferDecrypt() throws Exception {
+        CryptState sender = new CryptState();
+        sender.setKeys(mKey, mServerNonce, mClientNonce);
+        CryptState crypt = new CryptState();
+        crypt.setKeys(mKey, mClientNonce, mServerNonce);
+
+        for (int length = 0; length <= 200; length++) {
+            byte[] plain = randomBytes(length);
+            byte[] packet = sender.encrypt(plain, length);
+            // Alternate between direct buffers and heap buffers at a non-zero position.
+            ByteBuffer buffer = (length & 1) == 0 ? ByteBuffer.allocateDirect(MAX_PACKET_LENGTH)
+                    : ByteBuffer.allocate(MAX_PACKET_LENGTH);
+            buffer.position(7);
+            buffer.put(packet);
+            buffer.flip();
+            buffer.position(7);
+            assertTrue("Buffer decryption of length " + length + " succeeds",
+                    crypt.decrypt(buffer));
+            assertEquals("Position is advanced past the header", 11, buffer.position());
+            byte[] decrypted = new byte[buffer.remaining()];
+            buffer.get(decrypted);
+            assertTrue("Buffer decrypted packet of length " + length + " matches",
+                    Arrays.equals(plain, decrypted));
+        }
+    }
+
+    public void testLateReplayRejected() throws Exception {
+        CryptState sender = new CryptState();
+        sender.setKeys(mKey, mServerNonce, mClientNonce);
+        CryptState crypt = new CryptState();
+        crypt.setKeys(mKey, mClientNonce, mServerNonce);
+
+        byte[] late = sender.encrypt(randomBytes(40), 40);
+        byte[] next = sender.encrypt(randomBytes(40), 40);
+        assertNotNull("In order packet is accepted", crypt.decrypt(next, next.length));
+        assertNotNull("Late packet is accepted", crypt.decrypt(late, late.length));
+        assertNull("Replayed late packet is rejected", crypt.decrypt(late, late.length));
+    }
+
+    public void testShortPacket() throws Exception {
+        CryptState crypt = new CryptState();
+        crypt.setKeys(mKey, mClientNonce, mServerNonce);
+        assertFalse("Packets shorter than the header are rejected",
+                crypt.decrypt(new byte[3], 0, 3, new byte[0], 0));
+        assertNull("Packets shorter than the header are rejected", crypt.decrypt(new byte[3], 3));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static boolean rangeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The original array-allocating implementation of CryptState, kept as a reference.
+     */
+    private static class LegacyCryptState {
+        public static final int AES_BLOCK_SIZE = 16;
+        private static final String AES_TRANSFORMATION = "AES/ECB/NoPadding";
+
+        byte[] mRawKey = new byte[AES_BLOCK_SIZE];
+        byte[] mEncryptIV = new byte[AES_BLOCK_SIZE];
+        byte[] mDecryptIV = new byte[AES_BLOCK_SIZE];
+        byte[] mDecryptHistory = new byte[0x100];
+        int mUiGood = 0;
+        int mUiLate = 0;
+        int mUiLost = 0;
+        int mUiResync = 0;
+        int mUiRemoteGood = 0;
+        int mUiRemoteLate = 0;
+        int mUiRemoteLost = 0;
+        int mUiRemoteResync = 0;
+        Cipher mEncryptCipher;
+        Cipher mDecryptCipher;
+        long mLastGoodStart;
+        long mLastRequestStart;
+        boolean mInit = false;
+
+        public synchronized void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) throws InvalidKeyException {
+            try {
+                mEncryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
+                mDecryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
+            } catch (final NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                return;
+            } catch (final NoSuchPaddingException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            final SecretKeySpec cryptKey = new SecretKeySpec(rkey, "AES");
+            mRawKey = new byte[rkey.length];
+            System.arraycopy(rkey, 0, mRawKey, 0, AES_BLOCK_SIZE);
+            mEncryptIV = new byte[eiv.length];
+            System.arraycopy(eiv, 0, mEncryptIV, 0, AES_BLOCK_SIZE);
+            mDecryptIV = new byte[div.length];
+            System.arraycopy(div, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+
+            mEncryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
+            mDecryptCipher.init(Cipher.DECRYPT_MODE, cryptKey);
+
+            mInit = true;
+        }
+
+        public synchronized byte[] decrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            if (length < 4) return null;
+
+            final int plainLength = length - 4;
+            byte[] dst = new byte[plainLength];
+
+            final byte[] saveiv = new byte[AES_BLOCK_SIZE];
+            final short ivbyte = (short) (source[0] & 0xFF);
+            boolean restore = false;
+            final byte[] tag = new byte[AES_BLOCK_SIZE];
+
+            int lost = 0;
+            int late = 0;
+
+            System.arraycopy(mDecryptIV, 0, saveiv, 0, AES_BLOCK_SIZE);
+
+            if (((mDecryptIV[0] + 1) & 0xFF) == ivbyte) {
+                // In order as expected.
+                if (ivbyte > (mDecryptIV[0] & 0xFF)) {
+                    mDecryptIV[0] = (byte) ivbyte;
+                } else if (ivbyte < (mDecryptIV[0] & 0xFF)) {
+                    mDecryptIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((++mDecryptIV[i]) != 0) {
+                            break;
+                        }
+                    }
+                } else {
+                    return null;
+                }
+            } else {
+                // This is either out of order or a repeat.
+                int diff = ivbyte - (mDecryptIV[0] & 0xFF);
+                if (diff > 128) {
+                    diff = diff - 256;
+                } else if (diff < -128) {
+                    diff = diff + 256;
+                }
+
+                if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
+                    // Late packet, but no wraparound.
+                    late = 1;
+                    lost = -1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                    restore = true;
+                } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > -30) &&
+                        (diff < 0)) {
+                    // Last was 0x02, here comes 0xff from last round
+                    late = 1;
+                    lost = -1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((mDecryptIV[i]--) != 0) {
+                            break;
+                        }
+                    }
+                    restore = true;
+                } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
+                    // Lost a few packets, but beyond that we're good.
+                    lost = ivbyte - mDecryptIV[0] - 1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                } else if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
+                    // Lost a few packets, and wrapped around
+                    lost = 256 - (mDecryptIV[0] & 0xFF) + ivbyte - 1;
+                    mDecryptIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((++mDecryptIV[i]) != 0) {
+                            break;
+                        }
+                    }
+                } else {
+                    return null;
+                }
+
+                if (mDecryptHistory[mDecryptIV[0] & 0xFF] == mEncryptIV[0]) {
+                    System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+                    return null;
+                }
+            }
+
+            final byte[] tagShiftedDst = new byte[plainLength];
+            System.arraycopy(source, 4, tagShiftedDst, 0, plainLength);
+
+            ocbDecrypt(tagShiftedDst, dst, mDecryptIV, tag);
+
+            if (tag[0] != source[1] || tag[1] != source[2] || tag[2] != source[3]) {
+                System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+                return null;
+            }
+            mDecryptHistory[mDecryptIV[0] & 0xff] = mDecryptIV[1];
+
+            if (restore)
+                System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+
+            mUiGood++;
+            mUiLate += late;
+            mUiLost += lost;
+
+            mLastGoodStart = System.nanoTime();
+            return dst;
+        }
+
+        public void ocbDecrypt(byte[] encrypted, byte[] plain, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final byte[] checksum = new byte[AES_BLOCK_SIZE];
+            final byte[] tmp = new byte[AES_BLOCK_SIZE];
+
+            final byte[] delta = mEncryptCipher.doFinal(nonce);
+
+            int offset = 0;
+            int len = encrypted.length;
+            while (len > AES_BLOCK_SIZE) {
+                final byte[] buffer = new byte[AES_BLOCK_SIZE];
+                CryptSupport.S2(delta);
+                System.arraycopy(encrypted, offset, buffer, 0, AES_BLOCK_SIZE);
+
+                CryptSupport.XOR(tmp, delta, buffer);
+                mDecryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
+
+                CryptSupport.XOR(buffer, delta, tmp);
+                System.arraycopy(buffer, 0, plain, offset, AES_BLOCK_SIZE);
+
+                CryptSupport.XOR(checksum, checksum, buffer);
+                len -= AES_BLOCK_SIZE;
+                offset += AES_BLOCK_SIZE;
+            }
+
+            CryptSupport.S2(delta);
+            CryptSupport.ZERO(tmp);
+
+            final long num = len * 8;
+            tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
+            tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
+            CryptSupport.XOR(tmp, tmp, delta);
+
+            final byte[] pad = mEncryptCipher.doFinal(tmp);
+            CryptSupport.ZERO(tmp);
+            System.arraycopy(encrypted, offset, tmp, 0, len);
+
+            CryptSupport.XOR(tmp, tmp, pad);
+            CryptSupport.XOR(checksum, checksum, tmp);
+
+            System.arraycopy(tmp, 0, plain, offset, len);
+
+            CryptSupport.S3(delta);
+            CryptSupport.XOR(tmp, delta, checksum);
+
+            mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+        }
+
+        public synchronized byte[] encrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final byte[] tag = new byte[AES_BLOCK_SIZE];
+
+            // First, increase our IV.
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                if ((++mEncryptIV[i]) != 0) {
+                    break;
+                }
+            }
+
+            final byte[] dst = new byte[length + 4];
+            ocbEncrypt(source, dst, length, mEncryptIV, tag);
+
+            System.arraycopy(dst, 0, dst, 4, length);
+            dst[0] = mEncryptIV[0];
+            dst[1] = tag[0];
+            dst[2] = tag[1];
+            dst[3] = tag[2];
+
+            return dst;
+        }
+
+        public void ocbEncrypt(byte[] plain, byte[] encrypted, int plainLength, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final byte[] checksum = new byte[AES_BLOCK_SIZE];
+            final byte[] tmp = new byte[AES_BLOCK_SIZE];
+
+            final byte[] delta = mEncryptCipher.doFinal(nonce);
+
+            int offset = 0;
+            int len = plainLength;
+            while (len > AES_BLOCK_SIZE) {
+                final byte[] buffer = new byte[AES_BLOCK_SIZE];
+                CryptSupport.S2(delta);
+                System.arraycopy(plain, offset, buffer, 0, AES_BLOCK_SIZE);
+                CryptSupport.XOR(checksum, checksum, buffer);
+                CryptSupport.XOR(tmp, delta, buffer);
+
+                mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
+
+                CryptSupport.XOR(buffer, delta, tmp);
+                System.arraycopy(buffer, 0, encrypted, offset, AES_BLOCK_SIZE);
+                len -= AES_BLOCK_SIZE;
+                offset += AES_BLOCK_SIZE;
+            }
+
+            CryptSupport.S2(delta);
+            CryptSupport.ZERO(tmp);
+            final long num = len * 8;
+            tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
+            tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
+            CryptSupport.XOR(tmp, tmp, delta);
+
+            final byte[] pad = mEncryptCipher.doFinal(tmp);
+
+            System.arraycopy(plain, offset, tmp, 0, len);
+            System.arraycopy(pad, len, tmp, len, AES_BLOCK_SIZE - len);
+            CryptSupport.XOR(checksum, checksum, tmp);
+            CryptSupport.XOR(tmp, pad, tmp);
+
+            System.arraycopy(tmp, 0, encrypted, offset, len);
+            CryptSupport.S3(delta);
+            CryptSupport.XOR(tmp, delta, checksum);
+            mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+        }
+
+        private static class CryptSupport {
+
+            private static final int SHIFTBITS = 7;
+
+            public static void XOR(final byte[] dst, final byte[] a, final byte[] b) {
+                for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                    dst[i] = (byte) (a[i] ^ b[i]);
+                }
+            }
+
+            public static void S2(final byte[] block) {
+                int carry = (block[0] >> SHIFTBITS) & 0x1;
+                for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
+                    block[i] = (byte) ((block[i] << 1) | ((block[i + 1] >> SHIFTBITS) & 0x1));
+                }
+                block[AES_BLOCK_SIZE - 1] = (byte) ((block[AES_BLOCK_SIZE - 1] << 1) ^ (carry * 0x87));
+            }
+
+            public static void S3(final byte[] block) {
+                final int carry = (block[0] >> SHIFTBITS) & 0x1;
+                for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
+                    block[i] ^= (block[i] << 1) | ((block[i + 1] >> SHIFTBITS) & 0x1);
+                }
+                block[AES_BLOCK_SIZE - 1] ^= ((block[AES_BLOCK_SIZE - 1] << 1) ^ (carry * 0x87));
+            }
+
+            public static void ZERO(final byte[] block) {
+                Arrays.fill(block, (byte) 0);
+            }
+        }
+    }
+}
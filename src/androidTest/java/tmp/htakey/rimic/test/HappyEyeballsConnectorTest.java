@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import bo.htakey.rimic.net.HappyEyeballsConnector;
+
+/**
+ * Tests address interleaving and connection racing of {@link HappyEyeballsConnector}.
+ */
+public class HappyEyeballsConnectorTest extends TestCase {
+
+    public void testInterleaving() throws Exception {
+        InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        InetAddress v4c = InetAddress.getByName("192.0.2.3");
+        InetAddress v6a = InetAddress.getByName("2001:db8::1");
+        InetAddress v6b = InetAddress.getByName("2001:db8::2");
+        InetAddress[] addresses = { v4a, v4b, v4c, v6a, v6b };
+
+        List<InetAddress> ordered = HappyEyeballsConnector.orderAddresses(addresses, true);
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v4c), ordered);
+
+        ordered = HappyEyeballsConnector.orderAddresses(addresses, false);
+        assertEquals(Arrays.asList(v4a, v6a, v4b, v6b, v4c), ordered);
+    }
+
+    public void testUnreachableAddressIsRaced() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            // TEST-NET-1 is not routed, so an attempt to it either fails or hangs until timeout.
+            InetAddress[] addresses = {
+                    InetAddress.getByName("192.0.2.1"),
+                    InetAddress.getByName("127.0.0.1")
+            };
+            HappyEyeballsConnector connector = new HappyEyeballsConnector();
+            long start = System.currentTimeMillis();
+            Socket socket = connector.connect("test", addresses, server.getLocalPort());
+            long elapsed = System.currentTimeMillis() - start;
+            try {
+                assertEquals(addresses[1], socket.getInetAddress());
+                assertTrue("Took " + elapsed + "ms",
+                        elapsed < HappyEyeballsConnector.CONNECT_TIMEOUT / 2);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testAllFail() throws Exception {
+        // Bind and close to find a port with nothing listening.
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = server.getLocalPort();
+        server.close();
+
+        HappyEyeballsConnector connector = new HappyEyeballsConnector();
+        try {
+            connector.connect("test", new InetAddress[] { InetAddress.getByName("127.0.0.1") }, port);
+            fail("Connecting to a closed port should fail");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
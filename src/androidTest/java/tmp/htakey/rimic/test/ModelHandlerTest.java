@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import android.test.AndroidTestCase;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bo.htakey.rimic.model.IChannel;
+import bo.htakey.rimic.model.IUser;
+import bo.htakey.rimic.model.ModelSnapshot;
+import bo.htakey.rimic.protobuf.Mumble;
+import bo.htakey.rimic.protocol.ModelHandler;
+import bo.htakey.rimic.util.BlobCache;
+import bo.htakey.rimic.util.RimicLogger;
+import bo.htakey.rimic.util.RimicObserver;
+
+/**
+ * Tests that {@link ModelHandler} applies the server's initial state silently, and announces it
+ * with a single event.
+ */
+public class ModelHandlerTest extends AndroidTestCase {
+    private static final int CHANNELS = 100;
+    private static final int USERS = 1000;
+
+    public void testSynchronizationIsBatched() {
+        CountingObserver observer = new CountingObserver();
+        RecordingLogger logger = new RecordingLogger();
+        ModelHandler handler = new ModelHandler(getContext(), observer, logger, null, null);
+
+        for (int i = 0; i < CHANNELS; i++) {
+            Mumble.ChannelState.Builder channel = Mumble.ChannelState.newBuilder()
+                    .setChannelId(i)
+                    .setName("Channel " + i);
+            if (i > 0) channel.setParent(i / 2);
+            handler.messageChannelState(channel.build());
+        }
+        for (int i = 1; i <= USERS; i++) {
+            handler.messageUserState(Mumble.UserState.newBuilder()
+                    .setSession(i)
+                    .setName("User " + i)
+                    .setChannelId(i % CHANNELS)
+                    .build());
+        }
+        assertEquals("No per-entity events before the sync", 0, observer.entityEvents);
+        assertEquals("No connection messages before the sync", 0, logger.messages.size());
+
+        handler.messageServerSync(Mumble.ServerSync.newBuilder()
+                .setSession(1)
+                .setWelcomeText("Welcome")
+                .build());
+        assertEquals(1, observer.snapshots.size());
+        ModelSnapshot snapshot = observer.snapshots.get(0);
+        assertSame(snapshot, handler.getSnapshot());
+        assertEquals(CHANNELS, snapshot.getChannelCount());
+        assertEquals(USERS, snapshot.getUserCount());
+        assertEquals(USERS, snapshot.getRootChannel().getSubchannelUserCount());
+        assertEquals("User 1", snapshot.getSessionUser().getName());
+
+        // Changes after the sync are announced as before.
+        handler.messageUserState(Mumble.UserState.newBuilder()
+                .setSession(USERS + 1)
+                .setName("Latecomer")
+                .build());
+        assertEquals(1, observer.entityEvents);
+        assertEquals(USERS + 1, handler.getSnapshot().getUserCount());
+        assertTrue(handler.getSnapshot().getVersion() > snapshot.getVersion());
+    }
+
+    public void testReplayedBlobsAreNotStoredAgain() {
+        BlobCache cache = new BlobCache(null, 1 << 20, 0);
+        final ModelHandler handler = new ModelHandler(getContext(), new CountingObserver(),
+                new RecordingLogger(), null, null, cache);
+        final ByteString texture = ByteString.copyFrom(new byte[BlobCache.MIN_BLOB_SIZE * 2]);
+        final ByteString hash = BlobCache.sha1(texture);
+
+        handler.replayCachedBlobs(new Runnable() {
+            @Override
+            public void run() {
+                handler.messageUserState(Mumble.UserState.newBuilder()
+                        .setSession(1)
+                        .setTexture(texture)
+                        .build());
+            }
+        });
+        assertNotNull(handler.getUser(1).getTexture());
+        assertFalse("Replayed blobs skip the cache", cache.contains(hash));
+
+        handler.messageUserState(Mumble.UserState.newBuilder()
+                .setSession(1)
+                .setTexture(texture)
+                .build());
+        assertTrue("Blobs from the server are cached", cache.contains(hash));
+    }
+
+    private static class CountingObserver extends RimicObserver {
+        final List<ModelSnapshot> snapshots = new ArrayList<ModelSnapshot>();
+        int entityEvents;
+
+        @Override
+        public void onModelSynchronized(ModelSnapshot snapshot) {
+            snapshots.add(snapshot);
+        }
+
+        @Override
+        public void onChannelAdded(IChannel channel) {
+            entityEvents++;
+        }
+
+        @Override
+        public void onChannelStateUpdated(IChannel channel) {
+            entityEvents++;
+        }
+
+        @Override
+        public void onUserConnected(IUser user) {
+            entityEvents++;
+        }
+
+        @Override
+        public void onUserStateUpdated(IUser user) {
+            entityEvents++;
+        }
+
+        @Override
+        public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
+            entityEvents++;
+        }
+    }
+
+    private static class RecordingLogger implements RimicLogger {
+        final List<String> messages = new ArrayList<String>();
+
+        @Override
+        public void logInfo(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void logWarning(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void logError(String message) {
+            messages.add(message);
+        }
+    }
+}
@@ -20,7 +20,10 @@ package bo.htakey.rimic.test;
 import junit.framework.TestCase;
 
 import bo.htakey.rimic.model.Channel;
+import bo.htakey.rimic.model.ChannelSnapshot;
+import bo.htakey.rimic.model.ModelSnapshot;
 import bo.htakey.rimic.model.User;
+import bo.htakey.rimic.model.UserSnapshot;
 
 /**
  * Tests the Channel-User tree model.
@@ -47,4 +50,121 @@ public class ModelTest extends TestCase {
         assertEquals("Moving a user to a subchannel does not change the recursive user count of the root", 2, root.getSubchannelUserCount());
         assertEquals("Subchannel user count is sane", 2, sub.getUsers().size());
     }
+
+    public void testSubtreeUserCount() {
+        Channel root = new Channel(0, false);
+        Channel a = new Channel(1, false);
+        Channel b = new Channel(2, false);
+        Channel leaf = new Channel(3, false);
+        root.addSubchannel(a);
+        root.addSubchannel(b);
+        a.addSubchannel(leaf);
+        new User(0, "one").setChannel(leaf);
+        new User(1, "two").setChannel(leaf);
+        assertEquals(2, root.getSubchannelUserCount());
+        assertEquals(2, a.getSubchannelUserCount());
+
+        // Move the leaf under b, in the order ModelHandler does.
+        leaf.setParent(b);
+        b.addSubchannel(leaf);
+        a.removeSubchannel(leaf);
+        assertEquals("Moving a channel moves its users' count", 0, a.getSubchannelUserCount());
+        assertEquals(2, b.getSubchannelUserCount());
+        assertEquals(2, root.getSubchannelUserCount());
+
+        root.removeSubchannel(b);
+        assertEquals("Removing a channel removes its users' count", 0, root.getSubchannelUserCount());
+    }
+
+    public void testSortedOrder() {
+        Channel root = new Channel(0, false);
+        User bob = new User(0, "bob");
+        User alice = new User(1, "Alice");
+        User carol = new User(2, "carol");
+        bob.setChannel(root);
+        alice.setChannel(root);
+        carol.setChannel(root);
+        assertEquals("Users sort by name, ignoring case", alice, root.getUsers().get(0));
+        assertEquals(carol, root.getUsers().get(2));
+
+        alice.setName("dave");
+        assertEquals("Renaming a user moves them", alice, root.getUsers().get(2));
+        assertEquals(3, root.getUsers().size());
+
+        Channel x = new Channel(1, false);
+        x.setName("x");
+        Channel y = new Channel(2, false);
+        y.setName("y");
+        root.addSubchannel(y);
+        root.addSubchannel(x);
+        assertEquals(x, root.getSubchannels().get(0));
+        x.setPosition(1);
+        assertEquals("Position takes precedence over name", y, root.getSubchannels().get(0));
+        assertEquals(2, root.getSubchannels().size());
+    }
+
+    public void testSnapshotVersions() {
+        Channel root = new Channel(0, false);
+        Channel sub = new Channel(1, false);
+        sub.setName("sub");
+        root.addSubchannel(sub);
+        User user = new User(5, "user");
+        user.setChannel(root);
+
+        ModelSnapshot first = ModelSnapshot.EMPTY.toBuilder()
+                .putChannel(new ChannelSnapshot(root))
+                .putChannel(new ChannelSnapshot(sub))
+                .putUser(new UserSnapshot(user))
+                .build();
+        assertEquals(1, first.getUsers(first.getRootChannel()).size());
+        assertEquals(sub.getId(), first.getSubchannels(first.getRootChannel()).get(0).getId());
+
+        // Move the user into the subchannel, copying only what changed, as ModelHandler does.
+        user.setChannel(sub);
+        ModelSnapshot second = first.toBuilder()
+                .putUser(new UserSnapshot(user))
+                .putChannel(new ChannelSnapshot(sub))
+                .putChannel(new ChannelSnapshot(root))
+                .build();
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals("Older snapshots do not change", 0, first.getChannel(1).getUserCount());
+        assertEquals(root.getId(), first.getChannel(first.getUser(5)).getId());
+        assertEquals(1, second.getChannel(1).getUserCount());
+        assertEquals(sub.getId(), second.getChannel(second.getUser(5)).getId());
+        assertEquals(1, second.getRootChannel().getSubchannelUserCount());
+        assertEquals(root.getId(), second.getParent(second.getChannel(1)).getId());
+
+        ModelSnapshot third = second.toBuilder().setSession(5).build();
+        assertSame("Untouched channels are shared", second.getChannel(1), third.getChannel(1));
+        assertEquals("user", third.getSessionUser().getName());
+    }
+
+    public void testSnapshotSharesUnchangedState() {
+        Channel root = new Channel(0, false);
+        Channel sub = new Channel(1, false);
+        Channel leaf = new Channel(2, false);
+        root.addSubchannel(sub);
+        sub.addSubchannel(leaf);
+        ChannelSnapshot rootBefore = new ChannelSnapshot(root);
+        ChannelSnapshot subBefore = new ChannelSnapshot(sub);
+        ChannelSnapshot leafBefore = new ChannelSnapshot(leaf);
+        assertSame("Unchanged counts keep the snapshot", rootBefore,
+                rootBefore.withSubchannelUserCount(root.getSubchannelUserCount()));
+
+        User user = new User(5, "user");
+        user.setChannel(leaf);
+        ChannelSnapshot rootAfter = rootBefore.withSubchannelUserCount(root.getSubchannelUserCount());
+        assertEquals(0, rootBefore.getSubchannelUserCount());
+        assertEquals(1, rootAfter.getSubchannelUserCount());
+        assertEquals(1, rootAfter.getSubchannelCount());
+        assertEquals(sub.getId(), rootAfter.getSubchannelId(0));
+
+        ChannelSnapshot subAfter = new ChannelSnapshot(sub, subBefore);
+        assertEquals(1, subAfter.getSubchannelUserCount());
+        assertEquals(leaf.getId(), subAfter.getSubchannelId(0));
+        ChannelSnapshot leafAfter = new ChannelSnapshot(leaf, leafBefore);
+        assertEquals(0, leafBefore.getUserCount());
+        assertEquals("Changed user lists are copied again", 1, leafAfter.getUserCount());
+        assertEquals(user.getSession(), leafAfter.getUserSession(0));
+    }
 }
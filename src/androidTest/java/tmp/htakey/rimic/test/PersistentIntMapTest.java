@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import bo.htakey.rimic.util.PersistentIntMap;
+
+/**
+ * Tests {@link PersistentIntMap} against a HashMap, and that updates leave older versions intact.
+ */
+public class PersistentIntMapTest extends TestCase {
+
+    public void testMatchesHashMap() {
+        PersistentIntMap<String> map = PersistentIntMap.empty();
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // Mix small keys with keys that only differ in their high bits.
+            int key = random.nextBoolean() ? random.nextInt(512) - 64 : random.nextInt(8) << 29;
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                String value = Integer.toString(i);
+                expected.put(key, value);
+                map = map.plus(key, value);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        for (int key = -64; key < 448; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.values().size());
+
+        for (int key : expected.keySet()) {
+            map = map.minus(key);
+        }
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+    }
+
+    public void testOlderVersionsUnchanged() {
+        PersistentIntMap<Integer> first = PersistentIntMap.empty();
+        for (int key = 0; key < 1000; key++) {
+            first = first.plus(key, key);
+        }
+        PersistentIntMap<Integer> second = first.plus(7, -7).minus(8).plus(1000, 1000);
+        assertEquals(Integer.valueOf(7), first.get(7));
+        assertEquals(Integer.valueOf(8), first.get(8));
+        assertNull(first.get(1000));
+        assertEquals(1000, first.size());
+
+        assertEquals(Integer.valueOf(-7), second.get(7));
+        assertNull(second.get(8));
+        assertEquals(Integer.valueOf(1000), second.get(1000));
+        assertEquals(1000, second.size());
+        assertSame("Removing a missing key returns the same map", second, second.minus(-1));
+    }
+}
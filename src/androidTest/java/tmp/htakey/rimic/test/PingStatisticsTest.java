@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import bo.htakey.rimic.net.PingStatistics;
+
+/**
+ * Tests the rolling window and derived values of {@link PingStatistics}.
+ */
+public class PingStatisticsTest extends TestCase {
+
+    public void testEmpty() {
+        PingStatistics.Snapshot snapshot = new PingStatistics(4).snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0f, snapshot.getMean());
+        assertEquals(0f, snapshot.getVariance());
+        assertEquals(0f, snapshot.getPercentile(50));
+    }
+
+    public void testStatistics() {
+        PingStatistics stats = new PingStatistics(8);
+        // 10, 20, 30, 40 ms
+        for (int i = 1; i <= 4; i++) {
+            stats.add(i * 10000);
+        }
+        PingStatistics.Snapshot snapshot = stats.snapshot();
+        assertEquals(4, snapshot.getCount());
+        assertEquals(25f, snapshot.getMean(), 0.001f);
+        assertEquals(166.667f, snapshot.getVariance(), 0.001f);
+        assertEquals(10f, snapshot.getMin(), 0.001f);
+        assertEquals(40f, snapshot.getMax(), 0.001f);
+        assertEquals(40f, snapshot.getLast(), 0.001f);
+        assertEquals(20f, snapshot.getPercentile(50), 0.001f);
+        assertEquals(40f, snapshot.getPercentile(95), 0.001f);
+    }
+
+    public void testWindow() {
+        PingStatistics stats = new PingStatistics(3);
+        for (int i = 1; i <= 5; i++) {
+            stats.add(i * 1000);
+        }
+        PingStatistics.Snapshot snapshot = stats.snapshot();
+        assertEquals("Only the window is kept", 3, snapshot.getCount());
+        assertEquals("The total counts every sample", 5, snapshot.getTotal());
+        assertEquals("Oldest samples are evicted first", 3f, snapshot.getMin(), 0.001f);
+        assertEquals(4f, snapshot.getMean(), 0.001f);
+
+        stats.reset();
+        assertEquals(0, stats.snapshot().getCount());
+        assertEquals(0, stats.getTotal());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import bo.htakey.rimic.protobuf.Mumble;
+import bo.htakey.rimic.protocol.RequestBlobBatcher;
+
+/**
+ * Tests the merging and completion of blob requests by {@link RequestBlobBatcher}.
+ */
+public class RequestBlobBatcherTest extends TestCase {
+    /** Long enough that no scheduled flush runs during a test. */
+    private static final long DELAY = 60 * 60 * 1000;
+
+    private final List<Mumble.RequestBlob> mSent = new ArrayList<Mumble.RequestBlob>();
+    private RequestBlobBatcher mBatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSent.clear();
+        mBatcher = new RequestBlobBatcher(new Handler(Looper.getMainLooper()),
+                new RequestBlobBatcher.Sender() {
+                    @Override
+                    public void sendRequestBlob(Mumble.RequestBlob request) {
+                        mSent.add(request);
+                    }
+                }, DELAY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBatcher.cancelAll();
+        super.tearDown();
+    }
+
+    public void testMergesRequests() {
+        Future<Void> texture = mBatcher.requestTexture(1);
+        assertSame("Repeated requests share a future", texture, mBatcher.requestTexture(1));
+        mBatcher.requestTexture(2);
+        mBatcher.requestComment(1);
+        mBatcher.requestDescription(5);
+        assertTrue("Nothing is sent before the window ends", mSent.isEmpty());
+
+        mBatcher.flush();
+        assertEquals(1, mSent.size());
+        Mumble.RequestBlob request = mSent.get(0);
+        assertEquals(2, request.getSessionTextureCount());
+        assertEquals(1, request.getSessionCommentCount());
+        assertEquals(1, request.getChannelDescriptionCount());
+        assertEquals(4, mBatcher.getOutstandingCount());
+
+        assertSame("In flight requests are not sent again", texture, mBatcher.requestTexture(1));
+        mBatcher.flush();
+        assertEquals(1, mSent.size());
+    }
+
+    public void testCompletesOnState() {
+        Future<Void> texture = mBatcher.requestTexture(1);
+        Future<Void> comment = mBatcher.requestComment(1);
+        Future<Void> description = mBatcher.requestDescription(5);
+        mBatcher.flush();
+
+        mBatcher.messageUserState(Mumble.UserState.newBuilder()
+                .setSession(1)
+                .setComment("Hello")
+                .build());
+        assertTrue(comment.isDone());
+        assertFalse(comment.isCancelled());
+        assertFalse(texture.isDone());
+
+        mBatcher.messageUserRemove(Mumble.UserRemove.newBuilder().setSession(1).build());
+        assertTrue(texture.isCancelled());
+
+        mBatcher.messageChannelState(Mumble.ChannelState.newBuilder()
+                .setChannelId(5)
+                .setDescription("Lobby")
+                .build());
+        assertTrue(description.isDone());
+        assertEquals(0, mBatcher.getOutstandingCount());
+    }
+
+    public void testUnansweredRequestTimesOut() throws InterruptedException {
+        RequestBlobBatcher batcher = new RequestBlobBatcher(new Handler(Looper.getMainLooper()),
+                new RequestBlobBatcher.Sender() {
+                    @Override
+                    public void sendRequestBlob(Mumble.RequestBlob request) {
+                        mSent.add(request);
+                    }
+                }, 0, 50);
+        Future<Void> texture = batcher.requestTexture(1);
+        long deadline = SystemClock.uptimeMillis() + 5000;
+        while (!texture.isDone() && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("The server never answers for a user without a texture", texture.isCancelled());
+        assertEquals(0, batcher.getOutstandingCount());
+
+        Future<Void> retry = batcher.requestTexture(1);
+        assertNotSame("A later request is made again", texture, retry);
+        assertFalse(retry.isDone());
+        batcher.cancelAll();
+    }
+
+    public void testCancelAll() {
+        Future<Void> texture = mBatcher.requestTexture(1);
+        mBatcher.cancelAll();
+        assertTrue(texture.isCancelled());
+        mBatcher.flush();
+        assertTrue("Pending requests are dropped", mSent.isEmpty());
+        assertTrue(RequestBlobBatcher.completed().isDone());
+    }
+}
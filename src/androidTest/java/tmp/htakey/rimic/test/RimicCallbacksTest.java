@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import bo.htakey.rimic.model.IUser;
+import bo.htakey.rimic.model.User;
+import bo.htakey.rimic.util.RimicCallbacks;
+import bo.htakey.rimic.util.RimicObserver;
+
+/**
+ * Tests per-observer delivery and talk state coalescing in {@link RimicCallbacks}.
+ */
+public class RimicCallbacksTest extends TestCase {
+    /** Long enough that no talk state flush runs during a test. */
+    private static final long LONG_INTERVAL = 60 * 60 * 1000;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    public void testSlowObserverDoesNotDelayOthers() {
+        RimicCallbacks callbacks = new RimicCallbacks();
+        RecordingObserver fast = new RecordingObserver();
+        RecordingObserver slow = new RecordingObserver();
+        ManualExecutor slowExecutor = new ManualExecutor();
+        RimicCallbacks.Subscription fastSubscription = callbacks.registerObserver(fast, DIRECT, 0);
+        RimicCallbacks.Subscription slowSubscription =
+                callbacks.registerObserver(slow, slowExecutor, 0);
+
+        callbacks.onLogInfo("a");
+        callbacks.onLogInfo("b");
+        assertEquals(2, fast.messages.size());
+        assertEquals(0, fastSubscription.getQueueDepth());
+        assertEquals(2, fastSubscription.getDeliveredCount());
+        assertEquals(0, slow.messages.size());
+        assertEquals(2, slowSubscription.getQueueDepth());
+
+        slowExecutor.runAll();
+        assertEquals("Events are delivered in order", "a", slow.messages.get(0));
+        assertEquals("b", slow.messages.get(1));
+        assertEquals(0, slowSubscription.getQueueDepth());
+        assertTrue(slowSubscription.getMaxLatency() >= 0);
+    }
+
+    public void testTalkStateCoalescing() {
+        RimicCallbacks callbacks = new RimicCallbacks();
+        RecordingObserver observer = new RecordingObserver();
+        RimicCallbacks.Subscription subscription =
+                callbacks.registerObserver(observer, DIRECT, LONG_INTERVAL);
+        IUser a = new User(1, "a");
+        IUser b = new User(2, "b");
+
+        callbacks.onUserTalkStateUpdated(a);
+        callbacks.onUserTalkStateUpdated(a);
+        callbacks.onUserTalkStateUpdated(b);
+        callbacks.onUserTalkStateUpdated(a);
+        assertEquals("Waits for the interval", 0, observer.talkStates.size());
+        assertEquals(2, subscription.getCoalescedCount());
+
+        RecordingObserver uncoalesced = new RecordingObserver();
+        callbacks.registerObserver(uncoalesced, DIRECT, 0);
+        callbacks.onUserTalkStateUpdated(a);
+        callbacks.onUserTalkStateUpdated(a);
+        assertEquals(2, uncoalesced.talkStates.size());
+    }
+
+    public void testUnregister() {
+        RimicCallbacks callbacks = new RimicCallbacks();
+        RecordingObserver observer = new RecordingObserver();
+        ManualExecutor executor = new ManualExecutor();
+        callbacks.registerObserver(observer, executor, 0);
+        callbacks.onLogInfo("a");
+        callbacks.unregisterObserver(observer);
+        callbacks.onLogInfo("b");
+        executor.runAll();
+        assertTrue("Queued events are dropped", observer.messages.isEmpty());
+        assertNull(callbacks.getSubscription(observer));
+    }
+
+    public void testThrowingObserverKeepsReceiving() {
+        RimicCallbacks callbacks = new RimicCallbacks();
+        RecordingObserver observer = new RecordingObserver() {
+            @Override
+            public void onLogWarning(String message) {
+                throw new IllegalStateException(message);
+            }
+        };
+        ManualExecutor executor = new ManualExecutor();
+        callbacks.registerObserver(observer, executor, 0);
+        callbacks.onLogWarning("a");
+        callbacks.onLogInfo("b");
+        try {
+            executor.runAll();
+            fail("The observer's exception is not swallowed");
+        } catch (IllegalStateException expected) {
+        }
+        executor.runAll();
+        callbacks.onLogInfo("c");
+        executor.runAll();
+        assertEquals(2, observer.messages.size());
+        assertEquals("c", observer.messages.get(1));
+    }
+
+    public void testRegisterAgainReplacesSubscription() {
+        RimicCallbacks callbacks = new RimicCallbacks();
+        RecordingObserver observer = new RecordingObserver();
+        ManualExecutor executor = new ManualExecutor();
+        callbacks.registerObserver(observer, executor, 0);
+        callbacks.onLogInfo("a");
+        callbacks.registerObserver(observer, executor, 0);
+        callbacks.onLogInfo("b");
+        executor.runAll();
+        assertEquals("Events are not delivered twice", 1, observer.messages.size());
+        assertEquals("b", observer.messages.get(0));
+    }
+
+    public void testRemovingUnknownUser() {
+        RimicCallbacks callbacks = new RimicCallbacks();
+        RecordingObserver observer = new RecordingObserver();
+        callbacks.registerObserver(observer, DIRECT, LONG_INTERVAL);
+        callbacks.onUserRemoved(null, "kicked");
+        assertEquals("Unknown users are still reported", 1, observer.removed.size());
+        assertNull(observer.removed.get(0));
+    }
+
+    private static class RecordingObserver extends RimicObserver {
+        final List<String> messages = new ArrayList<String>();
+        final List<IUser> talkStates = new ArrayList<IUser>();
+        final List<IUser> removed = new ArrayList<IUser>();
+
+        @Override
+        public void onLogInfo(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onUserTalkStateUpdated(IUser user) {
+            talkStates.add(user);
+        }
+
+        @Override
+        public void onUserRemoved(IUser user, String reason) {
+            removed.add(user);
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) mTasks.remove(0).run();
+        }
+    }
+}
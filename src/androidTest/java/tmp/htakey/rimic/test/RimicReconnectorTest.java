@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+import bo.htakey.rimic.util.RimicReconnector;
+
+/**
+ * Tests the backoff and state transitions of {@link RimicReconnector}.
+ */
+public class RimicReconnectorTest extends TestCase {
+    /** Long enough that no scheduled attempt runs during a test. */
+    private static final long BASE_DELAY = 60 * 60 * 1000;
+
+    public void testBackoffIsCappedAndJittered() {
+        Random random = new Random(0);
+        for (int failures = 0; failures < 20; failures++) {
+            long ceiling = Math.min(1000L << failures, RimicReconnector.MAX_DELAY);
+            for (int i = 0; i < 100; i++) {
+                long delay = RimicReconnector.computeDelay(1000, failures, random);
+                assertTrue("Delay " + delay + " below half of " + ceiling, delay >= ceiling / 2);
+                assertTrue("Delay " + delay + " above " + ceiling, delay <= ceiling);
+            }
+        }
+    }
+
+    public void testWaitsForNetwork() {
+        StubListener listener = new StubListener();
+        listener.networkAvailable = false;
+        RimicReconnector reconnector = createReconnector(listener);
+
+        reconnector.start();
+        assertEquals(RimicReconnector.State.WAITING_FOR_NETWORK, reconnector.getState());
+        assertEquals(0, listener.attempts);
+
+        listener.networkAvailable = true;
+        reconnector.onNetworkAvailable();
+        assertEquals("Attempts as soon as the network returns", 1, listener.attempts);
+        assertEquals(RimicReconnector.State.CONNECTING, reconnector.getState());
+
+        reconnector.onAttemptFailed();
+        assertEquals(RimicReconnector.State.BACKOFF, reconnector.getState());
+        reconnector.onNetworkAvailable();
+        assertEquals("A network that is already up does not skip the backoff", 1, listener.attempts);
+
+        reconnector.onNetworkLost();
+        assertEquals(RimicReconnector.State.WAITING_FOR_NETWORK, reconnector.getState());
+        reconnector.cancel();
+    }
+
+    public void testRecoveryTime() {
+        StubListener listener = new StubListener();
+        listener.networkAvailable = false;
+        StubReconnector reconnector = new StubReconnector(listener);
+        assertEquals(-1, reconnector.getLastRecoveryTime());
+
+        reconnector.start();
+        reconnector.time += 5000;
+        listener.networkAvailable = true;
+        reconnector.onNetworkAvailable();
+        reconnector.time += 700;
+        assertTrue(reconnector.onConnected());
+        assertFalse(reconnector.isReconnecting());
+        reconnector.time += 300;
+        reconnector.onRestored();
+        assertEquals("Measured from the network returning", 1000, reconnector.getLastRecoveryTime());
+    }
+
+    public void testCancel() {
+        StubListener listener = new StubListener();
+        RimicReconnector reconnector = createReconnector(listener);
+        reconnector.start();
+        assertTrue(reconnector.isReconnecting());
+        reconnector.cancel();
+        assertFalse(reconnector.isReconnecting());
+        assertFalse("A connection made after cancelling is not a reconnect", reconnector.onConnected());
+    }
+
+    private static RimicReconnector createReconnector(StubListener listener) {
+        RimicReconnector reconnector = new RimicReconnector(new Handler(Looper.getMainLooper()),
+                listener, new Random(0));
+        reconnector.setBaseDelay(BASE_DELAY);
+        return reconnector;
+    }
+
+    private static class StubListener implements RimicReconnector.Listener {
+        boolean networkAvailable = true;
+        int attempts;
+
+        @Override
+        public boolean isNetworkAvailable() {
+            return networkAvailable;
+        }
+
+        @Override
+        public void onReconnect(int attempt) {
+            attempts++;
+        }
+    }
+
+    /**
+     * Runs on a clock controlled by the test.
+     */
+    private static class StubReconnector extends RimicReconnector {
+        long time = 1000;
+
+        StubReconnector(StubListener listener) {
+            super(new Handler(Looper.getMainLooper()), listener, new Random(0));
+            setBaseDelay(BASE_DELAY);
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import org.minidns.dnsname.DnsName;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.SRV;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import bo.htakey.rimic.Constants;
+import bo.htakey.rimic.net.RimicResolver;
+
+/**
+ * Tests SRV ordering, parsing and caching of {@link RimicResolver}. DNS queries are answered by
+ * overriding the resolver's query methods, so no network access is needed.
+ */
+public class RimicResolverTest extends TestCase {
+
+    public void testPortSkipsLookup() {
+        StubResolver resolver = new StubResolver();
+        List<RimicResolver.Target> targets = resolver.resolve("example.com", 1234);
+        assertEquals(1, targets.size());
+        assertEquals(new RimicResolver.Target("example.com", 1234), targets.get(0));
+        assertEquals(0, resolver.srvQueries);
+
+        targets = resolver.resolve("10.0.0.1", 0);
+        assertEquals(Constants.DEFAULT_PORT, targets.get(0).getPort());
+        assertEquals(0, resolver.srvQueries);
+    }
+
+    public void testFallbackWithoutSrv() {
+        StubResolver resolver = new StubResolver();
+        List<RimicResolver.Target> targets = resolver.resolve("example.com", 0);
+        assertEquals(Arrays.asList(new RimicResolver.Target("example.com", Constants.DEFAULT_PORT)), targets);
+    }
+
+    public void testPriorityOrder() {
+        StubResolver resolver = new StubResolver();
+        resolver.records = Arrays.asList(
+                new SRV(20, 0, 3000, "c.example.com"),
+                new SRV(10, 0, 1000, "a.example.com"),
+                new SRV(15, 0, 2000, "b.example.com"));
+        List<RimicResolver.Target> targets = resolver.resolve("example.com", 0);
+        assertEquals("Targets are tried by ascending priority", Arrays.asList(
+                new RimicResolver.Target("a.example.com", 1000),
+                new RimicResolver.Target("b.example.com", 2000),
+                new RimicResolver.Target("c.example.com", 3000)), targets);
+    }
+
+    public void testWeightDistribution() {
+        List<SRV> records = Arrays.asList(
+                new SRV(10, 90, 1000, "heavy.example.com"),
+                new SRV(10, 10, 1000, "light.example.com"));
+        Random random = new Random(0);
+        int heavyFirst = 0;
+        for (int i = 0; i < 1000; i++) {
+            List<RimicResolver.Target> targets = RimicResolver.orderSrvRecords(records, random);
+            assertEquals("Every target is kept for failover", 2, targets.size());
+            if (targets.get(0).getHost().equals("heavy.example.com")) heavyFirst++;
+        }
+        assertTrue("Weights bias selection, got " + heavyFirst, heavyFirst > 850 && heavyFirst < 950);
+    }
+
+    public void testSrvCacheHonoursTtl() {
+        StubResolver resolver = new StubResolver();
+        resolver.records = Arrays.asList(new SRV(10, 0, 1000, "a.example.com"));
+        resolver.ttl = 120;
+        resolver.resolve("example.com", 0);
+        resolver.resolve("example.com", 0);
+        assertEquals("Answers are cached", 1, resolver.srvQueries);
+
+        resolver.time += 119 * 1000;
+        resolver.resolve("example.com", 0);
+        assertEquals(1, resolver.srvQueries);
+
+        resolver.time += 2 * 1000;
+        resolver.resolve("example.com", 0);
+        assertEquals("Answers expire with their TTL", 2, resolver.srvQueries);
+    }
+
+    public void testSrvTtlIsClamped() {
+        StubResolver resolver = new StubResolver();
+        resolver.records = Arrays.asList(new SRV(10, 0, 1000, "a.example.com"));
+        resolver.ttl = 1;
+        resolver.resolve("example.com", 0);
+        resolver.time += RimicResolver.MIN_SRV_TTL - 1;
+        resolver.resolve("example.com", 0);
+        assertEquals("Short TTLs are raised to the minimum", 1, resolver.srvQueries);
+        resolver.time += 1;
+        resolver.resolve("example.com", 0);
+        assertEquals(2, resolver.srvQueries);
+
+        resolver = new StubResolver();
+        resolver.records = Arrays.asList(new SRV(10, 0, 1000, "a.example.com"));
+        resolver.ttl = 7 * 24 * 60 * 60;
+        resolver.resolve("example.com", 0);
+        resolver.time += RimicResolver.MAX_SRV_TTL;
+        resolver.resolve("example.com", 0);
+        assertEquals("Long TTLs are lowered to the maximum", 2, resolver.srvQueries);
+    }
+
+    public void testParseSkipsRootTarget() {
+        List<Record<? extends Data>> answers = new ArrayList<Record<? extends Data>>();
+        answers.add(srvRecord(10, new SRV(10, 0, 1000, DnsName.ROOT)));
+        answers.add(srvRecord(300, new SRV(10, 0, 1000, "a.example.com")));
+        answers.add(srvRecord(100, new SRV(20, 0, 2000, "b.example.com")));
+        List<SRV> records = StubResolver.parsedRecords(answers);
+        assertEquals("Root targets are dropped", 2, records.size());
+        assertEquals("a.example.com", records.get(0).target.toString());
+        assertEquals("b.example.com", records.get(1).target.toString());
+        assertEquals("The lowest TTL of the kept records wins", 100, StubResolver.parsedTtl(answers));
+
+        answers.remove(2);
+        answers.remove(1);
+        assertNull("Only root targets means no service", StubResolver.parsedRecords(answers));
+    }
+
+    public void testAddressCache() throws Exception {
+        StubResolver resolver = new StubResolver();
+        resolver.lookupAddresses("a.example.com");
+        resolver.lookupAddresses("a.example.com");
+        assertEquals(1, resolver.addressQueries);
+
+        resolver.invalidateAddresses("a.example.com");
+        resolver.lookupAddresses("a.example.com");
+        assertEquals(2, resolver.addressQueries);
+
+        resolver.time += RimicResolver.ADDRESS_TTL;
+        resolver.lookupAddresses("a.example.com");
+        assertEquals(3, resolver.addressQueries);
+    }
+
+    private static Record<SRV> srvRecord(long ttl, SRV srv) {
+        return new Record<SRV>("_mumble._tcp.example.com", Record.TYPE.SRV, Record.CLASS.IN, ttl, srv, false);
+    }
+
+    /**
+     * Answers SRV and address queries from memory, on a clock controlled by the test.
+     */
+    private static class StubResolver extends RimicResolver {
+        List<SRV> records = new ArrayList<SRV>();
+        long ttl = 300;
+        long time = 1000;
+        int srvQueries;
+        int addressQueries;
+
+        StubResolver() {
+            super(new Random(0));
+        }
+
+        @Override
+        protected SrvAnswer querySrv(String name) throws IOException {
+            srvQueries++;
+            assertEquals("_mumble._tcp.example.com", name);
+            return records.isEmpty() ? null : new SrvAnswer(records, ttl);
+        }
+
+        static List<SRV> parsedRecords(List<Record<? extends Data>> answers) {
+            SrvAnswer answer = parseSrvAnswer(answers);
+            return answer != null ? answer.getRecords() : null;
+        }
+
+        static long parsedTtl(List<Record<? extends Data>> answers) {
+            return parseSrvAnswer(answers).getTtl();
+        }
+
+        @Override
+        protected InetAddress[] queryAddresses(String host) {
+            addressQueries++;
+            return new InetAddress[] { InetAddress.getLoopbackAddress() };
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.ServiceTestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bo.htakey.rimic.RimicService;
+import bo.htakey.rimic.model.Server;
+import bo.htakey.rimic.net.RimicConnection;
+import bo.htakey.rimic.util.RimicException;
+
+/**
+ * Tests that {@link RimicService} keeps reconnecting when connection attempts fail to start.
+ */
+public class RimicServiceReconnectTest extends ServiceTestCase<RimicServiceReconnectTest.FailingService> {
+    private static final Server DUMMY_SERVER = new Server(-1, "dummy", "example.com", 64738,
+            "dummy_user", "dummy_pass");
+    private static final int RECONNECT_DELAY = 10;
+    private static final long TIMEOUT = 5000;
+
+    public RimicServiceReconnectTest() {
+        super(FailingService.class);
+    }
+
+    public void testReconnectsAfterConnectThrows() throws Exception {
+        Intent intent = new Intent(getContext(), FailingService.class);
+        intent.putExtra(RimicService.EXTRAS_SERVER, DUMMY_SERVER);
+        intent.putExtra(RimicService.EXTRAS_AUTO_RECONNECT, true);
+        intent.putExtra(RimicService.EXTRAS_AUTO_RECONNECT_DELAY, RECONNECT_DELAY);
+        startService(intent);
+        final FailingService service = getService();
+
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                service.setReconnecting(true);
+            }
+        });
+
+        // Two attempts throw; a third must still be made.
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (FailingService.sAttempts.get() < 3 && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Attempts made: " + FailingService.sAttempts.get(),
+                FailingService.sAttempts.get() >= 3);
+        assertEquals(RimicService.ConnectionState.DISCONNECTED, service.getConnectionState());
+
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                service.setReconnecting(false);
+            }
+        });
+    }
+
+    /**
+     * A service whose connections fail to start, on a network that is always up.
+     */
+    public static class FailingService extends RimicService {
+        static final AtomicInteger sAttempts = new AtomicInteger();
+
+        @Override
+        protected RimicConnection createConnection() {
+            return new RimicConnection(this) {
+                @Override
+                public void connect(String host, int port) throws RimicException {
+                    sAttempts.incrementAndGet();
+                    throw new RimicException("Connection refused",
+                            RimicException.RimicDisconnectReason.CONNECTION_ERROR);
+                }
+            };
+        }
+
+        @Override
+        protected boolean isNetworkAvailable() {
+            return true;
+        }
+    }
+}
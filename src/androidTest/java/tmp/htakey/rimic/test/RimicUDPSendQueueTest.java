@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.test;
+
+import junit.framework.TestCase;
+
+import bo.htakey.rimic.net.RimicUDPSendQueue;
+
+/**
+ * Tests the ordering, overflow and deadline behaviour of {@link RimicUDPSendQueue}.
+ */
+public class RimicUDPSendQueueTest extends TestCase {
+    private static final int SLOT_SIZE = 16;
+
+    public void testOrder() throws Exception {
+        RimicUDPSendQueue queue = new RimicUDPSendQueue(4, SLOT_SIZE, 10000);
+        byte[] out = new byte[SLOT_SIZE];
+        for (int round = 0; round < 3; round++) {
+            for (byte i = 1; i <= 3; i++) {
+                queue.offer(new byte[] { i, i, i }, 0, i);
+            }
+            assertEquals(3, queue.getDepth());
+            for (byte i = 1; i <= 3; i++) {
+                assertEquals("Datagrams are taken in order", i, queue.take(out));
+                assertEquals(i, out[0]);
+            }
+        }
+        assertEquals(0, queue.getDepth());
+        assertEquals(3, queue.getMaxDepth());
+        assertEquals(9, queue.getSentCount());
+    }
+
+    public void testOverflowDropsOldest() throws Exception {
+        RimicUDPSendQueue queue = new RimicUDPSendQueue(4, SLOT_SIZE, 10000);
+        for (byte i = 0; i < 6; i++) {
+            queue.offer(new byte[] { i }, 0, 1);
+        }
+        assertEquals(4, queue.getDepth());
+        assertEquals(2, queue.getDroppedOverflowCount());
+
+        byte[] out = new byte[SLOT_SIZE];
+        queue.take(out);
+        assertEquals("Oldest datagrams are dropped first", 2, out[0]);
+    }
+
+    public void testDeadlineDropsStale() throws Exception {
+        RimicUDPSendQueue queue = new RimicUDPSendQueue(4, SLOT_SIZE, 20);
+        queue.offer(new byte[] { 1 }, 0, 1);
+        queue.offer(new byte[] { 2 }, 0, 1);
+        Thread.sleep(50);
+        queue.offer(new byte[] { 3 }, 0, 1);
+
+        byte[] out = new byte[SLOT_SIZE];
+        queue.take(out);
+        assertEquals("Stale datagrams are skipped", 3, out[0]);
+        assertEquals(2, queue.getDroppedStaleCount());
+        assertEquals(1, queue.getSentCount());
+    }
+
+    public void testOversizedRejected() {
+        RimicUDPSendQueue queue = new RimicUDPSendQueue(4, SLOT_SIZE, 10000);
+        try {
+            queue.offer(new byte[SLOT_SIZE + 1], 0, SLOT_SIZE + 1);
+            fail("Datagrams larger than a slot are rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -21,6 +21,9 @@ import bo.htakey.rimic.model.Server;
 import bo.htakey.rimic.util.RimicDisconnectedException;
 import bo.htakey.rimic.util.RimicException;
 import bo.htakey.rimic.util.IRimicObserver;
+import bo.htakey.rimic.util.RimicCallbacks;
+
+import java.util.concurrent.Executor;
 
 /**
  * A public interface for clients to communicate with a {@link RimicService}.
@@ -35,10 +38,34 @@ import bo.htakey.rimic.util.IRimicObserver;
  * will throw IllegalStateException if disconnected or not synchronized.
  */
 public interface IRimicService {
+    /**
+     * Registers an observer on the observer executor. Talk state updates are delivered at most
+     * once per user every {@link RimicCallbacks#DEFAULT_TALK_STATE_INTERVAL} milliseconds.
+     */
     void registerObserver(IRimicObserver observer);
 
+    /**
+     * Registers an observer with its own executor, so that it cannot delay other observers.
+     * @param executor The executor to call the observer on, or null to use the observer executor.
+     * @param talkStateInterval The minimum time between talk state deliveries, in milliseconds,
+     *                          or 0 to deliver each update.
+     */
+    void registerObserver(IRimicObserver observer, Executor executor, long talkStateInterval);
+
     void unregisterObserver(IRimicObserver observer);
 
+    /**
+     * @return The observer's queue depth and delivery latency, or null if it is not registered.
+     */
+    RimicCallbacks.Subscription getObserverSubscription(IRimicObserver observer);
+
+    /**
+     * Sets the executor of observers registered without one. Events are always delivered to each
+     * observer in order, even on a thread pool.
+     * @param executor The executor to deliver events on, or null to use the main thread.
+     */
+    void setObserverExecutor(Executor executor);
+
     /**
      * @return true if handshaking with the server has completed.
      */
@@ -73,6 +100,13 @@ public interface IRimicService {
      */
     void cancelReconnect();
 
+    /**
+     * Returns how long the last automatic reconnect took, from a network being available to the
+     * previous session being restored with audio running.
+     * @return The time in milliseconds, or -1 if the service has not reconnected.
+     */
+    long getReconnectRecoveryTime();
+
     /**
      * @return the server that Rimic is currently connected to, was connected to, or will attempt connection to.
      */
@@ -1,11 +1,14 @@
 package bo.htakey.rimic;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 import bo.htakey.rimic.model.IChannel;
 import bo.htakey.rimic.model.IUser;
 import bo.htakey.rimic.model.Message;
+import bo.htakey.rimic.model.ModelSnapshot;
 import bo.htakey.rimic.model.WhisperTarget;
+import bo.htakey.rimic.net.PingStatistics;
 import bo.htakey.rimic.net.RimicUDPMessageType;
 import bo.htakey.rimic.util.VoiceTargetMode;
 
@@ -25,6 +28,16 @@ public interface IRimicSession {
      */
     long getUDPLatency();
 
+    /**
+     * @return round trip statistics for recent pings over the TCP connection.
+     */
+    PingStatistics.Snapshot getTCPPingStatistics();
+
+    /**
+     * @return round trip statistics for recent pings over UDP.
+     */
+    PingStatistics.Snapshot getUDPPingStatistics();
+
     /**
      * @return the maximum bandwidth in bps for audio allowed by the server, or -1 if not set.
      */
@@ -97,6 +110,13 @@ public interface IRimicSession {
      */
     IChannel getRootChannel();
 
+    /**
+     * Returns an immutable snapshot of the channel tree and its users. Unlike the channels and
+     * users returned above, a snapshot may be read from any thread without locking.
+     * @return The latest snapshot, or {@link ModelSnapshot#EMPTY} if there is no connection.
+     */
+    ModelSnapshot getModelSnapshot();
+
     int getPermissions();
 
     int getTransmitMode();
@@ -127,11 +147,26 @@ public interface IRimicSession {
 
     void requestPermissions(int channel);
 
-    void requestComment(int session);
+    /**
+     * Requests a user's comment, unless it is already known. Requests made within a short window
+     * are sent to the server together.
+     * @return A future completed once the comment is in the model.
+     */
+    Future<Void> requestComment(int session);
 
-    void requestAvatar(int session);
+    /**
+     * Requests a user's texture, unless it is already known.
+     * @return A future completed once the texture is in the model.
+     * @see #requestComment(int)
+     */
+    Future<Void> requestAvatar(int session);
 
-    void requestChannelDescription(int channel);
+    /**
+     * Requests a channel's description, unless it is already known.
+     * @return A future completed once the description is in the model.
+     * @see #requestComment(int)
+     */
+    Future<Void> requestChannelDescription(int channel);
 
     void registerUser(int session);
 
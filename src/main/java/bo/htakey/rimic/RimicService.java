@@ -17,8 +17,6 @@
 
 package bo.htakey.rimic;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -36,13 +34,21 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
 import java.security.Security;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import bo.htakey.rimic.audio.AudioOutput;
 import bo.htakey.rimic.audio.BluetoothScoReceiver;
@@ -51,7 +57,6 @@ import bo.htakey.rimic.audio.inputmode.ContinuousInputMode;
 import bo.htakey.rimic.audio.inputmode.IInputMode;
 import bo.htakey.rimic.audio.inputmode.ToggleInputMode;
 import bo.htakey.rimic.audio.javacpp.CELT7;
-import bo.htakey.rimic.audio.javacpp.Logmon;
 import bo.htakey.rimic.exception.AudioException;
 import bo.htakey.rimic.exception.NotConnectedException;
 import bo.htakey.rimic.exception.NotSynchronizedException;
@@ -59,22 +64,30 @@ import bo.htakey.rimic.model.Channel;
 import bo.htakey.rimic.model.IChannel;
 import bo.htakey.rimic.model.IUser;
 import bo.htakey.rimic.model.Message;
+import bo.htakey.rimic.model.ModelSnapshot;
 import bo.htakey.rimic.model.Server;
 import bo.htakey.rimic.model.TalkState;
 import bo.htakey.rimic.model.User;
 import bo.htakey.rimic.model.WhisperTarget;
 import bo.htakey.rimic.model.WhisperTargetList;
+import bo.htakey.rimic.net.PingStatistics;
 import bo.htakey.rimic.net.RimicConnection;
+import bo.htakey.rimic.net.RimicSSLSocketFactory;
 import bo.htakey.rimic.net.RimicTCPMessageType;
 import bo.htakey.rimic.net.RimicUDPMessageType;
+import bo.htakey.rimic.net.RimicUDPSendQueue;
 import bo.htakey.rimic.protobuf.Mumble;
 import bo.htakey.rimic.protocol.AudioHandler;
+import bo.htakey.rimic.protocol.CachingBlobSender;
 import bo.htakey.rimic.protocol.ModelHandler;
+import bo.htakey.rimic.protocol.RequestBlobBatcher;
+import bo.htakey.rimic.util.BlobCache;
 import bo.htakey.rimic.util.IRimicObserver;
 import bo.htakey.rimic.util.RimicCallbacks;
 import bo.htakey.rimic.util.RimicDisconnectedException;
 import bo.htakey.rimic.util.RimicException;
 import bo.htakey.rimic.util.RimicLogger;
+import bo.htakey.rimic.util.RimicReconnector;
 import bo.htakey.rimic.util.VoiceTargetMode;
 
 public class RimicService extends Service implements IRimicService, IRimicSession, RimicConnection.RimicConnectionListener, RimicLogger, BluetoothScoReceiver.Listener {
@@ -104,6 +117,10 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     public static final String EXTRAS_USE_OPUS = "use_opus";
     public static final String EXTRAS_FORCE_TCP = "force_tcp";
     public static final String EXTRAS_USE_TOR = "use_tor";
+    /** Whether to use the NIO DatagramChannel based UDP transport, which reuses one receive buffer. */
+    public static final String EXTRAS_UDP_DATAGRAM_CHANNEL = "udp_datagram_channel";
+    /** The time in milliseconds after which queued outgoing UDP packets are dropped. */
+    public static final String EXTRAS_UDP_SEND_DEADLINE = "udp_send_deadline";
     public static final String EXTRAS_CLIENT_NAME = "client_name";
     public static final String EXTRAS_ACCESS_TOKENS = "access_tokens";
     public static final String EXTRAS_AUDIO_SOURCE = "audio_source";
@@ -125,6 +142,11 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     public static final String WAKE_UP_CONNECT = "bo.htakey.rimic.RimicService.WAKE_UP_CONNECT";
     public static final String EXTRAS_FIRST_CONFIG = "first_config";
 
+    /** The total size of textures, comments and descriptions to keep in memory, in bytes. */
+    private static final long BLOB_CACHE_MEMORY_BYTES = 4 * 1024 * 1024;
+    /** The total size of textures, comments and descriptions to keep on disk, in bytes. */
+    private static final long BLOB_CACHE_DISK_BYTES = 32 * 1024 * 1024;
+
     public enum WAKE_TYPE {
         ACQUIRE_PERMANENT,
         RELEASE,
@@ -134,12 +156,10 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
 
     private enum RECEIVERS_CLASS {
         BR_BLUETOOTH,
-        BR_WAKEUP_MON,
-        BR_TICKS,
         BR_CONNECTIVITY
     }
 
-    private boolean[] registered_br = new boolean[4];
+    private boolean[] registered_br = new boolean[2];
 
     // Service settings
     private Server mServer;
@@ -149,6 +169,8 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     private String mCertificatePassword;
     private boolean mUseOpus;
     private boolean mForceTcp;
+    private boolean mUseDatagramChannel;
+    private int mUDPSendDeadline = RimicUDPSendQueue.DEFAULT_DEADLINE;
     private boolean mUseTor;
     private String mClientName;
     private List<String> mAccessTokens;
@@ -162,27 +184,38 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
 
     private byte mVoiceTargetId;
     private WhisperTargetList mWhisperTargetList;
+    /** Shared by all connections, as blobs are addressed by their content. */
+    private BlobCache mBlobCache;
+    private ExecutorService mBlobExecutor;
+
+    // Session state restored after an automatic reconnect. The voice target and whisper targets
+    // above are kept as well.
+    private int mRestoreChannelId = -1;
+    private boolean mRestoreSelfMute;
+    private boolean mRestoreSelfDeaf;
 
     private static final Object vObjectLockWake = new Object();
     private static final Object vObjectLockWifi = new Object();
     private static final Object vObjectLockDelay = new Object();
-    private static final Object vObjectLockReceiver = new Object();
     private static final Object vObjectLockConnect = new Object();
     private static final Object vObjectLockDiconnect = new Object();
-    private static final Object vObjectLockinMistake = new Object();
     private static PowerManager.WakeLock mWakeLock;
     private static android.net.wifi.WifiManager.WifiLock mWifiLock;
     private static PowerManager.WakeLock vWakeLockScreen;
-    private AlarmManager vAm;
-    private PendingIntent vPi;
-    private static final Logmon.cLogMon logMon = new Logmon.cLogMon();
 
     private Handler mHandler;
     private RimicCallbacks mCallbacks;
 
     private RimicConnection mConnection;
+    /**
+     * Socket factories by server address, kept for the life of the service so that reconnects can
+     * resume TLS sessions. Cleared when the certificate or trust store changes. Guarded by itself.
+     */
+    private final Map<String, RimicSSLSocketFactory> mSocketFactories = new HashMap<String, RimicSSLSocketFactory>();
     private ConnectionState mConnectionState;
-    private ModelHandler mModelHandler;
+    /** Volatile, as the model snapshot may be read from any thread. */
+    private volatile ModelHandler mModelHandler;
+    private volatile RequestBlobBatcher mBlobBatcher;
     private AudioHandler mAudioHandler;
     private BluetoothScoReceiver mBluetoothReceiver;
 
@@ -190,37 +223,10 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     private ToggleInputMode mToggleInputMode;
     private ContinuousInputMode mContinuousInputMode;
 
-    private boolean mReconnecting;
+    private RimicReconnector mReconnector;
     private boolean inProcConnect;
-    private static boolean inMistakeConnection;
-    private static volatile int vMistakeCntConn;
     //private static final ToneGenerator tn = new ToneGenerator(AudioManager.STREAM_MUSIC, ToneGenerator.MAX_VOLUME / 2);
 
-    private RimicWakeUpMon vRimicWakeUpMon = new RimicWakeUpMon();
-    private TicksReceiver vTicksReceiverMin = new TicksReceiver();
-
-    public static boolean isInMistakeConnection() {
-        boolean mistake;
-        synchronized (vObjectLockinMistake) {
-            mistake = inMistakeConnection;
-        }
-        return mistake;
-    }
-
-    public static int getMistakeCntConn() {
-        int mistakeCnt;
-        synchronized (vObjectLockinMistake) {
-            mistakeCnt = vMistakeCntConn;
-        }
-        return mistakeCnt;
-    }
-
-    public static void increaseMistakeCntConn() {
-        synchronized (vObjectLockinMistake) {
-            vMistakeCntConn++;
-        }
-    }
-
     public void delay(long millis, int type)
     {
         synchronized (vObjectLockDelay) {
@@ -240,118 +246,34 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         }
     }
 
-    public class TicksReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            synchronized (vObjectLockReceiver) {
-                if (vMistakeCntConn > 1) {
-                    setWakeLock(WAKE_TYPE.TRY_ACQUIRE_TIME, 180000);
-                }
-                if (inProcConnect || mConnectionState == ConnectionState.CONNECTING) {
-                    return;
-                }
-
-                final String iAction = intent.getAction();
-                final boolean fireConnect = intent.getBooleanExtra(RimicService.WAKE_UP_ACTION, false);
-
-                try {
-                    ToneGenerator tn = new ToneGenerator(AudioManager.STREAM_VOICE_CALL, ToneGenerator.MAX_VOLUME / 2);
-                    AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-                    if (am != null && !am.isMusicActive()) {
-                        try {
-                            if (RimicService.WAKE_UP_ACTION.equals(intent.getAction())) {
-                                tn.startTone(ToneGenerator.TONE_DTMF_2, 250);
-                            } else {
-                                tn.startTone(ToneGenerator.TONE_DTMF_5, 250);
-                            }
-                            delay(250, 0);
-                            tn.stopTone();
-                            delay(250, 0);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                } catch (RuntimeException e) {
-                    e.printStackTrace();
-                }
-
-                Calendar calendar = Calendar.getInstance();
-                Log.i(Constants.TAG, "vTicksReceiverMin Before: " + mReconnecting + " Fire connect: " + fireConnect + " Intent action: " + iAction + " - " + calendar.getTime().toGMTString());
-
-                if (!mReconnecting) {
-                    tryUnregisterReceiver(RECEIVERS_CLASS.BR_TICKS);
-
-                    if (!inMistakeConnection) {
-                    /*
-                        if (vAm != null && vPi != null) {
-                            vAm.cancel(vPi);
-                            vAm = null;
-                        }
-                    */
-                    } else {
-                        Log.i(Constants.TAG, "vTicksReceiverMin: in Mistake Connection hold");
-                    }
-
-                    Log.i(Constants.TAG, "Unregistered Broadcast vTicksReceiverMin - Intent Action: " + iAction);
-                    return;
-                }
-
-                Log.i(Constants.TAG, "vTicksReceiverMin After: " + mReconnecting + " Fire connect: " + fireConnect + " Intent action: " + iAction + " - " + calendar.getTime().toGMTString());
-
-                ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-                if (cm.getActiveNetworkInfo() != null && cm.getActiveNetworkInfo().isConnected()) {
-                    calendar.setTimeInMillis(System.currentTimeMillis());
-                    Log.v(Constants.TAG, "vTicksReceiverMin Connectivity restored, attempting reconnect " + " - " + mReconnecting + " Fire connect: " + fireConnect + " - " + calendar.getTime().toGMTString());
-                    connect();
-                }
-            }
-        }
-    };
-
     /**
      * Listen for connectivity changes in the reconnection state, and reconnect accordingly.
      */
     private BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            synchronized (vObjectLockReceiver) {
-                if (vMistakeCntConn > 1) {
-                    setWakeLock(WAKE_TYPE.TRY_ACQUIRE_TIME, 180000);
-                }
-                if (inProcConnect || mConnectionState == ConnectionState.CONNECTING) {
-                    return;
-                }
-
-                final String iAction = intent.getAction();
-
-                if (!mReconnecting) {
-                    tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
-
-                    if (!inMistakeConnection) {
-                    /*
-                        if (vAm != null && vPi != null) {
-                            vAm.cancel(vPi);
-                            vAm = null;
-                        }
-                     */
-                    } else {
-                        Log.i(Constants.TAG, "mConnectivityReceiver: in Mistake Connection hold");
-                    }
-                    Log.i(Constants.TAG, "Unregistered Broadcast - Connectivity Recv");
-                    return;
-                }
+            if (!mReconnector.isReconnecting()) {
+                tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
+                return;
+            }
+            if (isNetworkAvailable()) {
+                mReconnector.onNetworkAvailable();
+            } else {
+                mReconnector.onNetworkLost();
+            }
+        }
+    };
 
-                Calendar calendar = Calendar.getInstance();
-                calendar.setTimeInMillis(System.currentTimeMillis());
-                Log.i(Constants.TAG, "Connectivity Recv: " + mReconnecting + " Intent action: " + iAction + " - " + calendar.getTime().toGMTString());
+    private final RimicReconnector.Listener mReconnectListener = new RimicReconnector.Listener() {
+        @Override
+        public boolean isNetworkAvailable() {
+            return RimicService.this.isNetworkAvailable();
+        }
 
-                ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-                if (cm.getActiveNetworkInfo() != null && cm.getActiveNetworkInfo().isConnected()) {
-                    calendar.setTimeInMillis(System.currentTimeMillis());
-                    Log.v(Constants.TAG, "Connectivity restored, attempting reconnect. " + " - " + mReconnecting + " - " + calendar.getTime().toGMTString());
-                    connect();
-                }
-            }
+        @Override
+        public void onReconnect(int attempt) {
+            Log.v(Constants.TAG, "Reconnect attempt " + attempt);
+            connect(true);
         }
     };
 
@@ -431,73 +353,6 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         return START_NOT_STICKY;
     }
 
-    private void setAlarm(long time) {
-        logMon.startTicks(1,1);
-        try {
-            IntentFilter intentWakeUpFilterMon = new IntentFilter();
-            intentWakeUpFilterMon.addAction(RimicWakeUpMon.WAKE_UP_ACTION_MON);
-            intentWakeUpFilterMon.addAction(RimicService.WAKE_UP_ACTION);
-            intentWakeUpFilterMon.addAction(Intent.ACTION_SCREEN_ON);
-            if (vMistakeCntConn > 1) {
-                intentWakeUpFilterMon.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
-            }
-            //intentWakeUpFilterMon.addAction(WifiManager.RSSI_CHANGED_ACTION);
-            //intentWakeUpFilterMon.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-            //intentWakeUpFilterMon.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
-            //if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                //intentWakeUpFilterMon.addAction(WifiManager.ACTION_WIFI_NETWORK_SUGGESTION_POST_CONNECTION);
-            //}
-            register_receiver(RECEIVERS_CLASS.BR_WAKEUP_MON, intentWakeUpFilterMon);
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            IntentFilter intentWakeUpFilter = new IntentFilter();
-            intentWakeUpFilter.addAction(RimicService.WAKE_UP_ACTION);
-            if (vMistakeCntConn > 1) {
-                setWakeLock(WAKE_TYPE.SET_TIME_ACQUIRE, 180000);
-            }
-            if (vMistakeCntConn > 2) {
-                setWiFiLock(WAKE_TYPE.ACQUIRE_PERMANENT);
-                //intentWakeUpFilter.addAction(WifiManager.RSSI_CHANGED_ACTION);
-                intentWakeUpFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
-                intentWakeUpFilter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-                intentWakeUpFilter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
-                //if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    //intentWakeUpFilter.addAction(WifiManager.ACTION_WIFI_NETWORK_SUGGESTION_POST_CONNECTION);
-                //}
-            }
-            //if (vMistakeCntConn > 4) {
-                //intentWakeUpFilter.addAction(Intent.ACTION_TIME_TICK);
-            //}
-            //intentWakeUpFilter.addAction(Intent.ACTION_SCREEN_ON);
-            //intentWakeUpFilter.addAction(Intent.ACTION_BATTERY_CHANGED);
-            //intentWakeUpFilter.setPriority(90000);
-            register_receiver(RECEIVERS_CLASS.BR_TICKS, intentWakeUpFilter);
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            Context context = getApplicationContext();
-            Intent vAmIntent = new Intent();
-            vAmIntent.setAction(RimicService.WAKE_UP_ACTION);
-            vAmIntent.putExtra(RimicService.WAKE_UP_CONNECT, true);
-
-            vPi = PendingIntent.getBroadcast(context, 0, vAmIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-            vAm = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-            //long intervalTime = mAutoReconnectDelay * 3;
-            long startTime = System.currentTimeMillis() + time;
-            vAm.setInexactRepeating(AlarmManager.RTC_WAKEUP, startTime, time, vPi);
-            //vAm.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + time, time, vPi);
-            //vAm.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + time, vPi);
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-        }
-        Log.v(Constants.TAG, "Alarm is set vMistakeCnt: " + vMistakeCntConn);
-    }
-
     /**
      * Try to unregister receiver with illegal argument exception catching.
      * @param br:
@@ -512,22 +367,10 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
                         registered_br[0] = false;
                     }
                     break;
-                case BR_WAKEUP_MON:
-                    if (registered_br[1]) {
-                        unregisterReceiver(vRimicWakeUpMon);
-                        registered_br[1] = false;
-                    }
-                    break;
-                case BR_TICKS:
-                    if (registered_br[2]) {
-                        unregisterReceiver(vTicksReceiverMin);
-                        registered_br[2] = false;
-                    }
-                    break;
                 case BR_CONNECTIVITY:
-                    if (registered_br[3]) {
+                    if (registered_br[1]) {
                         unregisterReceiver(mConnectivityReceiver);
-                        registered_br[3] = false;
+                        registered_br[1] = false;
                     }
                     break;
             }
@@ -545,22 +388,10 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
                     registered_br[0] = true;
                 }
                 break;
-            case BR_WAKEUP_MON:
-                if (!registered_br[1] && vRimicWakeUpMon != null) {
-                    registerReceiver(vRimicWakeUpMon, ifilter);
-                    registered_br[1] = true;
-                }
-                break;
-            case BR_TICKS:
-                if (!registered_br[2] && vTicksReceiverMin != null) {
-                    registerReceiver(vTicksReceiverMin, ifilter);
-                    registered_br[2] = true;
-                }
-                break;
             case BR_CONNECTIVITY:
-                if (registered_br[3] && mConnectivityReceiver != null) {
+                if (!registered_br[1] && mConnectivityReceiver != null) {
                     registerReceiver(mConnectivityReceiver, ifilter);
-                    registered_br[3] = true;
+                    registered_br[1] = true;
                 }
         }
     }
@@ -657,8 +488,6 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     @Override
     public void onCreate() {
         super.onCreate();
-        inMistakeConnection = false;
-        vMistakeCntConn = 0;
         PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Rimic:RimicService");
         mWakeLock.setReferenceCounted(false);
@@ -668,6 +497,7 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         mWifiLock.setReferenceCounted(false);
         vWakeLockScreen = powerManager.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP, "Rimic:RimicService");
         mHandler = new Handler(getMainLooper());
+        mReconnector = new RimicReconnector(mHandler, mReconnectListener);
         mCallbacks = new RimicCallbacks();
         mAudioBuilder = new AudioHandler.Builder()
                 .setContext(this)
@@ -681,24 +511,24 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         mActivityInputMode = new ActivityInputMode(0); // FIXME: reasonable default
         mContinuousInputMode = new ContinuousInputMode();
         mWhisperTargetList = new WhisperTargetList();
+        // Blobs are hashed, written and looked up on one background thread.
+        mBlobExecutor = Executors.newSingleThreadExecutor();
+        mBlobCache = new BlobCache(new File(getCacheDir(), "blobs"), BLOB_CACHE_MEMORY_BYTES,
+                BLOB_CACHE_DISK_BYTES, mBlobExecutor);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mBlobCache.trimMemory();
     }
 
     @Override
     public void onDestroy() {
+        mReconnector.cancel();
         tryUnregisterReceiver(RECEIVERS_CLASS.BR_BLUETOOTH);
-        //tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
-        tryUnregisterReceiver(RECEIVERS_CLASS.BR_WAKEUP_MON);
-        tryUnregisterReceiver(RECEIVERS_CLASS.BR_TICKS);
-        try {
-            if (vAm != null && vPi != null) {
-                vAm.cancel(vPi);
-                vAm = null;
-                vPi = null;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        logMon.stopTicks();
+        tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
+        mBlobExecutor.shutdown();
         super.onDestroy();
     }
 
@@ -707,64 +537,104 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     }
 
     protected void connect() {
+        cancelReconnect();
+        connect(false);
+    }
+
+    /**
+     * @param resume Whether this is an automatic reconnect, which keeps the previous session's
+     *               state to restore once synchronized.
+     */
+    private void connect(boolean resume) {
         synchronized (vObjectLockConnect) {
             if (inProcConnect || mConnectionState == ConnectionState.CONNECTING) {
+                // CONNECTING is only held while a connection attempt is live. If this is a
+                // reconnect, the reconnector is waiting on an outcome, and the live attempt
+                // reports it in this attempt's place when it synchronizes or disconnects.
+                Log.v(Constants.TAG, "Connection already in progress");
                 return;
             }
             inProcConnect = true;
             try {
-                setReconnecting(false);
                 mConnectionState = ConnectionState.DISCONNECTED;
-                mVoiceTargetId = 0;
-                mWhisperTargetList.clear();
+                if (!resume) {
+                    mVoiceTargetId = 0;
+                    mWhisperTargetList.clear();
+                    mRestoreChannelId = -1;
+                }
 
-                mConnection = new RimicConnection(this);
+                mConnection = createConnection();
                 mConnection.setForceTCP(mForceTcp);
+                mConnection.setUseDatagramChannel(mUseDatagramChannel);
+                mConnection.setUDPSendDeadline(mUDPSendDeadline);
                 mConnection.setUseTor(mUseTor);
                 mConnection.setKeys(mCertificate, mCertificatePassword);
                 mConnection.setTrustStore(mTrustStore, mTrustStorePassword, mTrustStoreFormat);
+                mConnection.setSocketFactory(getSocketFactory(mServer.getHost(), mServer.getPort()));
 
                 mModelHandler = new ModelHandler(this, mCallbacks, this,
-                        mLocalMuteHistory, mLocalIgnoreHistory);
-                mConnection.addTCPMessageHandlers(mModelHandler);
+                        mLocalMuteHistory, mLocalIgnoreHistory, mBlobCache);
+                mConnection.addTCPMessageHandler(mModelHandler, ModelHandler.MESSAGE_TYPES);
+                // Subscribed after the model, so that requests complete once the model has the blob.
+                mBlobBatcher = new RequestBlobBatcher(mHandler,
+                        new CachingBlobSender(mConnection, mModelHandler, mBlobCache),
+                        RequestBlobBatcher.DEFAULT_DELAY);
+                mConnection.addTCPMessageHandler(mBlobBatcher, RequestBlobBatcher.MESSAGE_TYPES);
 
                 mConnectionState = ConnectionState.CONNECTING;
 
                 mCallbacks.onConnecting();
 
-                mConnection.connect(mServer.getSrvHost(), mServer.getSrvPort());
+                mConnection.connect(mServer.getHost(), mServer.getPort());
             } catch (RimicException e) {
                 e.printStackTrace();
+                // No attempt is live, so the next one must not be turned away as in progress.
+                mConnectionState = ConnectionState.DISCONNECTED;
                 mCallbacks.onDisconnected(e);
+                mReconnector.onAttemptFailed();
             }
             inProcConnect = false;
         }
     }
 
+    /**
+     * Creates the connection for an attempt. Overridden in tests.
+     */
+    protected RimicConnection createConnection() {
+        return new RimicConnection(this);
+    }
+
+    /**
+     * Returns the socket factory for the given server, creating it on first use.
+     */
+    private RimicSSLSocketFactory getSocketFactory(String host, int port) throws RimicException {
+        final String key = host + ":" + port;
+        synchronized (mSocketFactories) {
+            RimicSSLSocketFactory factory = mSocketFactories.get(key);
+            if (factory == null) {
+                factory = RimicConnection.createSocketFactory(mCertificate, mCertificatePassword,
+                        mTrustStore, mTrustStorePassword, mTrustStoreFormat);
+                mSocketFactories.put(key, factory);
+            }
+            return factory;
+        }
+    }
+
+    /**
+     * Drops the cached socket factories, and with them their TLS sessions.
+     */
+    private void invalidateSocketFactories() {
+        synchronized (mSocketFactories) {
+            mSocketFactories.clear();
+        }
+    }
+
     public void disconnect() {
         synchronized (vObjectLockDiconnect) {
+            cancelReconnect();
             if (mConnection != null) {
                 mConnection.disconnect();
-
-                if (!inMistakeConnection) {
-                    tryUnregisterReceiver(RECEIVERS_CLASS.BR_BLUETOOTH);
-                    //tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
-                    tryUnregisterReceiver(RECEIVERS_CLASS.BR_WAKEUP_MON);
-                    tryUnregisterReceiver(RECEIVERS_CLASS.BR_TICKS);
-                    try {
-                        if (vAm != null && vPi != null) {
-                            vAm.cancel(vPi);
-                            vAm = null;
-                            vPi = null;
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    vMistakeCntConn = 0;
-                    logMon.stopTicks();
-                } else {
-                    Log.i(Constants.TAG, "Disconnect: in Mistake Connection hold");
-                }
+                tryUnregisterReceiver(RECEIVERS_CLASS.BR_BLUETOOTH);
             }
         }
     }
@@ -783,10 +653,6 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
 
     @Override
     public void onConnectionEstablished() {
-        inMistakeConnection = false;
-        synchronized (vObjectLockinMistake) {
-            vMistakeCntConn = 0;
-        }
         // Send version information and authenticate.
         final Mumble.Version.Builder version = Mumble.Version.newBuilder();
         version.setRelease(mClientName);
@@ -824,21 +690,8 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
 
         Log.v(Constants.TAG, "Connected");
 
-        logMon.stopTicks();
-
+        final boolean resumed = mReconnector.onConnected();
         tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
-        tryUnregisterReceiver(RECEIVERS_CLASS.BR_WAKEUP_MON);
-        tryUnregisterReceiver(RECEIVERS_CLASS.BR_TICKS);
-
-        try {
-            if (vAm != null && vPi != null) {
-                vAm.cancel(vPi);
-                vAm = null;
-                vPi = null;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
 
         setWakeLock(WAKE_TYPE.SET_TIME_ACQUIRE, 300000);
         setWiFiLock(WAKE_TYPE.ACQUIRE_PERMANENT);
@@ -873,7 +726,7 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
                     mModelHandler.getUser(mConnection.getSession()),
                     mConnection.getMaxBandwidth(), mConnection.getCodec(),
                     mVoiceTargetId);
-            mConnection.addTCPMessageHandlers(mAudioHandler);
+            mConnection.addTCPMessageHandler(mAudioHandler, AudioHandler.MESSAGE_TYPES);
             mConnection.addUDPMessageHandlers(mAudioHandler);
         } catch (AudioException e) {
             e.printStackTrace();
@@ -882,6 +735,11 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
             throw new RuntimeException("Connection should be synchronized in callback for synchronization!", e);
         }
 
+        if (resumed) {
+            restoreSession();
+            mReconnector.onRestored();
+        }
+
         mCallbacks.onConnected();
     }
 
@@ -895,26 +753,45 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         setWakeLock(WAKE_TYPE.RELEASE);
         setWiFiLock(WAKE_TYPE.RELEASE);
 
+        final boolean reconnect = e != null && mAutoReconnect
+                && e.getReason() == RimicException.RimicDisconnectReason.CONNECTION_ERROR;
         if (e != null) {
             Log.e(Constants.TAG, "Service Error: " + e.getMessage() +
                     " (reason: " + e.getReason().name() + ")");
             mConnectionState = ConnectionState.CONNECTION_LOST;
-
-            setReconnecting(mAutoReconnect
-                    && e.getReason() == RimicException.RimicDisconnectReason.CONNECTION_ERROR);
         } else {
             Log.i(Constants.TAG, "Service Disconnected");
             mConnectionState = ConnectionState.DISCONNECTED;
         }
 
+        if (reconnect) {
+            saveSessionState();
+        }
+
         if (mAudioHandler != null) {
             mAudioHandler.shutdown();
         }
 
+        if (mBlobBatcher != null) {
+            mBlobBatcher.cancelAll();
+        }
+
         mModelHandler = null;
+        mBlobBatcher = null;
         mAudioHandler = null;
-        mVoiceTargetId = 0;
-        mWhisperTargetList.clear();
+
+        if (reconnect) {
+            if (mReconnector.getState() == RimicReconnector.State.CONNECTING) {
+                mReconnector.onAttemptFailed();
+            } else {
+                setReconnecting(true);
+            }
+        } else {
+            cancelReconnect();
+            mVoiceTargetId = 0;
+            mWhisperTargetList.clear();
+            mRestoreChannelId = -1;
+        }
 
         // Halt SCO connection on shutdown.
         mBluetoothReceiver.stopBluetoothSco();
@@ -945,36 +822,80 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     }
 
     public void setReconnecting(boolean reconnecting) {
-        if (vMistakeCntConn > 1) {
-            setWakeLock(WAKE_TYPE.TRY_ACQUIRE_TIME, 180000);
-            setWakeScreen(WAKE_TYPE.SET_TIME_ACQUIRE, 10000);
+        if (!reconnecting) {
+            cancelReconnect();
+            return;
         }
+        if (mReconnector.isReconnecting()) return;
+        mReconnector.setBaseDelay(mAutoReconnectDelay);
+        register_receiver(RECEIVERS_CLASS.BR_CONNECTIVITY,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        mReconnector.start();
+    }
 
-        if (mReconnecting) {
-            synchronized (vObjectLockinMistake) {
-                vMistakeCntConn++;
-            }
+    protected boolean isNetworkAvailable() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * Remembers the channel and self mute and deafen state of the synchronized session, to
+     * restore after reconnecting. Keeps the previous state if the session never synchronized.
+     */
+    private void saveSessionState() {
+        if (mModelHandler == null) return;
+        final User self = mModelHandler.getSessionUser();
+        if (self == null) return;
+        mRestoreChannelId = self.getChannel() != null ? self.getChannel().getId() : -1;
+        mRestoreSelfMute = self.isSelfMuted();
+        mRestoreSelfDeaf = self.isSelfDeafened();
+    }
+
+    /**
+     * Rejoins the previous channel, restores self mute and deafen, and registers the previous
+     * whisper targets again, sending everything to the server in a single write.
+     */
+    private void restoreSession() {
+        final User self = mModelHandler.getSessionUser();
+        if (self == null) return;
+
+        final List<com.google.protobuf.Message> messages = new ArrayList<com.google.protobuf.Message>();
+        final List<RimicTCPMessageType> types = new ArrayList<RimicTCPMessageType>();
+
+        final Mumble.UserState.Builder usb = Mumble.UserState.newBuilder();
+        usb.setSession(self.getSession());
+        boolean changed = false;
+        if (mRestoreChannelId >= 0 && mModelHandler.getChannel(mRestoreChannelId) != null
+                && (self.getChannel() == null || self.getChannel().getId() != mRestoreChannelId)) {
+            usb.setChannelId(mRestoreChannelId);
+            changed = true;
+        }
+        if (self.isSelfMuted() != mRestoreSelfMute || self.isSelfDeafened() != mRestoreSelfDeaf) {
+            usb.setSelfMute(mRestoreSelfMute);
+            usb.setSelfDeaf(mRestoreSelfDeaf);
+            changed = true;
+        }
+        if (changed) {
+            messages.add(usb.build());
+            types.add(RimicTCPMessageType.UserState);
         }
 
-        if (mReconnecting == reconnecting)
-            return;
+        for (byte id = WhisperTargetList.TARGET_MIN; id <= WhisperTargetList.TARGET_MAX; id++) {
+            final WhisperTarget target = mWhisperTargetList.get(id);
+            if (target == null) continue;
+            final Mumble.VoiceTarget.Builder vtb = Mumble.VoiceTarget.newBuilder();
+            vtb.setId(id);
+            vtb.addTargets(target.createTarget());
+            messages.add(vtb.build());
+            types.add(RimicTCPMessageType.VoiceTarget);
+        }
 
-        mReconnecting = reconnecting;
-        if (reconnecting) {
-            setAlarm(120000);
-            inMistakeConnection = true;
-            synchronized (vObjectLockinMistake) {
-                vMistakeCntConn++;
-            }
-            ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
-            NetworkInfo info = cm.getActiveNetworkInfo();
-            if (info != null && info.isConnected()) {
-                Log.v(Constants.TAG, "Connection lost due to non-connectivity issue. Start reconnect polling.");
-            } else {
-                // In the event that we've lost connectivity, don't poll. Wait until network
-                // returns before we resume connection attempts.
-                Log.v(Constants.TAG, "Connection lost due to connectivity issue. Waiting until network returns.");
-            }
+        if (!messages.isEmpty()) {
+            mConnection.sendTCPMessages(messages, types);
+        }
+        if (mVoiceTargetId != 0) {
+            mCallbacks.onVoiceTargetChanged(VoiceTargetMode.fromId(mVoiceTargetId));
         }
     }
 
@@ -999,7 +920,7 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
                     mModelHandler.getUser(mConnection.getSession()),
                     mConnection.getMaxBandwidth(), mConnection.getCodec(),
                     mVoiceTargetId);
-            mConnection.addTCPMessageHandlers(mAudioHandler);
+            mConnection.addTCPMessageHandler(mAudioHandler, AudioHandler.MESSAGE_TYPES);
             mConnection.addUDPMessageHandlers(mAudioHandler);
         } catch (NotSynchronizedException e) {
             throw new RuntimeException("Attempted to create audio handler when not synchronized!");
@@ -1021,16 +942,21 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         }
         if (extras.containsKey(EXTRAS_AUTO_RECONNECT)) {
             mAutoReconnect = extras.getBoolean(EXTRAS_AUTO_RECONNECT);
+            if (!mAutoReconnect) cancelReconnect();
         }
         if (extras.containsKey(EXTRAS_AUTO_RECONNECT_DELAY)) {
             mAutoReconnectDelay = extras.getInt(EXTRAS_AUTO_RECONNECT_DELAY);
         }
         if (extras.containsKey(EXTRAS_CERTIFICATE)) {
-            mCertificate = extras.getByteArray(EXTRAS_CERTIFICATE);
+            byte[] certificate = extras.getByteArray(EXTRAS_CERTIFICATE);
+            if (!Arrays.equals(certificate, mCertificate)) invalidateSocketFactories();
+            mCertificate = certificate;
             reconnectNeeded = true;
         }
         if (extras.containsKey(EXTRAS_CERTIFICATE_PASSWORD)) {
-            mCertificatePassword = extras.getString(EXTRAS_CERTIFICATE_PASSWORD);
+            String certificatePassword = extras.getString(EXTRAS_CERTIFICATE_PASSWORD);
+            if (!TextUtils.equals(certificatePassword, mCertificatePassword)) invalidateSocketFactories();
+            mCertificatePassword = certificatePassword;
             reconnectNeeded = true;
         }
         if (extras.containsKey(EXTRAS_DETECTION_THRESHOLD)) {
@@ -1076,6 +1002,16 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
             mForceTcp |= extras.getBoolean(EXTRAS_FORCE_TCP);
             reconnectNeeded = true;
         }
+        if (extras.containsKey(EXTRAS_UDP_DATAGRAM_CHANNEL)) {
+            mUseDatagramChannel = extras.getBoolean(EXTRAS_UDP_DATAGRAM_CHANNEL);
+            reconnectNeeded = true;
+        }
+        if (extras.containsKey(EXTRAS_UDP_SEND_DEADLINE)) {
+            mUDPSendDeadline = extras.getInt(EXTRAS_UDP_SEND_DEADLINE);
+            if (mConnection != null) {
+                mConnection.setUDPSendDeadline(mUDPSendDeadline);
+            }
+        }
         if (extras.containsKey(EXTRAS_CLIENT_NAME)) {
             mClientName = extras.getString(EXTRAS_CLIENT_NAME);
             reconnectNeeded = true;
@@ -1096,15 +1032,21 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
             mAudioBuilder.setTargetFramesPerPacket(extras.getInt(EXTRAS_FRAMES_PER_PACKET));
         }
         if (extras.containsKey(EXTRAS_TRUST_STORE)) {
-            mTrustStore = extras.getString(EXTRAS_TRUST_STORE);
+            String trustStore = extras.getString(EXTRAS_TRUST_STORE);
+            if (!TextUtils.equals(trustStore, mTrustStore)) invalidateSocketFactories();
+            mTrustStore = trustStore;
             reconnectNeeded = true;
         }
         if (extras.containsKey(EXTRAS_TRUST_STORE_PASSWORD)) {
-            mTrustStorePassword = extras.getString(EXTRAS_TRUST_STORE_PASSWORD);
+            String trustStorePassword = extras.getString(EXTRAS_TRUST_STORE_PASSWORD);
+            if (!TextUtils.equals(trustStorePassword, mTrustStorePassword)) invalidateSocketFactories();
+            mTrustStorePassword = trustStorePassword;
             reconnectNeeded = true;
         }
         if (extras.containsKey(EXTRAS_TRUST_STORE_FORMAT)) {
-            mTrustStoreFormat = extras.getString(EXTRAS_TRUST_STORE_FORMAT);
+            String trustStoreFormat = extras.getString(EXTRAS_TRUST_STORE_FORMAT);
+            if (!TextUtils.equals(trustStoreFormat, mTrustStoreFormat)) invalidateSocketFactories();
+            mTrustStoreFormat = trustStoreFormat;
             reconnectNeeded = true;
         }
         if (extras.containsKey(EXTRAS_HALF_DUPLEX)) {
@@ -1223,30 +1165,21 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
 
     @Override
     public boolean isReconnecting() {
-        return mReconnecting;
+        return mReconnector.isReconnecting();
     }
 
     @Override
     public void cancelReconnect() {
-        setReconnecting(false);
-        //tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
-        tryUnregisterReceiver(RECEIVERS_CLASS.BR_WAKEUP_MON);
-        tryUnregisterReceiver(RECEIVERS_CLASS.BR_TICKS);
-        try {
-            if (vAm != null && vPi != null) {
-                vAm.cancel(vPi);
-                vAm = null;
-                vPi = null;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        synchronized (vObjectLockinMistake) {
-            inMistakeConnection = false;
-            vMistakeCntConn = 0;
+        if (mReconnector.isReconnecting()) {
+            Log.i(Constants.TAG, "Cancel Reconnecting");
         }
-        Log.i(Constants.TAG, "Cancel Reconnecting");
-        logMon.stopTicks();
+        mReconnector.cancel();
+        tryUnregisterReceiver(RECEIVERS_CLASS.BR_CONNECTIVITY);
+    }
+
+    @Override
+    public long getReconnectRecoveryTime() {
+        return mReconnector.getLastRecoveryTime();
     }
 
     @Override
@@ -1279,6 +1212,24 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         }
     }
 
+    @Override
+    public PingStatistics.Snapshot getTCPPingStatistics() {
+        try {
+            return getConnection().getTCPPingStatistics();
+        } catch (NotConnectedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public PingStatistics.Snapshot getUDPPingStatistics() {
+        try {
+            return getConnection().getUDPPingStatistics();
+        } catch (NotConnectedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     @Override
     public int getMaxBandwidth() {
         try {
@@ -1382,6 +1333,12 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         return getChannel(0);
     }
 
+    @Override
+    public ModelSnapshot getModelSnapshot() {
+        final ModelHandler modelHandler = mModelHandler;
+        return modelHandler != null ? modelHandler.getSnapshot() : ModelSnapshot.EMPTY;
+    }
+
     @Override
     public int getPermissions() {
         try {
@@ -1489,24 +1446,30 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
     }
 
     @Override
-    public void requestComment(int session) {
-        Mumble.RequestBlob.Builder rbb = Mumble.RequestBlob.newBuilder();
-        rbb.addSessionComment(session);
-        getConnection().sendTCPMessage(rbb.build(), RimicTCPMessageType.RequestBlob);
+    public Future<Void> requestComment(int session) {
+        final User user = mModelHandler != null ? mModelHandler.getUser(session) : null;
+        if (user != null && user.getComment() != null) return RequestBlobBatcher.completed();
+        return getBlobBatcher().requestComment(session);
     }
 
     @Override
-    public void requestAvatar(int session) {
-        Mumble.RequestBlob.Builder rbb = Mumble.RequestBlob.newBuilder();
-        rbb.addSessionTexture(session);
-        getConnection().sendTCPMessage(rbb.build(), RimicTCPMessageType.RequestBlob);
+    public Future<Void> requestAvatar(int session) {
+        final User user = mModelHandler != null ? mModelHandler.getUser(session) : null;
+        if (user != null && user.getTextureBuffer() != null) return RequestBlobBatcher.completed();
+        return getBlobBatcher().requestTexture(session);
     }
 
     @Override
-    public void requestChannelDescription(int channel) {
-        Mumble.RequestBlob.Builder rbb = Mumble.RequestBlob.newBuilder();
-        rbb.addChannelDescription(channel);
-        getConnection().sendTCPMessage(rbb.build(), RimicTCPMessageType.RequestBlob);
+    public Future<Void> requestChannelDescription(int channel) {
+        final Channel model = mModelHandler != null ? mModelHandler.getChannel(channel) : null;
+        if (model != null && model.getDescription() != null) return RequestBlobBatcher.completed();
+        return getBlobBatcher().requestDescription(channel);
+    }
+
+    private RequestBlobBatcher getBlobBatcher() {
+        final RequestBlobBatcher batcher = mBlobBatcher;
+        if (batcher == null) throw new IllegalStateException("Not connected");
+        return batcher;
     }
 
     @Override
@@ -1614,10 +1577,26 @@ public class RimicService extends Service implements IRimicService, IRimicSessio
         mCallbacks.registerObserver(observer);
     }
 
+    @Override
+    public void registerObserver(IRimicObserver observer, Executor executor,
+                                 long talkStateInterval) {
+        mCallbacks.registerObserver(observer, executor, talkStateInterval);
+    }
+
     public void unregisterObserver(IRimicObserver observer) {
         mCallbacks.unregisterObserver(observer);
     }
 
+    @Override
+    public RimicCallbacks.Subscription getObserverSubscription(IRimicObserver observer) {
+        return mCallbacks.getSubscription(observer);
+    }
+
+    @Override
+    public void setObserverExecutor(Executor executor) {
+        mCallbacks.setExecutor(executor);
+    }
+
     @Override
     public boolean isConnected() {
         return mConnectionState == ConnectionState.CONNECTED;
@@ -74,11 +74,6 @@ public class RimicWakeUpMon extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
         fireBroadcast(context);
-        int mistake_cnt = RimicService.getMistakeCntConn();
-        if (RimicService.isInMistakeConnection() && mistake_cnt > 1) {
-            Log.v(Constants.TAG, "Intent: Increasing mistake cnt: " + mistake_cnt);
-            RimicService.increaseMistakeCntConn();
-        }
         Log.v(Constants.TAG, "Intent: " + action);
         try {
             vObjectLockTone.lock();
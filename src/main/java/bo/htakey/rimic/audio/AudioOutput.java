@@ -27,16 +27,16 @@ import android.os.Looper;
 import android.os.Process;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -50,12 +50,18 @@ import bo.htakey.rimic.model.User;
 import bo.htakey.rimic.net.PacketBuffer;
 import bo.htakey.rimic.net.RimicUDPMessageType;
 import bo.htakey.rimic.protocol.AudioHandler;
+import bo.htakey.rimic.util.ConcurrentIntMap;
+import bo.htakey.rimic.util.ConcurrentLongQueue;
 
 /**
  * Created by andrew on 16/07/13.
  */
 public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListener {
-    private Map<Integer,AudioOutputSpeech> mAudioOutputs = new HashMap<>();
+    /** Number of talk state transitions that may wait for the main thread. */
+    private static final int TALK_STATE_QUEUE_CAPACITY = 256;
+    private static final TalkState[] TALK_STATES = TalkState.values();
+
+    private ConcurrentIntMap<AudioOutputSpeech> mAudioOutputs = new ConcurrentIntMap<>();
     private AudioTrack mAudioTrack;
     private int mBufferSize;
     private Thread mThread;
@@ -68,6 +74,31 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
     private ExecutorService mDecodeExecutorService;
     private int sessionId = 0;
 
+    /** Talk state transitions from the decode threads, as the session and state ordinal. */
+    private final ConcurrentLongQueue mTalkStates =
+            new ConcurrentLongQueue(TALK_STATE_QUEUE_CAPACITY);
+    private final long[] mTalkStateBatch = new long[TALK_STATE_QUEUE_CAPACITY];
+    private final AtomicBoolean mTalkStateDrainPosted = new AtomicBoolean();
+    private final Runnable mTalkStateDrain = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so that a transition queued during the drain posts another.
+            mTalkStateDrainPosted.set(false);
+            int count;
+            while ((count = mTalkStates.drainTo(mTalkStateBatch)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    final long entry = mTalkStateBatch[i];
+                    final User user = mListener.getUser((int) (entry >>> 32));
+                    final TalkState state = TALK_STATES[(int) entry];
+                    if (user != null && user.getTalkState() != state) {
+                        user.setTalkState(state);
+                        mListener.onUserTalkStateUpdated(user);
+                    }
+                }
+            }
+        }
+    };
+
     public AudioOutput(AudioOutputListener listener) {
         mListener = listener;
         mMainHandler = new Handler(Looper.getMainLooper());
@@ -263,12 +294,18 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
         return true;
     }
 
-    public void queueVoiceData(byte[] data, RimicUDPMessageType messageType) {
+    /**
+     * Queues a voice packet for playback.
+     * @param data A buffer holding the packet between its position and limit. The buffer's
+     *             position is left unchanged, and its contents are copied before returning.
+     * @param messageType The codec of the packet.
+     */
+    public void queueVoiceData(ByteBuffer data, RimicUDPMessageType messageType) {
         if(!mRunning)
             return;
 
-        byte msgFlags = (byte) (data[0] & 0x1f);
-        PacketBuffer pds = new PacketBuffer(data, data.length);
+        byte msgFlags = (byte) (data.get(data.position()) & 0x1f);
+        PacketBuffer pds = new PacketBuffer(data.slice());
         pds.skip(1);
         int session = (int) pds.readLong();
         User user = mListener.getUser(session);
@@ -315,17 +352,13 @@ public class AudioOutput implements Runnable, AudioOutputSpeech.TalkStateListene
     }
 
     @Override
-    public void onTalkStateUpdated(final int session, final TalkState state) {
-        mMainHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                final User user = mListener.getUser(session);
-                if(user != null && user.getTalkState() != state) {
-                    user.setTalkState(state);
-                    mListener.onUserTalkStateUpdated(user);
-                }
-            }
-        });
+    public boolean onTalkStateUpdated(int session, TalkState state) {
+        if (!mTalkStates.offer(((long) session << 32) | state.ordinal())) return false;
+        // One drain is posted for all transitions queued until it runs.
+        if (mTalkStateDrainPosted.compareAndSet(false, true)) {
+            mMainHandler.post(mTalkStateDrain);
+        }
+        return true;
     }
 
     public static interface AudioOutputListener {
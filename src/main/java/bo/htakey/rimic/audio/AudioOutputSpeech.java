@@ -44,7 +44,11 @@ import bo.htakey.rimic.protocol.AudioHandler;
 public class AudioOutputSpeech implements Callable<AudioOutputSpeech.Result> {
 
     interface TalkStateListener {
-        public void onTalkStateUpdated(int session, TalkState state);
+        /**
+         * Called from a decode thread when the speaker's talk state changes.
+         * @return false if the change could not be queued, so that it is retried on the next pass.
+         */
+        public boolean onTalkStateUpdated(int session, TalkState state);
     }
 
     private IDecoder mDecoder;
@@ -70,6 +74,8 @@ public class AudioOutputSpeech implements Callable<AudioOutputSpeech.Result> {
     private IntPointer avail = new IntPointer(1);
 
     private TalkStateListener mTalkStateListener;
+    /** The last talk state published to the listener. */
+    private TalkState mTalkState = TalkState.PASSIVE;
 
     public AudioOutputSpeech(User user, RimicUDPMessageType codec, int requestedSamples, TalkStateListener listener) throws NativeAudioException {
         // TODO: consider implementing resampling if some Android devices not support 48kHz?
@@ -311,7 +317,11 @@ public class AudioOutputSpeech implements Callable<AudioOutputSpeech.Result> {
                 break;
         }
 
-        mTalkStateListener.onTalkStateUpdated(mUser.getSession(), talkState);
+        // Only transitions are published; most passes leave the state unchanged.
+        if (talkState != mTalkState
+                && mTalkStateListener.onTalkStateUpdated(mUser.getSession(), talkState)) {
+            mTalkState = talkState;
+        }
 
         boolean tmp = mLastAlive;
         mLastAlive = nextAlive;
@@ -34,6 +34,8 @@ public final class Channel implements IChannel, Comparable<Channel> {
     private List<User> mUsers;
     private List<Channel> mLinks;
     private int mPermissions;
+    /** Users in this channel and all of its subchannels, kept up to date as the tree changes. */
+    private int mSubtreeUserCount;
 
     public Channel() {
         mSubchannels = new ArrayList<Channel>();
@@ -51,21 +53,17 @@ public final class Channel implements IChannel, Comparable<Channel> {
      * @see User#setChannel(Channel)
      */
     protected void addUser(User user) {
-        for (int i = 0; i < mUsers.size(); i++) {
-            User u = mUsers.get(i);
-            if (user.compareTo(u) <= 0) {
-                mUsers.add(i, user);
-                return;
-            }
-        }
-        mUsers.add(user);
+        insertSorted(mUsers, user);
+        addToSubtreeUserCount(1);
     }
 
     /**
      * @see User#setChannel(Channel)
      */
     protected void removeUser(User user) {
-        mUsers.remove(user);
+        if (removeSorted(mUsers, user)) {
+            addToSubtreeUserCount(-1);
+        }
     }
 
     @Override
@@ -88,7 +86,11 @@ public final class Channel implements IChannel, Comparable<Channel> {
     }
 
     public void setPosition(int mPosition) {
+        // Move this channel to its new place among its siblings.
+        final Channel parent = mParent;
+        final boolean indexed = parent != null && parent.removeSubchannelInternal(this);
         this.mPosition = mPosition;
+        if (indexed) parent.addSubchannel(this);
     }
 
     @Override
@@ -115,7 +117,10 @@ public final class Channel implements IChannel, Comparable<Channel> {
     }
 
     public void setName(String mName) {
+        final Channel parent = mParent;
+        final boolean indexed = parent != null && parent.removeSubchannelInternal(this);
         this.mName = mName;
+        if (indexed) parent.addSubchannel(this);
     }
 
     @Override
@@ -141,19 +146,23 @@ public final class Channel implements IChannel, Comparable<Channel> {
         return Collections.unmodifiableList(mSubchannels);
     }
 
+    /**
+     * Adds a subchannel in sorted order, and makes this channel its parent.
+     */
     public void addSubchannel(Channel channel) {
-        for (int i = 0; i < mSubchannels.size(); i++) {
-            Channel sc = mSubchannels.get(i);
-            if (channel.compareTo(sc) <= 0) {
-                mSubchannels.add(i, channel);
-                return;
-            }
-        }
-        mSubchannels.add(channel);
+        channel.mParent = this;
+        insertSorted(mSubchannels, channel);
+        addToSubtreeUserCount(channel.mSubtreeUserCount);
     }
 
     public void removeSubchannel(Channel channel) {
-        mSubchannels.remove(channel);
+        removeSubchannelInternal(channel);
+    }
+
+    private boolean removeSubchannelInternal(Channel channel) {
+        if (!removeSorted(mSubchannels, channel)) return false;
+        addToSubtreeUserCount(-channel.mSubtreeUserCount);
+        return true;
     }
 
     @Override
@@ -162,18 +171,12 @@ public final class Channel implements IChannel, Comparable<Channel> {
     }
 
     public void addLink(Channel channel) {
-        for (int i = 0; i < mLinks.size(); i++) {
-            Channel sc = mLinks.get(i);
-            if (channel.compareTo(sc) <= 0) {
-                mLinks.add(i, channel);
-                return;
-            }
-        }
-        mLinks.add(channel);
+        if (channel == null) return;
+        insertSorted(mLinks, channel);
     }
 
     public void removeLink(Channel channel) {
-        mLinks.remove(channel);
+        removeSorted(mLinks, channel);
     }
 
     public void clearLinks() {
@@ -181,16 +184,22 @@ public final class Channel implements IChannel, Comparable<Channel> {
     }
 
     /**
-     * Recursively fetches the subchannel user count.
-     * FIXME: is it necessary to cache this?
+     * Fetches the subchannel user count, which is maintained as users and subchannels are added
+     * and removed.
      * @return The sum of users in this channel and its subchannel.
      */
     public int getSubchannelUserCount() {
-        int userCount = mUsers.size();
-        for (Channel subc : mSubchannels) {
-            userCount += subc.getSubchannelUserCount();
+        return mSubtreeUserCount;
+    }
+
+    /**
+     * Adds to the subtree user count of this channel and its ancestors.
+     */
+    private void addToSubtreeUserCount(int delta) {
+        if (delta == 0) return;
+        for (Channel channel = this; channel != null; channel = channel.mParent) {
+            channel.mSubtreeUserCount += delta;
         }
-        return userCount;
     }
 
     @Override
@@ -221,8 +230,51 @@ public final class Channel implements IChannel, Comparable<Channel> {
 
     @Override
     public int compareTo(Channel another) {
-        if(mPosition != another.getPosition())
-            return ((Integer)mPosition).compareTo(another.getPosition());
-        return mName.compareTo(another.getName());
+        if(mPosition != another.mPosition)
+            return mPosition < another.mPosition ? -1 : 1;
+        // Stub channels have no name until their state arrives.
+        if (mName == null || another.mName == null)
+            return (mName == null ? 0 : 1) - (another.mName == null ? 0 : 1);
+        return mName.compareTo(another.mName);
+    }
+
+    /**
+     * Inserts an item before the first item that does not order before it, found by binary search.
+     */
+    private static <T extends Comparable<? super T>> void insertSorted(List<T> list, T item) {
+        int index = Collections.binarySearch(list, item);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // Keep equally ordered items in insertion order, newest first.
+            while (index > 0 && list.get(index - 1).compareTo(item) == 0) index--;
+        }
+        list.add(index, item);
+    }
+
+    /**
+     * Removes an item from a sorted list, found by binary search.
+     * @return true if the item was in the list.
+     */
+    private static <T extends Comparable<? super T>> boolean removeSorted(List<T> list, T item) {
+        final int index = Collections.binarySearch(list, item);
+        if (index >= 0) {
+            // Search the run of equally ordered items around the match.
+            for (int i = index; i >= 0 && list.get(i).compareTo(item) == 0; i--) {
+                if (list.get(i).equals(item)) {
+                    list.remove(i);
+                    return true;
+                }
+            }
+            for (int i = index + 1; i < list.size() && list.get(i).compareTo(item) == 0; i++) {
+                if (list.get(i).equals(item)) {
+                    list.remove(i);
+                    return true;
+                }
+            }
+        }
+        // The list may be out of order for an item whose sort key changed since it was added,
+        // such as a linked channel that was renamed.
+        return list.remove(item);
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.model;
+
+import java.util.List;
+
+/**
+ * An immutable copy of a channel's state, as part of a {@link ModelSnapshot}.
+ * Related channels and users are referred to by ID, and resolved through the snapshot.
+ */
+public final class ChannelSnapshot {
+    private final int mId;
+    private final int mParentId;
+    private final int mPosition;
+    private final boolean mTemporary;
+    private final String mName;
+    private final String mDescription;
+    private final byte[] mDescriptionHash;
+    private final int mPermissions;
+    private final int mSubchannelUserCount;
+    /** In the order of {@link Channel#getSubchannels()}. */
+    private final int[] mSubchannels;
+    /** In the order of {@link Channel#getUsers()}. */
+    private final int[] mUsers;
+    private final int[] mLinks;
+
+    /**
+     * Copies the current state of a channel. Must be called on the thread that updates it.
+     */
+    public ChannelSnapshot(Channel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Copies the current state of a channel, sharing the ID arrays of an earlier copy where they
+     * have not changed. Must be called on the thread that updates the channel.
+     * @param previous An earlier copy of the channel, or null.
+     */
+    public ChannelSnapshot(Channel channel, ChannelSnapshot previous) {
+        mId = channel.getId();
+        mParentId = channel.getParent() != null ? channel.getParent().getId() : -1;
+        mPosition = channel.getPosition();
+        mTemporary = channel.isTemporary();
+        mName = channel.getName();
+        mDescription = channel.getDescription();
+        final byte[] hash = channel.getDescriptionHash();
+        mDescriptionHash = hash != null ? hash.clone() : null;
+        mPermissions = channel.getPermissions();
+        mSubchannelUserCount = channel.getSubchannelUserCount();
+
+        final List<Channel> subchannels = channel.getSubchannels();
+        mSubchannels = previous != null && sameChannels(previous.mSubchannels, subchannels)
+                ? previous.mSubchannels : channelIds(subchannels);
+        final List<User> users = channel.getUsers();
+        if (previous != null && sameUsers(previous.mUsers, users)) {
+            mUsers = previous.mUsers;
+        } else {
+            mUsers = new int[users.size()];
+            for (int i = 0; i < mUsers.length; i++) mUsers[i] = users.get(i).getSession();
+        }
+        final List<Channel> links = channel.getLinks();
+        mLinks = previous != null && sameChannels(previous.mLinks, links)
+                ? previous.mLinks : channelIds(links);
+    }
+
+    private ChannelSnapshot(ChannelSnapshot base, int subchannelUserCount) {
+        mId = base.mId;
+        mParentId = base.mParentId;
+        mPosition = base.mPosition;
+        mTemporary = base.mTemporary;
+        mName = base.mName;
+        mDescription = base.mDescription;
+        mDescriptionHash = base.mDescriptionHash;
+        mPermissions = base.mPermissions;
+        mSubchannelUserCount = subchannelUserCount;
+        mSubchannels = base.mSubchannels;
+        mUsers = base.mUsers;
+        mLinks = base.mLinks;
+    }
+
+    /**
+     * @return This snapshot with a different subchannel user count, sharing all other state.
+     */
+    public ChannelSnapshot withSubchannelUserCount(int count) {
+        return count == mSubchannelUserCount ? this : new ChannelSnapshot(this, count);
+    }
+
+    private static int[] channelIds(List<Channel> channels) {
+        final int[] ids = new int[channels.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = channels.get(i).getId();
+        return ids;
+    }
+
+    private static boolean sameChannels(int[] ids, List<Channel> channels) {
+        if (ids.length != channels.size()) return false;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != channels.get(i).getId()) return false;
+        }
+        return true;
+    }
+
+    private static boolean sameUsers(int[] sessions, List<User> users) {
+        if (sessions.length != users.size()) return false;
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] != users.get(i).getSession()) return false;
+        }
+        return true;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return The ID of the parent channel, or -1 for the root.
+     */
+    public int getParentId() {
+        return mParentId;
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public boolean isTemporary() {
+        return mTemporary;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    public byte[] getDescriptionHash() {
+        return mDescriptionHash != null ? mDescriptionHash.clone() : null;
+    }
+
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    /**
+     * @return The sum of users in this channel and its subchannels.
+     */
+    public int getSubchannelUserCount() {
+        return mSubchannelUserCount;
+    }
+
+    public int getSubchannelCount() {
+        return mSubchannels.length;
+    }
+
+    public int getSubchannelId(int index) {
+        return mSubchannels[index];
+    }
+
+    public int getUserCount() {
+        return mUsers.length;
+    }
+
+    public int getUserSession(int index) {
+        return mUsers[index];
+    }
+
+    public int getLinkCount() {
+        return mLinks.length;
+    }
+
+    public int getLinkId(int index) {
+        return mLinks[index];
+    }
+}
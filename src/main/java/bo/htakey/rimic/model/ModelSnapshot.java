@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bo.htakey.rimic.util.PersistentIntMap;
+
+/**
+ * An immutable, consistent view of the channel tree and its users at one point in time.
+ *
+ * The live {@link Channel} and {@link User} objects are only safe to use on the thread that
+ * updates them. Other threads should read a snapshot instead: it never changes, so it can be
+ * iterated and traversed without locks while newer versions are published. Each version shares
+ * every channel and user left untouched with the version before it, so an update only copies the
+ * entities it changed, and the ancestors whose user counts changed.
+ */
+public final class ModelSnapshot {
+    /** The snapshot of a model without channels or users. */
+    public static final ModelSnapshot EMPTY = new ModelSnapshot(0, 0,
+            PersistentIntMap.<ChannelSnapshot>empty(), PersistentIntMap.<UserSnapshot>empty());
+
+    private final long mVersion;
+    private final int mSession;
+    private final PersistentIntMap<ChannelSnapshot> mChannels;
+    private final PersistentIntMap<UserSnapshot> mUsers;
+
+    private ModelSnapshot(long version, int session, PersistentIntMap<ChannelSnapshot> channels,
+                          PersistentIntMap<UserSnapshot> users) {
+        mVersion = version;
+        mSession = session;
+        mChannels = channels;
+        mUsers = users;
+    }
+
+    /**
+     * @return A number that increases with each published snapshot.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The session of this client, or 0 if not yet synchronized.
+     */
+    public int getSession() {
+        return mSession;
+    }
+
+    public ChannelSnapshot getChannel(int id) {
+        return mChannels.get(id);
+    }
+
+    public ChannelSnapshot getRootChannel() {
+        return mChannels.get(0);
+    }
+
+    public UserSnapshot getUser(int session) {
+        return mUsers.get(session);
+    }
+
+    public UserSnapshot getSessionUser() {
+        return mUsers.get(mSession);
+    }
+
+    /**
+     * @return The channel's parent, or null for the root.
+     */
+    public ChannelSnapshot getParent(ChannelSnapshot channel) {
+        return channel.getParentId() >= 0 ? mChannels.get(channel.getParentId()) : null;
+    }
+
+    /**
+     * @return The user's channel, or null if not in one.
+     */
+    public ChannelSnapshot getChannel(UserSnapshot user) {
+        return user.getChannelId() >= 0 ? mChannels.get(user.getChannelId()) : null;
+    }
+
+    /**
+     * @return The channel's subchannels, in display order.
+     */
+    public List<ChannelSnapshot> getSubchannels(ChannelSnapshot channel) {
+        final List<ChannelSnapshot> subchannels =
+                new ArrayList<ChannelSnapshot>(channel.getSubchannelCount());
+        for (int i = 0; i < channel.getSubchannelCount(); i++) {
+            final ChannelSnapshot subchannel = mChannels.get(channel.getSubchannelId(i));
+            if (subchannel != null) subchannels.add(subchannel);
+        }
+        return subchannels;
+    }
+
+    /**
+     * @return The users in the channel, in display order.
+     */
+    public List<UserSnapshot> getUsers(ChannelSnapshot channel) {
+        final List<UserSnapshot> users = new ArrayList<UserSnapshot>(channel.getUserCount());
+        for (int i = 0; i < channel.getUserCount(); i++) {
+            final UserSnapshot user = mUsers.get(channel.getUserSession(i));
+            if (user != null) users.add(user);
+        }
+        return users;
+    }
+
+    public List<ChannelSnapshot> getLinks(ChannelSnapshot channel) {
+        final List<ChannelSnapshot> links = new ArrayList<ChannelSnapshot>(channel.getLinkCount());
+        for (int i = 0; i < channel.getLinkCount(); i++) {
+            final ChannelSnapshot link = mChannels.get(channel.getLinkId(i));
+            if (link != null) links.add(link);
+        }
+        return links;
+    }
+
+    /**
+     * @return All channels, in no particular order.
+     */
+    public List<ChannelSnapshot> getChannels() {
+        return mChannels.values();
+    }
+
+    /**
+     * @return All users, in no particular order.
+     */
+    public List<UserSnapshot> getUsers() {
+        return mUsers.values();
+    }
+
+    public int getChannelCount() {
+        return mChannels.size();
+    }
+
+    public int getUserCount() {
+        return mUsers.size();
+    }
+
+    /**
+     * @return A builder for the next version, starting from this one.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Collects the changes for the next version. Builders are cheap, and not thread safe.
+     */
+    public static final class Builder {
+        private final long mVersion;
+        private int mSession;
+        private PersistentIntMap<ChannelSnapshot> mChannels;
+        private PersistentIntMap<UserSnapshot> mUsers;
+
+        private Builder(ModelSnapshot base) {
+            mVersion = base.mVersion + 1;
+            mSession = base.mSession;
+            mChannels = base.mChannels;
+            mUsers = base.mUsers;
+        }
+
+        public Builder setSession(int session) {
+            mSession = session;
+            return this;
+        }
+
+        /**
+         * @return The channel as of the changes so far, or null if there is none.
+         */
+        public ChannelSnapshot getChannel(int id) {
+            return mChannels.get(id);
+        }
+
+        public Builder putChannel(ChannelSnapshot channel) {
+            mChannels = mChannels.plus(channel.getId(), channel);
+            return this;
+        }
+
+        public Builder removeChannel(int id) {
+            mChannels = mChannels.minus(id);
+            return this;
+        }
+
+        public Builder putUser(UserSnapshot user) {
+            mUsers = mUsers.plus(user.getSession(), user);
+            return this;
+        }
+
+        public Builder removeUser(int session) {
+            mUsers = mUsers.minus(session);
+            return this;
+        }
+
+        /**
+         * Removes all channels and users, keeping the version increasing.
+         */
+        public Builder clear() {
+            mSession = 0;
+            mChannels = PersistentIntMap.empty();
+            mUsers = PersistentIntMap.empty();
+            return this;
+        }
+
+        public ModelSnapshot build() {
+            return new ModelSnapshot(mVersion, mSession, mChannels, mUsers);
+        }
+    }
+}
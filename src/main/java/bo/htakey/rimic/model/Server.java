@@ -21,20 +21,10 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
-import com.google.common.net.InetAddresses;
-
-import org.minidns.hla.ResolverApi;
-import org.minidns.hla.SrvResolverResult;
-import org.minidns.record.SRV;
-import org.minidns.util.SrvUtil;
-
-import java.io.IOException;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import bo.htakey.rimic.Constants;
+import bo.htakey.rimic.net.RimicResolver;
 
 public class Server implements Parcelable {
     private long mId;
@@ -44,8 +34,8 @@ public class Server implements Parcelable {
     private String mUsername;
     private String mPassword;
 
-    private String mResolvedHost = null;
-    private int mResolvedPort;
+    /** The SRV target chosen for the current host and port, or null until resolved. */
+    private RimicResolver.Target mResolvedTarget;
 
     public static final Parcelable.Creator<Server> CREATOR = new Parcelable.Creator<Server>() {
 
@@ -67,7 +57,6 @@ public class Server implements Parcelable {
         mPort = port;
         mUsername = username;
         mPassword = password;
-        mResolvedHost = null;
     }
 
     private Server(Parcel in) {
@@ -91,7 +80,6 @@ public class Server implements Parcelable {
         mPort = in.readInt();
         mUsername = in.readString();
         mPassword = in.readString();
-        mResolvedHost = null;
     }
 
     @Override
@@ -125,7 +113,7 @@ public class Server implements Parcelable {
 
     public void setHost(String mHost) {
         this.mHost = mHost;
-        this.mResolvedHost = null;
+        this.mResolvedTarget = null;
     }
 
     public int getPort() {
@@ -134,7 +122,7 @@ public class Server implements Parcelable {
 
     public void setPort(int mPort) {
         this.mPort = mPort;
-        this.mResolvedHost = null;
+        this.mResolvedTarget = null;
     }
 
     public String getUsername() {
@@ -161,72 +149,51 @@ public class Server implements Parcelable {
         return mId != -1;
     }
 
+    /**
+     * Returns the host of the preferred SRV target, or the host itself if it has a port or no SRV
+     * record. May block on the network.
+     * @see RimicResolver#resolve(String, int)
+     */
     public String getSrvHost() {
-        srvResolve();
-        return mResolvedHost;
+        return srvResolve().getHost();
     }
 
+    /**
+     * Returns the port of the preferred SRV target. May block on the network.
+     * @see #getSrvHost()
+     */
     public int getSrvPort() {
-        srvResolve();
-        return mResolvedPort;
+        return srvResolve().getPort();
     }
 
-    private synchronized void srvResolve() {
-        if (mResolvedHost != null) {
-            return;
-        }
-        // if we have a port then don't bother with SRV
-        if (mPort != 0) {
-            mResolvedHost = mHost;
-            mResolvedPort = mPort;
-            return;
-        }
-        // skip also IP addresses and Tor Onion Services (a pseudo-TLD)
-        if (InetAddresses.isInetAddress(mHost)
-                || mHost.endsWith(".onion")) {
-            mResolvedHost = mHost;
-            mResolvedPort = Constants.DEFAULT_PORT;
-            return;
+    /**
+     * Picks an SRV target once, so that the host and port come from the same record. The lookup
+     * runs on a worker thread, as network access is not allowed on the main thread.
+     */
+    private synchronized RimicResolver.Target srvResolve() {
+        if (mResolvedTarget != null) {
+            return mResolvedTarget;
         }
-        // set to our fallback values in case of no SRV or resolve fail
-        final AtomicReference<String> srvHost = new AtomicReference<>(mHost);
-        final AtomicInteger srvPort = new AtomicInteger(Constants.DEFAULT_PORT);
+        final String host = mHost;
+        final int port = mPort;
+        // Fall back to the host itself if the lookup does not finish.
+        final AtomicReference<RimicResolver.Target> target = new AtomicReference<>(
+                new RimicResolver.Target(host, port != 0 ? port : Constants.DEFAULT_PORT));
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                target.set(RimicResolver.getDefault().resolve(host, port).get(0));
+            }
+        }, "srvResolve");
+        t.start();
         try {
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        final String lookup = "_mumble._tcp." + srvHost.get();
-                        SrvResolverResult res = ResolverApi.INSTANCE.resolveSrv(lookup);
-                        if (!res.wasSuccessful()) {
-                            Log.d(Constants.TAG, "resolveSrv " + lookup + ": " + res.getResponseCode());
-                            return;
-                        }
-                        Set<SRV> answers = res.getAnswersOrEmptySet();
-                        if (answers.isEmpty()) {
-                            Log.d(Constants.TAG, "resolveSrv " + lookup + ": empty answer");
-                            return;
-                        }
-                        List<SRV> srvs = SrvUtil.sortSrvRecords(answers);
-                        for (SRV srv : srvs) {
-                            Log.d(Constants.TAG, "resolved " + lookup + " SRV: " + srv.toString());
-                            srvHost.set(srv.target.toString());
-                            srvPort.set(srv.port);
-                            // TODO SRV just picking the first record.
-                            return;
-                        }
-                    } catch (IOException e) {
-                        Log.d(Constants.TAG, "resolveSRV() run() " + e);
-                    }
-                }
-            });
-            t.start();
             t.join();
+        } catch (InterruptedException e) {
+            Log.d(Constants.TAG, "srvResolve() " + e);
+            Thread.currentThread().interrupt();
+            return target.get();
         }
-        catch (Exception e) {
-            Log.d(Constants.TAG, "resolveSRV() " + e);
-        }
-        mResolvedHost = srvHost.get();
-        mResolvedPort = srvPort.get();
+        mResolvedTarget = target.get();
+        return mResolvedTarget;
     }
 }
@@ -19,11 +19,15 @@ package bo.htakey.rimic.model;
 
 import com.google.protobuf.ByteString;
 
+import java.nio.ByteBuffer;
+
 public class User implements IUser, Comparable<User> {
 
     private int mSession;
     private int mId = -1;
     private String mName;
+    /** The name as compared when sorting, computed once per rename. */
+    private String mSortKey = "";
     private String mComment;
     private ByteString mCommentHash;
     private ByteString mTexture;
@@ -58,6 +62,7 @@ public class User implements IUser, Comparable<User> {
     public User(int session, String name) {
         mSession = session;
         mName = name;
+        mSortKey = createSortKey(name);
     }
 
     @Override
@@ -99,7 +104,12 @@ public class User implements IUser, Comparable<User> {
     }
 
     public void setName(String mName) {
+        // Move this user to its new place in the channel's sorted user list.
+        final Channel channel = mChannel;
+        if (channel != null) channel.removeUser(this);
         this.mName = mName;
+        mSortKey = createSortKey(mName);
+        if (channel != null) channel.addUser(this);
     }
 
     @Override
@@ -129,6 +139,13 @@ public class User implements IUser, Comparable<User> {
         mTexture = texture;
     }
 
+    /**
+     * @return A read-only view of the texture, without copying it, or null if not loaded.
+     */
+    public ByteBuffer getTextureBuffer() {
+        return mTexture != null ? mTexture.asReadOnlyByteBuffer() : null;
+    }
+
     @Override
     public byte[] getTextureHash() {
         return mTextureHash != null ? mTextureHash.toByteArray() : null;
@@ -259,11 +276,16 @@ public class User implements IUser, Comparable<User> {
 
     @Override
     public int hashCode() {
-        return mId;
+        // Consistent with equals. The registered user ID is -1 for every unregistered user.
+        return mSession;
     }
 
     @Override
     public int compareTo(User another) {
-        return getName().toLowerCase().compareTo(another.getName().toLowerCase());
+        return mSortKey.compareTo(another.mSortKey);
+    }
+
+    private static String createSortKey(String name) {
+        return name != null ? name.toLowerCase() : "";
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.model;
+
+/**
+ * An immutable copy of a user's server-side state, as part of a {@link ModelSnapshot}.
+ * Local mute and ignore, talk state and the texture are not included; they change outside of
+ * server updates, and are read from the {@link User}.
+ */
+public final class UserSnapshot {
+    private final int mSession;
+    private final int mUserId;
+    private final int mChannelId;
+    private final String mName;
+    private final String mComment;
+    private final byte[] mCommentHash;
+    private final byte[] mTextureHash;
+    private final String mHash;
+    private final boolean mMuted;
+    private final boolean mDeafened;
+    private final boolean mSuppressed;
+    private final boolean mSelfMuted;
+    private final boolean mSelfDeafened;
+    private final boolean mPrioritySpeaker;
+    private final boolean mRecording;
+
+    /**
+     * Copies the current state of a user. Must be called on the thread that updates it.
+     */
+    public UserSnapshot(User user) {
+        mSession = user.getSession();
+        mUserId = user.getUserId();
+        mChannelId = user.getChannel() != null ? user.getChannel().getId() : -1;
+        mName = user.getName();
+        mComment = user.getComment();
+        mCommentHash = user.getCommentHash();
+        mTextureHash = user.getTextureHash();
+        mHash = user.getHash();
+        mMuted = user.isMuted();
+        mDeafened = user.isDeafened();
+        mSuppressed = user.isSuppressed();
+        mSelfMuted = user.isSelfMuted();
+        mSelfDeafened = user.isSelfDeafened();
+        mPrioritySpeaker = user.isPrioritySpeaker();
+        mRecording = user.isRecording();
+    }
+
+    public int getSession() {
+        return mSession;
+    }
+
+    public int getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * @return The ID of the user's channel, or -1 if not in one.
+     */
+    public int getChannelId() {
+        return mChannelId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getComment() {
+        return mComment;
+    }
+
+    public byte[] getCommentHash() {
+        return mCommentHash != null ? mCommentHash.clone() : null;
+    }
+
+    public byte[] getTextureHash() {
+        return mTextureHash != null ? mTextureHash.clone() : null;
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+
+    public boolean isMuted() {
+        return mMuted;
+    }
+
+    public boolean isDeafened() {
+        return mDeafened;
+    }
+
+    public boolean isSuppressed() {
+        return mSuppressed;
+    }
+
+    public boolean isSelfMuted() {
+        return mSelfMuted;
+    }
+
+    public boolean isSelfDeafened() {
+        return mSelfDeafened;
+    }
+
+    public boolean isPrioritySpeaker() {
+        return mPrioritySpeaker;
+    }
+
+    public boolean isRecording() {
+        return mRecording;
+    }
+}
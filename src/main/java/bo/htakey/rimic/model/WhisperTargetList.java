@@ -17,6 +17,8 @@
 
 package bo.htakey.rimic.model;
 
+import java.util.Arrays;
+
 /**
  * A simple implementation of a fixed-size whisper target list using a bit vector.
  * Created by andrew on 29/04/16.
@@ -50,13 +52,18 @@ public class WhisperTargetList {
         }
         if (freeId != -1) {
             mActiveTargets[freeId - TARGET_MIN] = target;
+            mTakenIds |= 1 << freeId;
         }
 
         return freeId;
     }
 
+    /**
+     * @param id The slot number.
+     * @return The target assigned to the slot, or null if the slot is free.
+     */
     public WhisperTarget get(byte id) {
-        if ((mTakenIds & (1 << id)) > 0)
+        if (id < TARGET_MIN || id > TARGET_MAX || (mTakenIds & (1 << id)) == 0)
             return null;
         return mActiveTargets[id - TARGET_MIN];
     }
@@ -66,6 +73,7 @@ public class WhisperTargetList {
             throw new IllegalArgumentException();
 
         mTakenIds &= ~(1 << slot);
+        mActiveTargets[slot - TARGET_MIN] = null;
     }
 
     public int spaceRemaining() {
@@ -81,5 +89,6 @@ public class WhisperTargetList {
     public void clear() {
         // Slots 0 and 31 are non-whisper targets.
         mTakenIds = 1 | (1 << 31);
+        Arrays.fill(mActiveTargets, null);
     }
 }
@@ -17,6 +17,7 @@
 
 package bo.htakey.rimic.net;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -41,27 +42,28 @@ import javax.crypto.spec.SecretKeySpec;
 public class CryptState {
     public static final int AES_BLOCK_SIZE = 16;
     private static final String AES_TRANSFORMATION = "AES/ECB/NoPadding";
+    /** Initial size of the bulk block buffers, enough for any packet that fits in a datagram. */
+    private static final int BULK_SIZE = 1024;
+
+    volatile int mUiGood = 0;
+    volatile int mUiLate = 0;
+    volatile int mUiLost = 0;
+    volatile int mUiResync = 0;
+    volatile int mUiRemoteGood = 0;
+    volatile int mUiRemoteLate = 0;
+    volatile int mUiRemoteLost = 0;
+    volatile int mUiRemoteResync = 0;
+    volatile long mLastGoodStart;
+    volatile long mLastRequestStart;
 
-    byte[] mRawKey = new byte[AES_BLOCK_SIZE];
-    byte[] mEncryptIV = new byte[AES_BLOCK_SIZE];
-    byte[] mDecryptIV = new byte[AES_BLOCK_SIZE];
-    byte[] mDecryptHistory = new byte[0x100];
-    int mUiGood = 0;
-    int mUiLate = 0;
-    int mUiLost = 0;
-    int mUiResync = 0;
-    int mUiRemoteGood = 0;
-    int mUiRemoteLate = 0;
-    int mUiRemoteLost = 0;
-    int mUiRemoteResync = 0;
-    Cipher mEncryptCipher;
-    Cipher mDecryptCipher;
-    long mLastGoodStart;
-    long mLastRequestStart;
-    boolean mInit = false;
+    /**
+     * The encrypt and decrypt halves for the current key. Replaced as a whole when the keys
+     * change, so that a packet is never processed with a mix of old and new key state.
+     */
+    private volatile KeyState mKeyState;
 
     public boolean isValid() {
-        return mInit;
+        return mKeyState != null;
     }
 
     /**
@@ -85,18 +87,33 @@ public class CryptState {
         mLastRequestStart = System.nanoTime();
     }
 
+    /**
+     * @return A copy of the current encrypt IV.
+     */
     public byte[] getEncryptIV() {
-        return mEncryptIV;
+        final KeyState keyState = mKeyState;
+        if (keyState == null) return new byte[AES_BLOCK_SIZE];
+        return keyState.mEncrypt.getIV();
     }
 
+    /**
+     * @return A copy of the current decrypt IV.
+     */
     public byte[] getDecryptIV() {
-        return mDecryptIV;
+        final KeyState keyState = mKeyState;
+        if (keyState == null) return new byte[AES_BLOCK_SIZE];
+        return keyState.mDecrypt.getIV();
     }
 
-    public synchronized void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) throws InvalidKeyException {
+    /**
+     * Replaces the key and both IVs. The new state is built up front and swapped in atomically;
+     * packets being processed concurrently finish with the old state.
+     */
+    public void setKeys(final byte[] rkey, final byte[] eiv, final byte[] div) throws InvalidKeyException {
+        final SecretKeySpec cryptKey = new SecretKeySpec(rkey, 0, AES_BLOCK_SIZE, "AES");
+        final KeyState keyState;
         try {
-            mEncryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
-            mDecryptCipher = Cipher.getInstance(AES_TRANSFORMATION);
+            keyState = new KeyState(new EncryptState(cryptKey, eiv), new DecryptState(cryptKey, div));
         } catch (final NoSuchAlgorithmException e) {
             e.printStackTrace();
             return;
@@ -104,238 +121,460 @@ public class CryptState {
             e.printStackTrace();
             return;
         }
+        mKeyState = keyState;
+    }
 
-        final SecretKeySpec cryptKey = new SecretKeySpec(rkey, "AES");
-        mRawKey = new byte[rkey.length];
-        System.arraycopy(rkey, 0, mRawKey, 0, AES_BLOCK_SIZE);
-        mEncryptIV = new byte[eiv.length];
-        System.arraycopy(eiv, 0, mEncryptIV, 0, AES_BLOCK_SIZE);
-        mDecryptIV = new byte[div.length];
-        System.arraycopy(div, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
-
-        mEncryptCipher.init(Cipher.ENCRYPT_MODE, cryptKey);
-        mDecryptCipher.init(Cipher.DECRYPT_MODE, cryptKey);
-
-        mInit = true;
+    /**
+     * Replaces the decrypt IV after a resync with the server, without touching the encrypt half.
+     * Does nothing if no keys have been set.
+     * @param div The new decrypt IV provided by the server.
+     */
+    public void setDecryptIV(final byte[] div) {
+        final KeyState keyState = mKeyState;
+        if (keyState != null) {
+            keyState.mDecrypt.setIV(div);
+        }
     }
 
     /**
      * Decrypts data using the OCB-AES128 standard.
      * @param source The encoded audio data.
      * @param length The length of the source array.
+     * @return The decrypted data, or null if the packet could not be decrypted.
+     * @see #decrypt(byte[], int, int, byte[], int)
      */
-    public synchronized byte[] decrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+    public byte[] decrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
         if (length < 4) return null;
 
-        final int plainLength = length - 4;
-        byte[] dst = new byte[plainLength];
+        final byte[] dst = new byte[length - 4];
+        return decrypt(source, 0, length, dst, 0) ? dst : null;
+    }
+
+    /**
+     * Decrypts data using the OCB-AES128 standard without allocating.
+     * The plaintext is written to dst and is always 4 bytes shorter than the encrypted packet.
+     * Decrypting in place is supported, as long as dstOffset <= srcOffset + 4.
+     * May run concurrently with {@link #encrypt(byte[], int, int, byte[], int)}.
+     * @param src The buffer containing the encrypted packet.
+     * @param srcOffset The offset of the packet in src.
+     * @param length The length of the encrypted packet, including the 4 byte header.
+     * @param dst The buffer to write the plaintext to.
+     * @param dstOffset The offset in dst to write the plaintext to.
+     * @return true if the packet was decrypted successfully.
+     */
+    public boolean decrypt(final byte[] src, final int srcOffset, final int length,
+                           final byte[] dst, final int dstOffset) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        final KeyState keyState = mKeyState;
+        if (keyState == null || length < 4) return false;
+        return keyState.mDecrypt.decrypt(src, srcOffset, length, dst, dstOffset);
+    }
+
+    /**
+     * Decrypts the packet between the buffer's position and limit in place.
+     * On success, the position is advanced past the 4 byte header, leaving the plaintext between
+     * the position and the limit. On failure, the buffer contents are undefined.
+     * Buffers without an accessible array are staged through a scratch array of the decrypt half.
+     * @param packet The buffer containing the encrypted packet.
+     * @return true if the packet was decrypted successfully.
+     */
+    public boolean decrypt(final ByteBuffer packet) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        final KeyState keyState = mKeyState;
+        final int length = packet.remaining();
+        if (keyState == null || length < 4) return false;
+
+        final boolean success;
+        if (packet.hasArray()) {
+            final int offset = packet.arrayOffset() + packet.position();
+            success = keyState.mDecrypt.decrypt(packet.array(), offset, length, packet.array(), offset + 4);
+        } else {
+            success = keyState.mDecrypt.decrypt(packet);
+        }
+        if (success) {
+            packet.position(packet.position() + 4);
+        }
+        return success;
+    }
 
-        final byte[] saveiv = new byte[AES_BLOCK_SIZE];
-        final short ivbyte = (short) (source[0] & 0xFF);
-        boolean restore = false;
-        final byte[] tag = new byte[AES_BLOCK_SIZE];
+    /**
+     * Encrypts data using the OCB-AES128 standard.
+     * @param source The plaintext data.
+     * @param length The length of the plaintext.
+     * @return The encrypted packet, 4 bytes longer than the plaintext.
+     * @see #encrypt(byte[], int, int, byte[], int)
+     */
+    public byte[] encrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        final byte[] dst = new byte[length + 4];
+        encrypt(source, 0, length, dst, 0);
+        return dst;
+    }
 
-        int lost = 0;
-        int late = 0;
+    /**
+     * Encrypts data using the OCB-AES128 standard without allocating.
+     * The encrypted packet written to dst is always 4 bytes longer than the plaintext.
+     * Encrypting in place is supported, as long as dstOffset + 4 <= srcOffset.
+     * May run concurrently with {@link #decrypt(byte[], int, int, byte[], int)}.
+     * @param src The buffer containing the plaintext.
+     * @param srcOffset The offset of the plaintext in src.
+     * @param length The length of the plaintext.
+     * @param dst The buffer to write the encrypted packet to.
+     * @param dstOffset The offset in dst to write the encrypted packet to.
+     * @throws IllegalStateException if no keys have been set.
+     */
+    public void encrypt(final byte[] src, final int srcOffset, final int length,
+                        final byte[] dst, final int dstOffset) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        final KeyState keyState = mKeyState;
+        if (keyState == null) throw new IllegalStateException("CryptState keys have not been set");
+        keyState.mEncrypt.encrypt(src, srcOffset, length, dst, dstOffset);
+    }
 
-        System.arraycopy(mDecryptIV, 0, saveiv, 0, AES_BLOCK_SIZE);
+    /**
+     * @return The length of the blocks before the final block of an OCB message, which are
+     *         always full blocks. The final block is handled separately, even if it is full.
+     */
+    private static int getBulkLength(int length) {
+        if (length <= AES_BLOCK_SIZE) return 0;
+        return ((length - 1) / AES_BLOCK_SIZE) * AES_BLOCK_SIZE;
+    }
 
-        if (((mDecryptIV[0] + 1) & 0xFF) == ivbyte) {
-            // In order as expected.
-            if (ivbyte > (mDecryptIV[0] & 0xFF)) {
-                mDecryptIV[0] = (byte) ivbyte;
-            } else if (ivbyte < (mDecryptIV[0] & 0xFF)) {
-                mDecryptIV[0] = (byte) ivbyte;
-                for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-                    if ((++mDecryptIV[i]) != 0) {
-                        break;
-                    }
-                }
-            } else {
-                return null;
-            }
-        } else {
-            // This is either out of order or a repeat.
-            int diff = ivbyte - (mDecryptIV[0] & 0xFF);
-            if (diff > 128) {
-                diff = diff - 256;
-            } else if (diff < -128) {
-                diff = diff + 256;
-            }
+    private static Cipher createCipher(int mode, SecretKeySpec key) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+        final Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION);
+        cipher.init(mode, key);
+        return cipher;
+    }
 
-            if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
-                // Late packet, but no wraparound.
-                late = 1;
-                lost = -1;
-                mDecryptIV[0] = (byte) ivbyte;
-                restore = true;
-            } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > -30) &&
-                    (diff < 0)) {
-                // Last was 0x02, here comes 0xff from last round
-                late = 1;
-                lost = -1;
-                mDecryptIV[0] = (byte) ivbyte;
-                for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-                    if ((mDecryptIV[i]--) != 0) {
-                        break;
-                    }
-                }
-                restore = true;
-            } else if ((ivbyte > (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
-                // Lost a few packets, but beyond that we're good.
-                lost = ivbyte - mDecryptIV[0] - 1;
-                mDecryptIV[0] = (byte) ivbyte;
-            } else if ((ivbyte < (mDecryptIV[0] & 0xFF)) && (diff > 0)) {
-                // Lost a few packets, and wrapped around
-                lost = 256 - (mDecryptIV[0] & 0xFF) + ivbyte - 1;
-                mDecryptIV[0] = (byte) ivbyte;
-                for (int i = 1; i < AES_BLOCK_SIZE; i++) {
-                    if ((++mDecryptIV[i]) != 0) {
-                        break;
-                    }
-                }
-            } else {
-                return null;
-            }
+    private static class KeyState {
+        private final EncryptState mEncrypt;
+        private final DecryptState mDecrypt;
 
-            if (mDecryptHistory[mDecryptIV[0] & 0xFF] == mEncryptIV[0]) {
-                System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
-                return null;
-            }
+        public KeyState(EncryptState encrypt, DecryptState decrypt) {
+            mEncrypt = encrypt;
+            mDecrypt = decrypt;
+        }
+    }
+
+    /**
+     * The encrypting half of the state. Owns its cipher, IV and scratch blocks, and is guarded by
+     * its own lock so that sending never waits on a packet being decrypted.
+     */
+    private static class EncryptState {
+        private final Cipher mCipher;
+        private final byte[] mIV = new byte[AES_BLOCK_SIZE];
+
+        // Scratch blocks, reused between packets to avoid allocating on every encrypt.
+        private final byte[] mChecksum = new byte[AES_BLOCK_SIZE];
+        private final byte[] mTmp = new byte[AES_BLOCK_SIZE];
+        private final byte[] mDelta = new byte[AES_BLOCK_SIZE];
+        private final byte[] mPad = new byte[AES_BLOCK_SIZE];
+        private final byte[] mTag = new byte[AES_BLOCK_SIZE];
+        private byte[] mOffsets = new byte[BULK_SIZE];
+        private byte[] mBulk = new byte[BULK_SIZE];
+
+        public EncryptState(SecretKeySpec key, byte[] iv) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+            mCipher = createCipher(Cipher.ENCRYPT_MODE, key);
+            System.arraycopy(iv, 0, mIV, 0, AES_BLOCK_SIZE);
         }
 
-        final byte[] tagShiftedDst = new byte[plainLength];
-        System.arraycopy(source, 4, tagShiftedDst, 0, plainLength);
+        public synchronized byte[] getIV() {
+            return mIV.clone();
+        }
 
-        ocbDecrypt(tagShiftedDst, dst, mDecryptIV, tag);
+        public synchronized void encrypt(final byte[] src, final int srcOffset, final int length,
+                                         final byte[] dst, final int dstOffset) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final byte[] tag = mTag;
 
-        if (tag[0] != source[1] || tag[1] != source[2] || tag[2] != source[3]) {
-            System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
-            return null;
+            // First, increase our IV.
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                if ((++mIV[i]) != 0) {
+                    break;
+                }
+            }
+
+            ocbEncrypt(src, srcOffset, dst, dstOffset + 4, length, mIV, tag);
+
+            dst[dstOffset] = mIV[0];
+            dst[dstOffset + 1] = tag[0];
+            dst[dstOffset + 2] = tag[1];
+            dst[dstOffset + 3] = tag[2];
         }
-        mDecryptHistory[mDecryptIV[0] & 0xff] = mDecryptIV[1];
 
-        if (restore)
-            System.arraycopy(saveiv, 0, mDecryptIV, 0, AES_BLOCK_SIZE);
+        private void ensureBulkCapacity(int length) {
+            if (mBulk.length < length) {
+                mOffsets = new byte[length];
+                mBulk = new byte[length];
+            }
+        }
 
-        mUiGood++;
-        mUiLate += late;
-        mUiLost += lost;
+        private void ocbEncrypt(byte[] plain, int plainOffset, byte[] encrypted, int encryptedOffset,
+                                int plainLength, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final byte[] checksum = mChecksum;
+            final byte[] tmp = mTmp;
+            final byte[] delta = mDelta;
+            final byte[] pad = mPad;
+
+            CryptSupport.ZERO(checksum);
+            mCipher.doFinal(nonce, 0, AES_BLOCK_SIZE, delta, 0);
+
+            // Every block but the last goes through the cipher in a single call. The offsets are
+            // computed up front, whitening the plaintext into one contiguous buffer.
+            final int bulkLength = getBulkLength(plainLength);
+            if (bulkLength > 0) {
+                ensureBulkCapacity(bulkLength);
+                final byte[] offsets = mOffsets;
+                final byte[] bulk = mBulk;
+                for (int i = 0; i < bulkLength; i += AES_BLOCK_SIZE) {
+                    CryptSupport.S2(delta);
+                    System.arraycopy(delta, 0, offsets, i, AES_BLOCK_SIZE);
+                    CryptSupport.XOR(checksum, 0, checksum, 0, plain, plainOffset + i);
+                    CryptSupport.XOR(bulk, i, delta, 0, plain, plainOffset + i);
+                }
 
-        mLastGoodStart = System.nanoTime();
-        return dst;
-    }
+                // Never encrypt in place, some providers copy the input when it aliases the output.
+                mCipher.update(bulk, 0, bulkLength, encrypted, encryptedOffset);
 
-    public void ocbDecrypt(byte[] encrypted, byte[] plain, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
-        final byte[] checksum = new byte[AES_BLOCK_SIZE];
-        final byte[] tmp = new byte[AES_BLOCK_SIZE];
+                for (int i = 0; i < bulkLength; i += AES_BLOCK_SIZE) {
+                    CryptSupport.XOR(encrypted, encryptedOffset + i, encrypted, encryptedOffset + i, offsets, i);
+                }
+            }
 
-        final byte[] delta = mEncryptCipher.doFinal(nonce);
+            final int offset = bulkLength;
+            final int len = plainLength - bulkLength;
 
-        int offset = 0;
-        int len = encrypted.length;
-        while (len > AES_BLOCK_SIZE) {
-            final byte[] buffer = new byte[AES_BLOCK_SIZE];
             CryptSupport.S2(delta);
-            System.arraycopy(encrypted, offset, buffer, 0, AES_BLOCK_SIZE);
+            CryptSupport.ZERO(tmp);
+            final long num = len * 8;
+            tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
+            tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
+            CryptSupport.XOR(tmp, tmp, delta);
+
+            mCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, pad, 0);
+
+            System.arraycopy(plain, plainOffset + offset, tmp, 0, len);
+            System.arraycopy(pad, len, tmp, len, AES_BLOCK_SIZE - len);
+            CryptSupport.XOR(checksum, checksum, tmp);
+            CryptSupport.XOR(tmp, pad, tmp);
+
+            System.arraycopy(tmp, 0, encrypted, encryptedOffset + offset, len);
+            CryptSupport.S3(delta);
+            CryptSupport.XOR(tmp, delta, checksum);
+            mCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag, 0);
+        }
+    }
 
-            CryptSupport.XOR(tmp, delta, buffer);
-            mDecryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
+    /**
+     * The decrypting half of the state. OCB decryption needs the forward cipher as well, so this
+     * half keeps its own instance of both rather than sharing the encrypting half's cipher.
+     */
+    private class DecryptState {
+        private final Cipher mEncryptCipher;
+        private final Cipher mDecryptCipher;
+        private final byte[] mIV = new byte[AES_BLOCK_SIZE];
+        private final byte[] mHistory = new byte[0x100];
+
+        // Scratch blocks, reused between packets to avoid allocating on every decrypt.
+        private final byte[] mChecksum = new byte[AES_BLOCK_SIZE];
+        private final byte[] mTmp = new byte[AES_BLOCK_SIZE];
+        private final byte[] mDelta = new byte[AES_BLOCK_SIZE];
+        private final byte[] mPad = new byte[AES_BLOCK_SIZE];
+        private final byte[] mTag = new byte[AES_BLOCK_SIZE];
+        private final byte[] mSaveIV = new byte[AES_BLOCK_SIZE];
+        private byte[] mOffsets = new byte[BULK_SIZE];
+        private byte[] mBulk = new byte[BULK_SIZE];
+        private byte[] mPacket = new byte[BULK_SIZE];
+
+        public DecryptState(SecretKeySpec key, byte[] iv) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+            mEncryptCipher = createCipher(Cipher.ENCRYPT_MODE, key);
+            mDecryptCipher = createCipher(Cipher.DECRYPT_MODE, key);
+            System.arraycopy(iv, 0, mIV, 0, AES_BLOCK_SIZE);
+        }
+
+        public synchronized byte[] getIV() {
+            return mIV.clone();
+        }
 
-            CryptSupport.XOR(buffer, delta, tmp);
-            System.arraycopy(buffer, 0, plain, offset, AES_BLOCK_SIZE);
+        public synchronized void setIV(byte[] iv) {
+            System.arraycopy(iv, 0, mIV, 0, AES_BLOCK_SIZE);
+        }
 
-            CryptSupport.XOR(checksum, checksum, buffer);
-            len -= AES_BLOCK_SIZE;
-            offset += AES_BLOCK_SIZE;
+        public synchronized boolean decrypt(final ByteBuffer packet) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final int position = packet.position();
+            final int length = packet.remaining();
+            if (mPacket.length < length) {
+                mPacket = new byte[length];
+            }
+            packet.get(mPacket, 0, length);
+            packet.position(position);
+            if (!decrypt(mPacket, 0, length, mPacket, 4)) {
+                return false;
+            }
+            packet.position(position + 4);
+            packet.put(mPacket, 4, length - 4);
+            packet.position(position);
+            return true;
         }
 
-        CryptSupport.S2(delta);
-        CryptSupport.ZERO(tmp);
+        public synchronized boolean decrypt(final byte[] src, final int srcOffset, final int length,
+                                            final byte[] dst, final int dstOffset) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final int plainLength = length - 4;
+            final byte[] saveiv = mSaveIV;
+            final short ivbyte = (short) (src[srcOffset] & 0xFF);
+            // Keep the header, an in place decryption may overwrite it.
+            final byte tag0 = src[srcOffset + 1];
+            final byte tag1 = src[srcOffset + 2];
+            final byte tag2 = src[srcOffset + 3];
+            boolean restore = false;
+
+            int lost = 0;
+            int late = 0;
+
+            System.arraycopy(mIV, 0, saveiv, 0, AES_BLOCK_SIZE);
+
+            if (((mIV[0] + 1) & 0xFF) == ivbyte) {
+                // In order as expected.
+                if (ivbyte > (mIV[0] & 0xFF)) {
+                    mIV[0] = (byte) ivbyte;
+                } else if (ivbyte < (mIV[0] & 0xFF)) {
+                    mIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((++mIV[i]) != 0) {
+                            break;
+                        }
+                    }
+                } else {
+                    return false;
+                }
+            } else {
+                // This is either out of order or a repeat.
+                int diff = ivbyte - (mIV[0] & 0xFF);
+                if (diff > 128) {
+                    diff = diff - 256;
+                } else if (diff < -128) {
+                    diff = diff + 256;
+                }
 
-        final long num = len * 8;
-        tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
-        tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
-        CryptSupport.XOR(tmp, tmp, delta);
+                if ((ivbyte < (mIV[0] & 0xFF)) && (diff > -30) && (diff < 0)) {
+                    // Late packet, but no wraparound.
+                    late = 1;
+                    lost = -1;
+                    mIV[0] = (byte) ivbyte;
+                    restore = true;
+                } else if ((ivbyte > (mIV[0] & 0xFF)) && (diff > -30) &&
+                        (diff < 0)) {
+                    // Last was 0x02, here comes 0xff from last round
+                    late = 1;
+                    lost = -1;
+                    mIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((mIV[i]--) != 0) {
+                            break;
+                        }
+                    }
+                    restore = true;
+                } else if ((ivbyte > (mIV[0] & 0xFF)) && (diff > 0)) {
+                    // Lost a few packets, but beyond that we're good.
+                    lost = ivbyte - mIV[0] - 1;
+                    mIV[0] = (byte) ivbyte;
+                } else if ((ivbyte < (mIV[0] & 0xFF)) && (diff > 0)) {
+                    // Lost a few packets, and wrapped around
+                    lost = 256 - (mIV[0] & 0xFF) + ivbyte - 1;
+                    mIV[0] = (byte) ivbyte;
+                    for (int i = 1; i < AES_BLOCK_SIZE; i++) {
+                        if ((++mIV[i]) != 0) {
+                            break;
+                        }
+                    }
+                } else {
+                    return false;
+                }
 
-        final byte[] pad = mEncryptCipher.doFinal(tmp);
-        CryptSupport.ZERO(tmp);
-        System.arraycopy(encrypted, offset, tmp, 0, len);
+                if (mHistory[mIV[0] & 0xFF] == mIV[1]) {
+                    System.arraycopy(saveiv, 0, mIV, 0, AES_BLOCK_SIZE);
+                    return false;
+                }
+            }
 
-        CryptSupport.XOR(tmp, tmp, pad);
-        CryptSupport.XOR(checksum, checksum, tmp);
+            final byte[] tag = mTag;
+            ocbDecrypt(src, srcOffset + 4, dst, dstOffset, plainLength, mIV, tag);
 
-        System.arraycopy(tmp, 0, plain, offset, len);
+            if (tag[0] != tag0 || tag[1] != tag1 || tag[2] != tag2) {
+                System.arraycopy(saveiv, 0, mIV, 0, AES_BLOCK_SIZE);
+                return false;
+            }
+            mHistory[mIV[0] & 0xff] = mIV[1];
 
-        CryptSupport.S3(delta);
-        CryptSupport.XOR(tmp, delta, checksum);
+            if (restore)
+                System.arraycopy(saveiv, 0, mIV, 0, AES_BLOCK_SIZE);
 
-        mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
-    }
+            mUiGood++;
+            mUiLate += late;
+            mUiLost += lost;
 
-    public synchronized byte[] encrypt(final byte[] source, final int length) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
-        final byte[] tag = new byte[AES_BLOCK_SIZE];
+            mLastGoodStart = System.nanoTime();
+            return true;
+        }
 
-        // First, increase our IV.
-        for (int i = 0; i < AES_BLOCK_SIZE; i++) {
-            if ((++mEncryptIV[i]) != 0) {
-                break;
+        private void ensureBulkCapacity(int length) {
+            if (mBulk.length < length) {
+                mOffsets = new byte[length];
+                mBulk = new byte[length];
             }
         }
 
-        final byte[] dst = new byte[length + 4];
-        ocbEncrypt(source, dst, length, mEncryptIV, tag);
+        private void ocbDecrypt(byte[] encrypted, int encryptedOffset, byte[] plain, int plainOffset,
+                                int length, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+            final byte[] checksum = mChecksum;
+            final byte[] tmp = mTmp;
+            final byte[] delta = mDelta;
+            final byte[] pad = mPad;
+
+            CryptSupport.ZERO(checksum);
+            mEncryptCipher.doFinal(nonce, 0, AES_BLOCK_SIZE, delta, 0);
+
+            // Every block but the last goes through the cipher in a single call, see ocbEncrypt.
+            // All encrypted blocks are read before any plaintext is written, it may be the same buffer.
+            final int bulkLength = getBulkLength(length);
+            if (bulkLength > 0) {
+                ensureBulkCapacity(bulkLength);
+                final byte[] offsets = mOffsets;
+                final byte[] bulk = mBulk;
+                for (int i = 0; i < bulkLength; i += AES_BLOCK_SIZE) {
+                    CryptSupport.S2(delta);
+                    System.arraycopy(delta, 0, offsets, i, AES_BLOCK_SIZE);
+                    CryptSupport.XOR(bulk, i, delta, 0, encrypted, encryptedOffset + i);
+                }
 
-        System.arraycopy(dst, 0, dst, 4, length);
-        dst[0] = mEncryptIV[0];
-        dst[1] = tag[0];
-        dst[2] = tag[1];
-        dst[3] = tag[2];
+                mDecryptCipher.update(bulk, 0, bulkLength, plain, plainOffset);
 
-        return dst;
-    }
-
-    public void ocbEncrypt(byte[] plain, byte[] encrypted, int plainLength, byte[] nonce, byte[] tag) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
-        final byte[] checksum = new byte[AES_BLOCK_SIZE];
-        final byte[] tmp = new byte[AES_BLOCK_SIZE];
+                for (int i = 0; i < bulkLength; i += AES_BLOCK_SIZE) {
+                    CryptSupport.XOR(plain, plainOffset + i, plain, plainOffset + i, offsets, i);
+                    CryptSupport.XOR(checksum, 0, checksum, 0, plain, plainOffset + i);
+                }
+            }
 
-        final byte[] delta = mEncryptCipher.doFinal(nonce);
+            final int offset = bulkLength;
+            final int len = length - bulkLength;
 
-        int offset = 0;
-        int len = plainLength;
-        while (len > AES_BLOCK_SIZE) {
-            final byte[] buffer = new byte[AES_BLOCK_SIZE];
             CryptSupport.S2(delta);
-            System.arraycopy(plain, offset, buffer, 0, AES_BLOCK_SIZE);
-            CryptSupport.XOR(checksum, checksum, buffer);
-            CryptSupport.XOR(tmp, delta, buffer);
+            CryptSupport.ZERO(tmp);
 
-            mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tmp);
+            final long num = len * 8;
+            tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
+            tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
+            CryptSupport.XOR(tmp, tmp, delta);
 
-            CryptSupport.XOR(buffer, delta, tmp);
-            System.arraycopy(buffer, 0, encrypted, offset, AES_BLOCK_SIZE);
-            len -= AES_BLOCK_SIZE;
-            offset += AES_BLOCK_SIZE;
-        }
+            mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, pad, 0);
+            CryptSupport.ZERO(tmp);
+            System.arraycopy(encrypted, encryptedOffset + offset, tmp, 0, len);
 
-        CryptSupport.S2(delta);
-        CryptSupport.ZERO(tmp);
-        final long num = len * 8;
-        tmp[AES_BLOCK_SIZE - 2] = (byte) ((num >> 8) & 0xFF);
-        tmp[AES_BLOCK_SIZE - 1] = (byte) (num & 0xFF);
-        CryptSupport.XOR(tmp, tmp, delta);
+            CryptSupport.XOR(tmp, tmp, pad);
+            CryptSupport.XOR(checksum, checksum, tmp);
 
-        final byte[] pad = mEncryptCipher.doFinal(tmp);
+            System.arraycopy(tmp, 0, plain, plainOffset + offset, len);
 
-        System.arraycopy(plain, offset, tmp, 0, len);
-        System.arraycopy(pad, len, tmp, len, AES_BLOCK_SIZE - len);
-        CryptSupport.XOR(checksum, checksum, tmp);
-        CryptSupport.XOR(tmp, pad, tmp);
+            CryptSupport.S3(delta);
+            CryptSupport.XOR(tmp, delta, checksum);
 
-        System.arraycopy(tmp, 0, encrypted, offset, len);
-        CryptSupport.S3(delta);
-        CryptSupport.XOR(tmp, delta, checksum);
-        mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag);
+            mEncryptCipher.doFinal(tmp, 0, AES_BLOCK_SIZE, tag, 0);
+        }
     }
 
     /**
@@ -351,6 +590,14 @@ public class CryptState {
             }
         }
 
+        public static void XOR(final byte[] dst, final int dstOffset,
+                               final byte[] a, final int aOffset,
+                               final byte[] b, final int bOffset) {
+            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
+                dst[dstOffset + i] = (byte) (a[aOffset + i] ^ b[bOffset + i]);
+            }
+        }
+
         public static void S2(final byte[] block) {
             int carry = (block[0] >> SHIFTBITS) & 0x1;
             for (int i = 0; i < AES_BLOCK_SIZE - 1; i++) {
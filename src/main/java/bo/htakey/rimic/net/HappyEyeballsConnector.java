@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import bo.htakey.rimic.Constants;
+
+/**
+ * Connects to the first reachable address of a host, in the style of RFC 8305.
+ * Addresses are interleaved by family, and a new attempt is started every
+ * {@link #ATTEMPT_DELAY} milliseconds, or as soon as the previous one fails, while the earlier
+ * attempts keep running. The first socket to connect is kept and the others are closed.
+ * The family that won is remembered per host, and tried first on the next connection.
+ * All methods are thread safe.
+ */
+public class HappyEyeballsConnector {
+    /** Delay before starting the next connection attempt, in milliseconds. */
+    public static final int ATTEMPT_DELAY = 250;
+    /** How long to wait for a single connection attempt, in milliseconds. */
+    public static final int CONNECT_TIMEOUT = 10000;
+
+    private static HappyEyeballsConnector sDefault;
+
+    private final ExecutorService mExecutor;
+    /** Whether IPv6 won the last connection, by host. */
+    private final Map<String, Boolean> mPreferIPv6 = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @return The connector shared by all connections.
+     */
+    public static synchronized HappyEyeballsConnector getDefault() {
+        if (sDefault == null) {
+            sDefault = new HappyEyeballsConnector();
+        }
+        return sDefault;
+    }
+
+    public HappyEyeballsConnector() {
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HappyEyeballs");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Races connections to the given addresses. Blocks until one connects or all have failed.
+     * @param host The host the addresses belong to, under which the winning family is recorded.
+     * @param addresses The addresses of the host, in the order given by the resolver.
+     * @param port The port to connect to.
+     * @return A connected socket.
+     * @throws IOException The error of the last attempt to fail, if none connected.
+     */
+    public Socket connect(String host, InetAddress[] addresses, int port) throws IOException {
+        if (addresses.length == 0) {
+            throw new IOException("No addresses to connect to for " + host);
+        }
+        final Boolean preferIPv6 = mPreferIPv6.get(host);
+        final List<InetAddress> ordered = orderAddresses(addresses,
+                preferIPv6 != null ? preferIPv6 : true);
+
+        final ExecutorCompletionService<Socket> completion = new ExecutorCompletionService<Socket>(mExecutor);
+        final List<Socket> sockets = new ArrayList<Socket>(ordered.size());
+        final List<Future<Socket>> attempts = new ArrayList<Future<Socket>>(ordered.size());
+        Socket winner = null;
+        IOException lastError = null;
+        int next = 0;
+        int pending = 0;
+        try {
+            while (true) {
+                if (next < ordered.size()) {
+                    final InetSocketAddress address = new InetSocketAddress(ordered.get(next++), port);
+                    final Socket socket = new Socket();
+                    sockets.add(socket);
+                    attempts.add(completion.submit(new Callable<Socket>() {
+                        @Override
+                        public Socket call() throws IOException {
+                            socket.connect(address, CONNECT_TIMEOUT);
+                            return socket;
+                        }
+                    }));
+                    pending++;
+                }
+                if (pending == 0) break;
+
+                // Give the attempts in flight a head start before racing the next address.
+                final Future<Socket> done = next < ordered.size()
+                        ? completion.poll(ATTEMPT_DELAY, TimeUnit.MILLISECONDS)
+                        : completion.take();
+                if (done == null) continue;
+                pending--;
+
+                try {
+                    winner = done.get();
+                    final boolean ipv6 = winner.getInetAddress() instanceof Inet6Address;
+                    mPreferIPv6.put(host, ipv6);
+                    Log.v(Constants.TAG, "HappyEyeballs: Connected to " + winner.getInetAddress() +
+                            " for " + host);
+                    return winner;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    lastError = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    Log.v(Constants.TAG, "HappyEyeballs: Attempt for " + host + " failed: " + cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + host);
+        } finally {
+            // Closing the losing sockets aborts their pending connects.
+            for (Socket socket : sockets) {
+                if (socket != winner) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            for (Future<Socket> attempt : attempts) {
+                attempt.cancel(false);
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Forgets the address families that won previous connections.
+     */
+    public void clear() {
+        mPreferIPv6.clear();
+    }
+
+    /**
+     * Interleaves addresses by family, starting with the preferred family. The order within each
+     * family is kept.
+     * @param addresses The addresses to order.
+     * @param preferIPv6 Whether to start with an IPv6 address, if there is one.
+     * @return The addresses in the order they should be attempted.
+     */
+    public static List<InetAddress> orderAddresses(InetAddress[] addresses, boolean preferIPv6) {
+        final List<InetAddress> preferred = new ArrayList<InetAddress>();
+        final List<InetAddress> other = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == preferIPv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+        final List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) ordered.add(preferred.get(i));
+            if (i < other.size()) ordered.add(other.get(i));
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport for the encrypted UDP voice and ping channel to a Mumble server.
+ * Implementations own the socket and its threads, and decrypt incoming datagrams using the
+ * connection's {@link CryptState} before handing them to the {@link UDPConnectionListener}.
+ * @see RimicUDP
+ * @see RimicUDPChannel
+ */
+public interface IUDPTransport {
+    /**
+     * Starts the transport's threads and connects to the given server.
+     * @param address The address of the server, as connected to over TCP.
+     * @param port The UDP port of the server.
+     */
+    void connect(InetAddress address, int port);
+
+    /**
+     * @return true if the transport is connected and receiving.
+     */
+    boolean isRunning();
+
+    /**
+     * @return The queue of outgoing datagrams, for configuring its deadline and reading its
+     *         counters.
+     */
+    RimicUDPSendQueue getSendQueue();
+
+    /**
+     * Encrypts and queues a datagram for sending. Can silently fail.
+     * @param data The plaintext datagram.
+     * @param length The length of the datagram.
+     */
+    void sendMessage(byte[] data, int length);
+
+    /**
+     * Lazy, non-blocking idempotent disconnect.
+     */
+    void disconnect();
+
+    /**
+     * Note that all connection state related calls are made on the main thread.
+     * onUDPDataReceived is always called on the UDP receive thread, so that voice never waits on
+     * the main looper. Implementations must hand off anything that is not latency sensitive.
+     */
+    interface UDPConnectionListener {
+        /**
+         * Called on the receive thread with a decrypted datagram.
+         * @param data A buffer holding the plaintext between its position and limit. It is only
+         *             valid for the duration of the call, and may be reused afterwards.
+         */
+        void onUDPDataReceived(ByteBuffer data);
+        void onUDPConnectionError(Exception e);
+        void resyncCryptState();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import java.util.Arrays;
+
+/**
+ * Rolling round trip time statistics for a single transport.
+ * Keeps the most recent samples in a ring, from which the mean, variance, extremes and
+ * percentiles are computed. The total number of samples is kept separately, as the Mumble
+ * protocol reports it alongside the averages.
+ * All methods are thread safe.
+ */
+public class PingStatistics {
+    /** Number of samples kept, about five minutes at the default ping interval. */
+    public static final int DEFAULT_WINDOW = 60;
+
+    private final long[] mSamples;
+    private int mNext;
+    private int mSize;
+    private long mTotal;
+    private long mLast;
+
+    public PingStatistics() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window The number of recent samples to compute statistics over.
+     */
+    public PingStatistics(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        mSamples = new long[window];
+    }
+
+    /**
+     * Records a round trip time.
+     * @param rtt The round trip time in microseconds. Negative values are ignored.
+     */
+    public synchronized void add(long rtt) {
+        if (rtt < 0) return;
+        mSamples[mNext] = rtt;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mSize < mSamples.length) mSize++;
+        mTotal++;
+        mLast = rtt;
+    }
+
+    public synchronized void reset() {
+        mNext = 0;
+        mSize = 0;
+        mTotal = 0;
+        mLast = 0;
+    }
+
+    /**
+     * @return The most recent round trip time in microseconds, or 0 if none was recorded.
+     */
+    public synchronized long getLast() {
+        return mLast;
+    }
+
+    /**
+     * @return The number of samples recorded since the last reset, including those no longer
+     *         in the window.
+     */
+    public synchronized long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return The statistics of the samples currently in the window.
+     */
+    public synchronized Snapshot snapshot() {
+        final long[] samples = new long[mSize];
+        // The oldest sample sits at mNext once the ring has wrapped, and at 0 before then.
+        final int start = mSize < mSamples.length ? 0 : mNext;
+        for (int i = 0; i < mSize; i++) {
+            samples[i] = mSamples[(start + i) % mSamples.length];
+        }
+        return new Snapshot(samples, mTotal, mLast);
+    }
+
+    /**
+     * An immutable view of the statistics at one point in time.
+     * Times are in milliseconds, as in the Mumble Ping message.
+     */
+    public static final class Snapshot {
+        private final long[] mSorted;
+        private final long mTotal;
+        private final long mLast;
+        private final double mMean;
+        private final double mVariance;
+
+        Snapshot(long[] samples, long total, long last) {
+            mTotal = total;
+            mLast = last;
+
+            double sum = 0;
+            for (long sample : samples) {
+                sum += sample;
+            }
+            mMean = samples.length > 0 ? sum / samples.length : 0;
+
+            double squares = 0;
+            for (long sample : samples) {
+                final double delta = sample - mMean;
+                squares += delta * delta;
+            }
+            mVariance = samples.length > 1 ? squares / (samples.length - 1) : 0;
+
+            Arrays.sort(samples);
+            mSorted = samples;
+        }
+
+        /**
+         * @return The number of samples in the window.
+         */
+        public int getCount() {
+            return mSorted.length;
+        }
+
+        /**
+         * @return The number of samples recorded over the connection.
+         */
+        public long getTotal() {
+            return mTotal;
+        }
+
+        public float getLast() {
+            return toMillis(mLast);
+        }
+
+        public float getMean() {
+            return toMillis(mMean);
+        }
+
+        /**
+         * @return The sample variance, in square milliseconds.
+         */
+        public float getVariance() {
+            return (float) (mVariance / 1000000d);
+        }
+
+        /**
+         * @return The standard deviation, a measure of jitter.
+         */
+        public float getStandardDeviation() {
+            return toMillis(Math.sqrt(mVariance));
+        }
+
+        public float getMin() {
+            return mSorted.length > 0 ? toMillis(mSorted[0]) : 0;
+        }
+
+        public float getMax() {
+            return mSorted.length > 0 ? toMillis(mSorted[mSorted.length - 1]) : 0;
+        }
+
+        /**
+         * Returns the nearest-rank percentile of the samples in the window.
+         * @param percentile The percentile, between 0 and 100.
+         * @return The round trip time at the given percentile, or 0 if there are no samples.
+         */
+        public float getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            if (mSorted.length == 0) return 0;
+            final int rank = (int) Math.ceil(percentile / 100 * mSorted.length);
+            return toMillis(mSorted[Math.max(rank - 1, 0)]);
+        }
+
+        private static float toMillis(double micros) {
+            return (float) (micros / 1000d);
+        }
+    }
+}
@@ -18,10 +18,12 @@
 package bo.htakey.rimic.net;
 
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
@@ -30,6 +32,7 @@ import org.spongycastle.jce.provider.BouncyCastleProvider;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
@@ -42,7 +45,9 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
@@ -59,7 +64,7 @@ import bo.htakey.rimic.protocol.RimicTCPMessageListener;
 import bo.htakey.rimic.protocol.RimicUDPMessageListener;
 import bo.htakey.rimic.util.RimicException;
 
-public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP.UDPConnectionListener {
+public class RimicConnection implements RimicTCP.TCPConnectionListener, IUDPTransport.UDPConnectionListener {
 
     /**
      * Message types that aren't shown in logcat.
@@ -84,35 +89,46 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
     private String mTrustStorePath;
     private String mTrustStorePassword;
     private String mTrustStoreFormat;
+    private RimicSSLSocketFactory mSocketFactory;
 
     // Threading
     private ScheduledExecutorService mPingExecutorService;
     private Handler mMainHandler;
-
-    // Networking and protocols
-    private RimicTCP mTCP;
-    private RimicUDP mUDP;
+    /** Single thread that parses and applies protocol messages, off the main thread. */
+    private HandlerThread mProtocolThread;
+    private Handler mProtocolHandler;
+
+    // Networking and protocols. Set on the protocol thread and cleared by disconnect(), so read
+    // them into a local before use.
+    private volatile RimicTCP mTCP;
+    private volatile IUDPTransport mUDP;
+    private UDPSupervisor mUDPSupervisor;
+    private UDPSupervisor.Listener mUDPStateListener;
     private ScheduledFuture<?> mPingTask;
     private boolean mUsingUDP = true;
     private boolean mForceTCP;
+    private boolean mUseDatagramChannel;
+    private int mUDPSendDeadline = RimicUDPSendQueue.DEFAULT_DEADLINE;
+    private int mTCPMaxFlushDelay = RimicTCP.DEFAULT_MAX_FLUSH_DELAY;
+    private int mTCPMaxMessageLength = RimicTCP.DEFAULT_MAX_MESSAGE_LENGTH;
     private boolean mUseTor;
-    private boolean mConnected;
-    private boolean mSynchronized;
+    private volatile boolean mConnected;
+    private volatile boolean mSynchronized;
     private RimicException mError;
     private boolean mExceptionHandled = false;
     private long mStartTimestamp; // Time that the connection was initiated in nanoseconds
     private final CryptState mCryptState = new CryptState();
 
     // Latency
-    private long mLastUDPPing;
-    private long mLastTCPPing;
+    private final PingStatistics mUDPPingStats = new PingStatistics();
+    private final PingStatistics mTCPPingStats = new PingStatistics();
 
     private static final int TIME_INTERVAL_PING = 5;
 
     // Server
     private String mHost;
     private int mPort;
-    private int mServerVersion;
+    private volatile int mServerVersion;
     private String mServerRelease;
     private String mServerOSName;
     private String mServerOSVersion;
@@ -125,7 +141,7 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
     private int mSession;
 
     // Message handlers
-    private ConcurrentLinkedQueue<RimicTCPMessageListener> mTCPHandlers = new ConcurrentLinkedQueue<RimicTCPMessageListener>();
+    private final RimicTCPMessageDispatcher mTCPDispatcher = new RimicTCPMessageDispatcher();
     private ConcurrentLinkedQueue<RimicUDPMessageListener> mUDPHandlers = new ConcurrentLinkedQueue<RimicUDPMessageListener>();
 
     /**
@@ -151,12 +167,7 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
             mMaxBandwidth = msg.hasMaxBandwidth() ? msg.getMaxBandwidth() : -1;
             mSynchronized = true;
 
-            mMainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mListener.onConnectionSynchronized();
-                }
-            });
+            mListener.onConnectionSynchronized();
         }
 
         @Override
@@ -210,11 +221,11 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
                     ByteString serverNonce = msg.getServerNonce();
                     if(serverNonce.size() == CryptState.AES_BLOCK_SIZE) {
                         mCryptState.mUiResync++;
-                        mCryptState.mDecryptIV = serverNonce.toByteArray();
+                        mCryptState.setDecryptIV(serverNonce.toByteArray());
                     }
                 } else {
                     Mumble.CryptSetup.Builder csb = Mumble.CryptSetup.newBuilder();
-                    csb.setClientNonce(ByteString.copyFrom(mCryptState.mEncryptIV));
+                    csb.setClientNonce(ByteString.copyFrom(mCryptState.getEncryptIV()));
                     sendTCPMessage(csb.build(), RimicTCPMessageType.CryptSetup);
                 }
             } catch (InvalidKeyException e) {
@@ -240,7 +251,11 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
 
             // In microseconds
             long elapsed = getElapsed();
-            mLastTCPPing = elapsed-msg.getTimestamp();
+            mTCPPingStats.add(elapsed-msg.getTimestamp());
+
+            // While the supervisor is recovering a failed transport, it decides when to switch.
+            mUDPSupervisor.checkRecovery();
+            if(mUDPSupervisor.getState() != UDPSupervisor.State.CONNECTED) return;
 
             if(((mCryptState.mUiRemoteGood == 0) || (mCryptState.mUiGood == 0)) && mUsingUDP && elapsed > 20000000) {
                 mUsingUDP = false;
@@ -263,18 +278,41 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
     private RimicUDPMessageListener mUDPPingListener = new RimicUDPMessageListener.Stub() {
 
         @Override
-        public void messageUDPPing(byte[] data) {
+        public void messageUDPPing(ByteBuffer data) {
 //            Log.v(Constants.TAG, "IN: UDP Ping");
-            byte[] timedata = new byte[8];
-            System.arraycopy(data, 1, timedata, 0, 8);
-            ByteBuffer buffer = ByteBuffer.allocate(8);
-            buffer.put(timedata);
-            buffer.flip();
-
-            long timestamp = buffer.getLong();
+            if (data.remaining() < 9) return;
+            long timestamp = data.getLong(data.position() + 1);
             long now = getElapsed();
-            mLastUDPPing = now-timestamp;
-            // TODO refresh UDP?
+            mUDPPingStats.add(now-timestamp);
+            mUDPSupervisor.checkRecovery();
+        }
+    };
+
+    private UDPSupervisor.Callback mUDPSupervisorCallback = new UDPSupervisor.Callback() {
+        @Override
+        public void stopTransport() {
+            mUsingUDP = false;
+            final IUDPTransport udp = mUDP;
+            if (udp != null) udp.disconnect();
+            // Ask the server to tunnel voice to us until UDP is back.
+            enableForceTCP();
+        }
+
+        @Override
+        public void restartTransport() {
+            if (mConnected) startUDP();
+        }
+
+        @Override
+        public void sendProbe() {
+            sendUDPPing(getElapsed());
+        }
+
+        @Override
+        public void resumeTransport() {
+            mUsingUDP = true;
+            if (mListener != null)
+                mListener.onConnectionWarning("UDP connection recovered. Switching back to UDP mode.");
         }
     };
 
@@ -285,12 +323,7 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
             long t = getElapsed();
 
             if (!shouldForceTCP()) {
-                ByteBuffer buffer = ByteBuffer.allocate(16);
-                buffer.put((byte) ((RimicUDPMessageType.UDPPing.ordinal() << 5) & 0xFF));
-                buffer.putLong(t);
-
-                sendUDPMessage(buffer.array(), 16, true);
-//                Log.v(Constants.TAG, "OUT: UDP Ping");
+                sendUDPPing(t);
             }
 
             Mumble.Ping.Builder pb = Mumble.Ping.newBuilder();
@@ -299,7 +332,16 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
             pb.setLate(mCryptState.mUiLate);
             pb.setLost(mCryptState.mUiLost);
             pb.setResync(mCryptState.mUiResync);
-            // TODO accumulate stats and send with ping
+
+            PingStatistics.Snapshot udp = mUDPPingStats.snapshot();
+            pb.setUdpPackets((int) udp.getTotal());
+            pb.setUdpPingAvg(udp.getMean());
+            pb.setUdpPingVar(udp.getVariance());
+
+            PingStatistics.Snapshot tcp = mTCPPingStats.snapshot();
+            pb.setTcpPackets((int) tcp.getTotal());
+            pb.setTcpPingAvg(tcp.getMean());
+            pb.setTcpPingVar(tcp.getVariance());
             sendTCPMessage(pb.build(), RimicTCPMessageType.Ping);
         }
     };
@@ -322,12 +364,24 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
      * Creates a new RimicConnection object to facilitate server connections.
      */
     public RimicConnection(RimicConnectionListener listener) {
-        mListener = listener;
         mMainHandler = new Handler(Looper.getMainLooper());
-        mTCPHandlers.add(mConnectionMessageHandler);
+        mListener = new MainThreadListener(listener);
+        mTCPDispatcher.subscribe(mConnectionMessageHandler, EnumSet.of(
+                RimicTCPMessageType.ServerSync,
+                RimicTCPMessageType.CodecVersion,
+                RimicTCPMessageType.Reject,
+                RimicTCPMessageType.UserRemove,
+                RimicTCPMessageType.CryptSetup,
+                RimicTCPMessageType.Version,
+                RimicTCPMessageType.Ping));
         mUDPHandlers.add(mUDPPingListener);
     }
 
+    /**
+     * Starts connecting to the server. Resolution happens on the TCP thread.
+     * @param host The host of the server.
+     * @param port The port of the server, or 0 to look up its SRV record.
+     */
     public void connect(String host, int port) throws RimicException {
         mHost = host;
         mPort = port;
@@ -339,15 +393,25 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
         mStartTimestamp = System.nanoTime();
         vCntCryptSetupTimout = 0;
         vCrypSetupLastTime = 0;
+        mTCPPingStats.reset();
+        mUDPPingStats.reset();
 
         mPingExecutorService = Executors.newSingleThreadScheduledExecutor();
+        mProtocolThread = new HandlerThread("RimicProtocol");
+        mProtocolThread.start();
+        mProtocolHandler = new Handler(mProtocolThread.getLooper());
+        mUDPSupervisor = new UDPSupervisor(mProtocolHandler, mCryptState, mUDPSupervisorCallback);
+        mUDPSupervisor.setListener(mUDPStateListener);
 
-        RimicSSLSocketFactory socketFactory = createSocketFactory();
+        RimicSSLSocketFactory socketFactory = mSocketFactory != null ? mSocketFactory : createSocketFactory();
 
         try {
-            mTCP = new RimicTCP(socketFactory);
-            mTCP.setTCPConnectionListener(this);
-            mTCP.connect(host, port, mUseTor);
+            final RimicTCP tcp = new RimicTCP(socketFactory, mProtocolThread.getLooper());
+            tcp.setTCPConnectionListener(this);
+            tcp.setMaxFlushDelay(mTCPMaxFlushDelay);
+            tcp.setMaxMessageLength(mTCPMaxMessageLength);
+            mTCP = tcp;
+            tcp.connect(host, port, mUseTor);
             // UDP thread is formally started after TCP connection.
         } catch (ConnectException e) {
             throw new RimicException(e, RimicException.RimicDisconnectReason.CONNECTION_ERROR);
@@ -371,12 +435,26 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
         return (System.nanoTime()-mStartTimestamp)/1000;
     }
 
+    /**
+     * Subscribes the handlers to every TCP message type.
+     * Prefer {@link #addTCPMessageHandler(RimicTCPMessageListener, Collection)} where the types
+     * handled are known.
+     */
     public void addTCPMessageHandlers(RimicTCPMessageListener... handlers) {
-        Collections.addAll(mTCPHandlers, handlers);
+        for (RimicTCPMessageListener handler : handlers) {
+            mTCPDispatcher.subscribeAll(handler);
+        }
+    }
+
+    /**
+     * Subscribes the handler to the given TCP message types only.
+     */
+    public void addTCPMessageHandler(RimicTCPMessageListener handler, Collection<RimicTCPMessageType> types) {
+        mTCPDispatcher.subscribe(handler, types);
     }
 
     public void removeTCPMessageHandler(RimicTCPMessageListener handler) {
-        mTCPHandlers.remove(handler);
+        mTCPDispatcher.unsubscribe(handler);
     }
     public void addUDPMessageHandlers(RimicUDPMessageListener... handlers) {
         Collections.addAll(mUDPHandlers, handlers);
@@ -404,6 +482,79 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
         mForceTCP = forceTcp;
     }
 
+    /**
+     * Set whether to use the NIO {@link java.nio.channels.DatagramChannel} based UDP transport,
+     * which receives and decrypts voice packets in a single reused buffer instead of allocating per packet.
+     * @param useDatagramChannel true to use {@link RimicUDPChannel}, false for {@link RimicUDP}.
+     */
+    public void setUseDatagramChannel(boolean useDatagramChannel) {
+        mUseDatagramChannel = useDatagramChannel;
+    }
+
+    /**
+     * Sets the maximum time an outgoing UDP packet may wait to be sent before it is dropped.
+     * Takes effect immediately if UDP is already running.
+     * @param deadline The deadline in milliseconds.
+     */
+    public void setUDPSendDeadline(int deadline) {
+        mUDPSendDeadline = deadline;
+        final IUDPTransport udp = mUDP;
+        if (udp != null) udp.getSendQueue().setDeadline(deadline);
+    }
+
+    /**
+     * Sets a listener to receive an event for every transition of the UDP recovery state.
+     * @param listener The listener, called on the protocol thread.
+     */
+    public void setUDPStateListener(UDPSupervisor.Listener listener) {
+        mUDPStateListener = listener;
+        if (mUDPSupervisor != null) mUDPSupervisor.setListener(listener);
+    }
+
+    /**
+     * @return Whether voice is sent over UDP, or why it is tunnelled over TCP instead.
+     */
+    public UDPSupervisor.State getUDPState() {
+        return mUDPSupervisor != null ? mUDPSupervisor.getState() : UDPSupervisor.State.DISABLED;
+    }
+
+    /**
+     * Sets how long an outgoing TCP message may wait to be batched with others into one TLS write.
+     * @param delay The maximum delay in milliseconds, or 0 to flush as soon as possible.
+     */
+    public void setTCPMaxFlushDelay(int delay) {
+        mTCPMaxFlushDelay = delay;
+        final RimicTCP tcp = mTCP;
+        if (tcp != null) tcp.setMaxFlushDelay(delay);
+    }
+
+    /**
+     * Sets the largest TCP message accepted from the server. Larger messages end the connection.
+     * @param length The maximum message length in bytes.
+     */
+    public void setTCPMaxMessageLength(int length) {
+        mTCPMaxMessageLength = length;
+        final RimicTCP tcp = mTCP;
+        if (tcp != null) tcp.setMaxMessageLength(length);
+    }
+
+    /**
+     * Returns the TCP connection, whose counters report the messages and bytes per TLS write.
+     * @return The TCP connection, or null if not connected.
+     */
+    public RimicTCP getTCP() {
+        return mTCP;
+    }
+
+    /**
+     * Returns the outgoing UDP queue, whose counters report queue depth and dropped packets.
+     * @return The send queue of the UDP transport, or null if UDP is not in use.
+     */
+    public RimicUDPSendQueue getUDPSendQueue() {
+        final IUDPTransport udp = mUDP;
+        return udp != null ? udp.getSendQueue() : null;
+    }
+
     /**
      * Sets the PKCS12 certificate data and password to use when authenticating.
      * @param certificate A PKCS12-formatted certificate.
@@ -420,6 +571,16 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
         mTrustStoreFormat = format;
     }
 
+    /**
+     * Sets the socket factory to connect with, in place of one built from the keys and trust
+     * store. Reusing a factory across connections to a server allows TLS sessions to be resumed.
+     * @param socketFactory The factory to use, or null to create a new one on connect.
+     * @see #createSocketFactory(byte[], String, String, String, String)
+     */
+    public void setSocketFactory(RimicSSLSocketFactory socketFactory) {
+        mSocketFactory = socketFactory;
+    }
+
     public int getServerVersion() throws NotSynchronizedException {
         if (!isSynchronized())
             throw new NotSynchronizedException();
@@ -447,13 +608,31 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
     public long getTCPLatency() throws NotConnectedException {
         if (!isConnected())
             throw new NotConnectedException();
-        return mLastTCPPing;
+        return mTCPPingStats.getLast();
     }
 
     public long getUDPLatency() throws NotConnectedException {
         if (!isConnected())
             throw new NotConnectedException();
-        return mLastUDPPing;
+        return mUDPPingStats.getLast();
+    }
+
+    /**
+     * @return Round trip statistics for pings over the TCP connection.
+     */
+    public PingStatistics.Snapshot getTCPPingStatistics() throws NotConnectedException {
+        if (!isConnected())
+            throw new NotConnectedException();
+        return mTCPPingStats.snapshot();
+    }
+
+    /**
+     * @return Round trip statistics for pings over UDP.
+     */
+    public PingStatistics.Snapshot getUDPPingStatistics() throws NotConnectedException {
+        if (!isConnected())
+            throw new NotConnectedException();
+        return mUDPPingStats.snapshot();
     }
 
     public int getSession() throws NotSynchronizedException {
@@ -497,9 +676,24 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
 
         // Stop running network resources
         if(mPingTask != null) mPingTask.cancel(true);
-        if(mTCP != null) mTCP.disconnect();
-        if(mUDP != null) mUDP.disconnect();
-        mPingExecutorService.shutdown();
+        final RimicTCP tcp = mTCP;
+        final IUDPTransport udp = mUDP;
+        if(tcp != null) tcp.disconnect();
+        if(udp != null) udp.disconnect();
+        if(mPingExecutorService != null) mPingExecutorService.shutdown();
+        if(mProtocolThread != null) {
+            // The supervisor lives on the protocol thread. Quit once it is stopped and the
+            // disconnect callbacks queued above have been delivered.
+            final HandlerThread protocolThread = mProtocolThread;
+            final UDPSupervisor supervisor = mUDPSupervisor;
+            mProtocolHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    supervisor.stop();
+                    protocolThread.quit();
+                }
+            });
+        }
 
         mTCP = null;
         mUDP = null;
@@ -530,17 +724,33 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
      * @return A socket factory set to authenticate with a certificate and trust store, if set.
      */
     private RimicSSLSocketFactory createSocketFactory() throws RimicException {
+        return createSocketFactory(mCertificate, mCertificatePassword, mTrustStorePath,
+                mTrustStorePassword, mTrustStoreFormat);
+    }
+
+    /**
+     * Creates a socket factory that authenticates with the given certificate and trust store.
+     * @param certificate A PKCS12-formatted certificate, or null to connect without one.
+     * @param certificatePassword An optional password used to encrypt the certificate.
+     * @param trustStorePath The path of a trust store to use with the system's, or null.
+     * @param trustStorePassword The trust store's password.
+     * @param trustStoreFormat The trust store's key store type.
+     * @return A socket factory set to authenticate with a certificate and trust store, if set.
+     */
+    public static RimicSSLSocketFactory createSocketFactory(byte[] certificate, String certificatePassword,
+                                                            String trustStorePath, String trustStorePassword,
+                                                            String trustStoreFormat) throws RimicException {
         try {
             KeyStore keyStore = null;
-            if(mCertificate != null) {
+            if(certificate != null) {
                 keyStore = KeyStore.getInstance("PKCS12", new BouncyCastleProvider());
-                ByteArrayInputStream inputStream = new ByteArrayInputStream(mCertificate);
-                keyStore.load(inputStream, mCertificatePassword != null ?
-                        mCertificatePassword.toCharArray() : new char[0]);
+                ByteArrayInputStream inputStream = new ByteArrayInputStream(certificate);
+                keyStore.load(inputStream, certificatePassword != null ?
+                        certificatePassword.toCharArray() : new char[0]);
             }
 
-            return new RimicSSLSocketFactory(keyStore, mCertificatePassword, mTrustStorePath,
-                    mTrustStorePassword, mTrustStoreFormat);
+            return new RimicSSLSocketFactory(keyStore, certificatePassword, trustStorePath,
+                    trustStorePassword, trustStoreFormat);
         } catch (KeyManagementException e) {
             throw new RimicException("Could not recover keys from certificate", e,
                     RimicException.RimicDisconnectReason.OTHER_ERROR);
@@ -579,8 +789,20 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
      * @param messageType The corresponding protobuf message type.
      */
     public void sendTCPMessage(Message message, RimicTCPMessageType messageType) {
-        if(!mConnected || mTCP == null) return;
-        mTCP.sendMessage(message, messageType);
+        final RimicTCP tcp = mTCP;
+        if(!mConnected || tcp == null) return;
+        tcp.sendMessage(message, messageType);
+    }
+
+    /**
+     * Sends several protobuf messages over TCP in a single write. Can silently fail.
+     * @param messages Built protobuf messages, in the order they should arrive.
+     * @param messageTypes The protobuf message type of each message, at the same index.
+     */
+    public void sendTCPMessages(List<? extends Message> messages, List<RimicTCPMessageType> messageTypes) {
+        final RimicTCP tcp = mTCP;
+        if(!mConnected || tcp == null) return;
+        tcp.sendMessages(messages, messageTypes);
     }
 
     /**
@@ -595,11 +817,51 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
             throw new IllegalArgumentException("Requested length " + length + " is longer than " +
                     "available data length " + data.length + "!");
         }
-        if (mServerVersion == 0x10202) applyLegacyCodecWorkaround(data);
-        if (!force && (shouldForceTCP() || !mUsingUDP))
-            mTCP.sendMessage(data, length, RimicTCPMessageType.UDPTunnel);
-        else if (!shouldForceTCP())
-            mUDP.sendMessage(data, length);
+        if (mServerVersion == 0x10202) data[0] = applyLegacyCodecWorkaround(data[0]);
+        if (!force && (shouldForceTCP() || !mUsingUDP)) {
+            final RimicTCP tcp = mTCP;
+            if (tcp != null) tcp.sendMessage(data, length, RimicTCPMessageType.UDPTunnel);
+        } else if (!shouldForceTCP()) {
+            final IUDPTransport udp = mUDP;
+            if (udp != null) udp.sendMessage(data, length);
+        }
+    }
+
+    /**
+     * Sends a UDP ping, used to measure latency and to keep the UDP path open.
+     * @param timestamp The time since the connection started, in microseconds.
+     */
+    private void sendUDPPing(long timestamp) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) ((RimicUDPMessageType.UDPPing.ordinal() << 5) & 0xFF));
+        buffer.putLong(timestamp);
+
+        sendUDPMessage(buffer.array(), 16, true);
+//        Log.v(Constants.TAG, "OUT: UDP Ping");
+    }
+
+    /**
+     * Creates and connects a new UDP transport of the configured type, to the address resolved
+     * and connected to over TCP. Stops it again if the connection ended in the meantime.
+     */
+    private void startUDP() {
+        final RimicTCP tcp = mTCP;
+        final InetSocketAddress address = tcp != null ? tcp.getRemoteAddress() : null;
+        if (address == null) return;
+        final IUDPTransport udp;
+        if (mUseDatagramChannel) {
+            udp = new RimicUDPChannel(mCryptState, this, mProtocolHandler);
+        } else {
+            udp = new RimicUDP(mCryptState, this, mProtocolHandler);
+        }
+        udp.getSendQueue().setDeadline(mUDPSendDeadline);
+        mUDP = udp;
+        udp.connect(address.getAddress(), address.getPort());
+        // disconnect() clears mConnected before reading mUDP, so either it saw this transport or
+        // this check sees the connection is gone.
+        if (!mConnected) {
+            udp.disconnect();
+        }
     }
 
     /**
@@ -623,24 +885,34 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
         sendTCPMessage(ab.build(), RimicTCPMessageType.Authenticate);
     }
 
+    /**
+     * Runs a task on the protocol thread, where the TCP handlers are called.
+     * @return false if not connected, and the task will not run.
+     */
+    public boolean runOnProtocolThread(Runnable task) {
+        final Handler handler = mProtocolHandler;
+        return handler != null && handler.post(task);
+    }
+
+    /**
+     * Delivers a message to the TCP handlers as if the server had sent it.
+     * Must be called on the protocol thread.
+     */
+    public void dispatchTCPMessage(Message message, RimicTCPMessageType messageType) {
+        mTCPDispatcher.dispatch(messageType, message);
+    }
+
     @Override
-    public void onTCPMessageReceived(RimicTCPMessageType type, int length, byte[] data) {
+    public void onTCPMessageReceived(RimicTCPMessageType type, Message message) {
         if(!UNLOGGED_MESSAGES.contains(type))
             Log.v(Constants.TAG, "TCP IN: "+type);
 
-        if(type == RimicTCPMessageType.UDPTunnel) {
-            onUDPDataReceived(data);
-            return;
-        }
+        mTCPDispatcher.dispatch(type, message);
+    }
 
-        try {
-            Message message = getProtobufMessage(data, type);
-            for(RimicTCPMessageListener handler : mTCPHandlers) {
-                broadcastTCPMessage(handler, message, type);
-            }
-        } catch (InvalidProtocolBufferException e) {
-            e.printStackTrace();
-        }
+    @Override
+    public void onUDPTunnelReceived(ByteBuffer data) {
+        onUDPDataReceived(data);
     }
 
     @Override
@@ -649,8 +921,8 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
 
         // Attempt to start UDP thread once connected.
         if (!shouldForceTCP()) {
-            mUDP = new RimicUDP(mCryptState, this, mMainHandler);
-            mUDP.connect(mHost, mPort);
+            startUDP();
+            mUDPSupervisor.start();
         }
 
         if (mListener != null) mListener.onConnectionEstablished();
@@ -677,12 +949,35 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
         disconnect();
     }
 
+    /**
+     * Called on the UDP receive thread, or the TCP receive thread for tunnelled packets.
+     * Voice packets are dispatched to the UDP handlers directly on the calling thread, so that
+     * audio is not held up by the protocol thread. Pings are copied and handled on the protocol
+     * thread.
+     */
     @Override
-    public void onUDPDataReceived(byte[] data) {
-        if(mServerVersion == 0x10202) applyLegacyCodecWorkaround(data);
-        int dataType = data[0] >> 5 & 0x7;
-        if(dataType < 0 || dataType > RimicUDPMessageType.values().length - 1) return; // Discard invalid data types
-        RimicUDPMessageType udpDataType = RimicUDPMessageType.values()[dataType];
+    public void onUDPDataReceived(ByteBuffer data) {
+        if(!data.hasRemaining()) return;
+        final int position = data.position();
+        if(mServerVersion == 0x10202) data.put(position, applyLegacyCodecWorkaround(data.get(position)));
+        final RimicUDPMessageType udpDataType = RimicUDPMessageType.fromId(data.get(position) >> 5 & 0x7);
+        if(udpDataType == null) return; // Discard invalid data types
+
+        if(udpDataType == RimicUDPMessageType.UDPPing) {
+            // The transport reuses its buffer once we return.
+            final ByteBuffer ping = ByteBuffer.allocate(data.remaining());
+            ping.put(data.duplicate());
+            ping.flip();
+            mProtocolHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for(RimicUDPMessageListener handler : mUDPHandlers) {
+                        broadcastUDPMessage(handler, ping, udpDataType);
+                    }
+                }
+            });
+            return;
+        }
 
         for(RimicUDPMessageListener handler : mUDPHandlers) {
             broadcastUDPMessage(handler, data, udpDataType);
@@ -692,96 +987,56 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
     @Override
     public void onUDPConnectionError(Exception e) {
         e.printStackTrace();
-        if(mListener != null) mListener.onConnectionWarning("UDP connection thread failed. Falling back to TCP.");
-        enableForceTCP();
-        // TODO recover UDP thread automagically
+        if(mListener != null) mListener.onConnectionWarning("UDP connection thread failed. Falling back to TCP until it recovers.");
+        mUDPSupervisor.onTransportFailed();
     }
 
     @Override
     public void resyncCryptState() {
         // Send an empty cryptstate message to resync.
         Mumble.CryptSetup.Builder csb = Mumble.CryptSetup.newBuilder();
-        mTCP.sendMessage(csb.build(), RimicTCPMessageType.CryptSetup);
+        sendTCPMessage(csb.build(), RimicTCPMessageType.CryptSetup);
     }
 
     /**
      * Workaround for 1.2.2 servers that report the old types for CELT alpha and beta.
-     * @param data The UDP data to be patched, if we're on a 1.2.2 server.
+     * @param header The header byte of the UDP data to be patched, if we're on a 1.2.2 server.
+     * @return The patched header byte.
      */
-    private void applyLegacyCodecWorkaround(byte[] data) {
-        RimicUDPMessageType dataType = RimicUDPMessageType.values()[data[0] >> 5 & 0x7];
-        if(dataType == RimicUDPMessageType.UDPVoiceCELTBeta)
+    private static byte applyLegacyCodecWorkaround(byte header) {
+        RimicUDPMessageType dataType = RimicUDPMessageType.fromId(header >> 5 & 0x7);
+        if(dataType == null)
+            return header;
+        else if(dataType == RimicUDPMessageType.UDPVoiceCELTBeta)
             dataType = RimicUDPMessageType.UDPVoiceCELTAlpha;
         else if(dataType == RimicUDPMessageType.UDPVoiceCELTAlpha)
             dataType = RimicUDPMessageType.UDPVoiceCELTBeta;
-        data[0] = (byte) ((dataType.ordinal() << 5) & 0xFF);
+        return (byte) ((dataType.ordinal() << 5) & 0xFF);
     }
 
     /**
      * Gets the protobuf message from the passed TCP data.
-     * We isolate this so we can first parse the message and then inform all handlers. Saves processing power.
      * @param data Raw protobuf TCP data.
      * @param messageType Type of the message.
      * @return The parsed protobuf message.
      * @throws InvalidProtocolBufferException Called if the messageType does not match the data.
+     * @see #getProtobufMessage(CodedInputStream, RimicTCPMessageType)
      */
     public static Message getProtobufMessage(byte[] data, RimicTCPMessageType messageType) throws InvalidProtocolBufferException {
-        switch (messageType) {
-            case Authenticate:
-                return Mumble.Authenticate.parseFrom(data);
-            case BanList:
-                return Mumble.BanList.parseFrom(data);
-            case Reject:
-                return Mumble.Reject.parseFrom(data);
-            case ServerSync:
-                return Mumble.ServerSync.parseFrom(data);
-            case ServerConfig:
-                return Mumble.ServerConfig.parseFrom(data);
-            case PermissionDenied:
-                return Mumble.PermissionDenied.parseFrom(data);
-            case UDPTunnel:
-                return Mumble.UDPTunnel.parseFrom(data);
-            case UserState:
-                return Mumble.UserState.parseFrom(data);
-            case UserRemove:
-                return Mumble.UserRemove.parseFrom(data);
-            case ChannelState:
-                return Mumble.ChannelState.parseFrom(data);
-            case ChannelRemove:
-                return Mumble.ChannelRemove.parseFrom(data);
-            case TextMessage:
-                return Mumble.TextMessage.parseFrom(data);
-            case ACL:
-                return Mumble.ACL.parseFrom(data);
-            case QueryUsers:
-                return Mumble.QueryUsers.parseFrom(data);
-            case Ping:
-                return Mumble.Ping.parseFrom(data);
-            case CryptSetup:
-                return Mumble.CryptSetup.parseFrom(data);
-            case ContextAction:
-                return Mumble.ContextAction.parseFrom(data);
-            case ContextActionModify:
-                return Mumble.ContextActionModify.parseFrom(data);
-            case Version:
-                return Mumble.Version.parseFrom(data);
-            case UserList:
-                return Mumble.UserList.parseFrom(data);
-            case PermissionQuery:
-                return Mumble.PermissionQuery.parseFrom(data);
-            case CodecVersion:
-                return Mumble.CodecVersion.parseFrom(data);
-            case UserStats:
-                return Mumble.UserStats.parseFrom(data);
-            case RequestBlob:
-                return Mumble.RequestBlob.parseFrom(data);
-            case SuggestConfig:
-                return Mumble.SuggestConfig.parseFrom(data);
-            default:
-                throw new InvalidProtocolBufferException("Unknown TCP data passed.");
-        }
+        return getProtobufMessage(CodedInputStream.newInstance(data), messageType);
     }
 
+    /**
+     * Gets the protobuf message from the passed TCP data.
+     * We isolate this so we can first parse the message and then inform all handlers. Saves processing power.
+     * @param data Raw protobuf TCP data, limited to the length of the message.
+     * @param messageType Type of the message.
+     * @return The parsed protobuf message.
+     * @throws InvalidProtocolBufferException Called if the messageType does not match the data.
+     */
+    public static Message getProtobufMessage(CodedInputStream data, RimicTCPMessageType messageType) throws InvalidProtocolBufferException {
+        return RimicTCPMessageDispatcher.parse(data, messageType);
+    }
 
     /**
      * Reroutes TCP messages into the various responder methods of the handler.
@@ -790,99 +1045,16 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
      * @param messageType The type of the message.
      */
     public final void broadcastTCPMessage(RimicTCPMessageListener handler, Message msg, RimicTCPMessageType messageType) {
-        switch (messageType) {
-            case Authenticate:
-                handler.messageAuthenticate((Mumble.Authenticate) msg);
-                break;
-            case BanList:
-                handler.messageBanList((Mumble.BanList) msg);
-                break;
-            case Reject:
-                handler.messageReject((Mumble.Reject) msg);
-                break;
-            case ServerSync:
-                handler.messageServerSync((Mumble.ServerSync) msg);
-                break;
-            case ServerConfig:
-                handler.messageServerConfig((Mumble.ServerConfig) msg);
-                break;
-            case PermissionDenied:
-                handler.messagePermissionDenied((Mumble.PermissionDenied) msg);
-                break;
-            case UDPTunnel:
-                handler.messageUDPTunnel((Mumble.UDPTunnel) msg);
-                break;
-            case UserState:
-                handler.messageUserState((Mumble.UserState) msg);
-                break;
-            case UserRemove:
-                handler.messageUserRemove((Mumble.UserRemove) msg);
-                break;
-            case ChannelState:
-                handler.messageChannelState((Mumble.ChannelState) msg);
-                break;
-            case ChannelRemove:
-                handler.messageChannelRemove((Mumble.ChannelRemove) msg);
-                break;
-            case TextMessage:
-                handler.messageTextMessage((Mumble.TextMessage) msg);
-                break;
-            case ACL:
-                handler.messageACL((Mumble.ACL) msg);
-                break;
-            case QueryUsers:
-                handler.messageQueryUsers((Mumble.QueryUsers) msg);
-                break;
-            case Ping:
-                handler.messagePing((Mumble.Ping) msg);
-                break;
-            case CryptSetup:
-                handler.messageCryptSetup((Mumble.CryptSetup) msg);
-                break;
-            case ContextAction:
-                handler.messageContextAction((Mumble.ContextAction) msg);
-                break;
-            case ContextActionModify:
-                Mumble.ContextActionModify actionModify = (Mumble.ContextActionModify) msg;
-                if (actionModify.getOperation() == Mumble.ContextActionModify.Operation.Add)
-                    handler.messageContextActionModify(actionModify);
-                else if (actionModify.getOperation() == Mumble.ContextActionModify.Operation.Remove)
-                    handler.messageRemoveContextAction(actionModify);
-                break;
-            case Version:
-                handler.messageVersion((Mumble.Version) msg);
-                break;
-            case UserList:
-                handler.messageUserList((Mumble.UserList) msg);
-                break;
-            case PermissionQuery:
-                handler.messagePermissionQuery((Mumble.PermissionQuery) msg);
-                break;
-            case CodecVersion:
-                handler.messageCodecVersion((Mumble.CodecVersion) msg);
-                break;
-            case UserStats:
-                handler.messageUserStats((Mumble.UserStats) msg);
-                break;
-            case RequestBlob:
-                handler.messageRequestBlob((Mumble.RequestBlob) msg);
-                break;
-            case SuggestConfig:
-                handler.messageSuggestConfig((Mumble.SuggestConfig) msg);
-                break;
-            case VoiceTarget:
-                handler.messageVoiceTarget((Mumble.VoiceTarget) msg);
-                break;
-        }
+        RimicTCPMessageDispatcher.dispatch(handler, msg, messageType);
     }
 
     /**
      * Reroutes UDP messages into the various responder methods of the passed handler.
      * @param handler Handler to notify.
-     * @param data Raw UDP data of the message.
+     * @param data Raw UDP data of the message, between the buffer's position and limit.
      * @param messageType The type of the message.
      */
-    public final void broadcastUDPMessage(RimicUDPMessageListener handler, byte[] data, RimicUDPMessageType messageType) {
+    public final void broadcastUDPMessage(RimicUDPMessageListener handler, ByteBuffer data, RimicUDPMessageType messageType) {
         switch (messageType) {
             case UDPPing:
                 handler.messageUDPPing(data);
@@ -896,6 +1068,68 @@ public class RimicConnection implements RimicTCP.TCPConnectionListener, RimicUDP
         }
     }
 
+    /**
+     * Forwards connection events from the protocol thread to the main thread, where the listener
+     * has always been called.
+     */
+    private class MainThreadListener implements RimicConnectionListener {
+        private final RimicConnectionListener mTarget;
+
+        public MainThreadListener(RimicConnectionListener target) {
+            mTarget = target;
+        }
+
+        @Override
+        public void onConnectionEstablished() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mTarget.onConnectionEstablished();
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionSynchronized() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mTarget.onConnectionSynchronized();
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionHandshakeFailed(final X509Certificate[] chain) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mTarget.onConnectionHandshakeFailed(chain);
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionDisconnected(final RimicException e) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mTarget.onConnectionDisconnected(e);
+                }
+            });
+        }
+
+        @Override
+        public void onConnectionWarning(final String warning) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mTarget.onConnectionWarning(warning);
+                }
+            });
+        }
+    }
+
     /**
      * If the connection to the server was lost due to an error, return the exception.
      * @return An exception causing disconnect, or null if no error was recorded.
@@ -23,6 +23,8 @@ import android.util.Log;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import bo.htakey.rimic.Constants;
 
@@ -35,13 +37,20 @@ import bo.htakey.rimic.Constants;
 public abstract class RimicNetworkThread implements Runnable {
 
     private ExecutorService mExecutor;
-    private ExecutorService mSendExecutor;
+    private ScheduledExecutorService mSendExecutor;
     private ExecutorService mReceiveExecutor;
-    private Handler mMainHandler;
+    private Handler mCallbackHandler;
     private boolean mInitialized;
 
     public RimicNetworkThread() {
-        mMainHandler = new Handler(Looper.getMainLooper());
+        this(Looper.getMainLooper());
+    }
+
+    /**
+     * @param callbackLooper The looper to invoke listener callbacks on.
+     */
+    public RimicNetworkThread(Looper callbackLooper) {
+        mCallbackHandler = new Handler(callbackLooper);
     }
 
     protected void startThreads() {
@@ -49,7 +58,7 @@ public abstract class RimicNetworkThread implements Runnable {
             throw new IllegalArgumentException("Threads already initialized.");
         }
         mExecutor = Executors.newSingleThreadExecutor();
-        mSendExecutor = Executors.newSingleThreadExecutor();
+        mSendExecutor = Executors.newSingleThreadScheduledExecutor();
         mReceiveExecutor = Executors.newSingleThreadExecutor();
         mExecutor.execute(this);
         mInitialized = true;
@@ -77,6 +86,16 @@ public abstract class RimicNetworkThread implements Runnable {
         mSendExecutor.execute(r);
     }
 
+    /**
+     * Runs the runnable on the send thread after the given delay, in milliseconds.
+     */
+    protected void scheduleOnSendThread(Runnable r, long delay) {
+        if (mSendExecutor == null) {
+            return;
+        }
+        mSendExecutor.schedule(r, delay, TimeUnit.MILLISECONDS);
+    }
+
     protected void executeOnReceiveThread(Runnable r) {
         if (mSendExecutor == null) {
             return;
@@ -84,11 +103,14 @@ public abstract class RimicNetworkThread implements Runnable {
         mSendExecutor.execute(r);
     }
 
-    protected void executeOnMainThread(Runnable r) {
-        mMainHandler.post(r);
+    /**
+     * Runs the runnable on the callback looper given at construction, the main looper by default.
+     */
+    protected void executeOnCallbackThread(Runnable r) {
+        mCallbackHandler.post(r);
     }
 
-    protected Handler getMainHandler() {
-        return mMainHandler;
+    protected Handler getCallbackHandler() {
+        return mCallbackHandler;
     }
 }
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.net.InetAddresses;
+
+import org.minidns.AbstractDnsClient;
+import org.minidns.DnsClient;
+import org.minidns.dnsmessage.DnsMessage;
+import org.minidns.dnsname.DnsName;
+import org.minidns.record.Data;
+import org.minidns.record.Record;
+import org.minidns.record.SRV;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import bo.htakey.rimic.Constants;
+
+/**
+ * Resolves Mumble server addresses, shared by every connection in the process.
+ * A host without a port is looked up as a _mumble._tcp SRV record, and its targets are ordered by
+ * priority and weight as described in RFC 2782, so that callers can fail over between them.
+ * SRV answers are cached for their TTL. Addresses are looked up with the system resolver, which
+ * does not expose TTLs, and cached for {@link #ADDRESS_TTL}.
+ * All methods are thread safe.
+ */
+public class RimicResolver {
+    private static final String SRV_PREFIX = "_mumble._tcp.";
+    /** Lower bound on how long SRV answers are cached, in milliseconds. */
+    public static final long MIN_SRV_TTL = 30 * 1000;
+    /** Upper bound on how long SRV answers are cached, in milliseconds. */
+    public static final long MAX_SRV_TTL = 60 * 60 * 1000;
+    /** How long a missing or failed SRV lookup is cached, in milliseconds. */
+    public static final long NEGATIVE_TTL = 60 * 1000;
+    /** How long looked up addresses are cached, in milliseconds. */
+    public static final long ADDRESS_TTL = 60 * 1000;
+
+    private static RimicResolver sDefault;
+
+    private final Random mRandom;
+    /** Ordered targets by host. Guarded by itself. */
+    private final Map<String, CacheEntry<List<Target>>> mTargetCache = new HashMap<String, CacheEntry<List<Target>>>();
+    /** Addresses by host. Guarded by itself. */
+    private final Map<String, CacheEntry<InetAddress[]>> mAddressCache = new HashMap<String, CacheEntry<InetAddress[]>>();
+    private AbstractDnsClient mDnsClient;
+
+    /**
+     * @return The resolver shared by all connections.
+     */
+    public static synchronized RimicResolver getDefault() {
+        if (sDefault == null) {
+            sDefault = new RimicResolver(new Random());
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param random The source of randomness for SRV weight selection.
+     */
+    protected RimicResolver(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Returns the targets to try for a server, in the order they should be tried.
+     * May block on the network. Never fails: if the SRV lookup fails or finds nothing, the host
+     * itself is returned with the default port.
+     * @param host The host name or address of the server.
+     * @param port The port of the server, or 0 to look up an SRV record.
+     * @return A non-empty list of targets.
+     */
+    public List<Target> resolve(String host, int port) {
+        if (port != 0) {
+            return Collections.singletonList(new Target(host, port));
+        }
+        // Skip IP addresses and Tor Onion Services (a pseudo-TLD).
+        if (InetAddresses.isInetAddress(host) || host.endsWith(".onion")) {
+            return Collections.singletonList(new Target(host, Constants.DEFAULT_PORT));
+        }
+
+        final long now = now();
+        synchronized (mTargetCache) {
+            CacheEntry<List<Target>> entry = mTargetCache.get(host);
+            if (entry != null && entry.expiry > now) {
+                // Weights are drawn again on each use, spreading load as RFC 2782 intends.
+                return entry.records != null ? orderSrvRecords(entry.records, mRandom) : entry.value;
+            }
+        }
+
+        List<SRV> records = null;
+        long ttl = NEGATIVE_TTL;
+        final String lookup = SRV_PREFIX + host;
+        try {
+            SrvAnswer answer = querySrv(lookup);
+            if (answer != null && !answer.records.isEmpty()) {
+                records = answer.records;
+                ttl = Math.max(MIN_SRV_TTL, Math.min(MAX_SRV_TTL, answer.ttl * 1000));
+            } else {
+                Log.d(Constants.TAG, "resolveSrv " + lookup + ": empty answer");
+            }
+        } catch (IOException e) {
+            Log.d(Constants.TAG, "resolveSrv " + lookup + ": " + e);
+        }
+
+        final CacheEntry<List<Target>> entry;
+        if (records != null) {
+            entry = new CacheEntry<List<Target>>(null, records, now + ttl);
+        } else {
+            entry = new CacheEntry<List<Target>>(Collections.singletonList(
+                    new Target(host, Constants.DEFAULT_PORT)), null, now + ttl);
+        }
+        synchronized (mTargetCache) {
+            mTargetCache.put(host, entry);
+        }
+        return records != null ? orderSrvRecords(records, mRandom) : entry.value;
+    }
+
+    /**
+     * Looks up the addresses of a host, using the cache where possible.
+     * @param host The host name or literal address.
+     * @return The addresses of the host, in the order given by the system resolver.
+     * @throws UnknownHostException If the host could not be resolved.
+     */
+    public InetAddress[] lookupAddresses(String host) throws UnknownHostException {
+        final long now = now();
+        synchronized (mAddressCache) {
+            CacheEntry<InetAddress[]> entry = mAddressCache.get(host);
+            if (entry != null && entry.expiry > now) {
+                return entry.value.clone();
+            }
+        }
+        InetAddress[] addresses = queryAddresses(host);
+        synchronized (mAddressCache) {
+            mAddressCache.put(host, new CacheEntry<InetAddress[]>(addresses, null, now + ADDRESS_TTL));
+        }
+        return addresses.clone();
+    }
+
+    /**
+     * Drops the cached addresses of a host, for example after every address failed to connect.
+     */
+    public void invalidateAddresses(String host) {
+        synchronized (mAddressCache) {
+            mAddressCache.remove(host);
+        }
+    }
+
+    /**
+     * Drops all cached answers, for example after the network changed.
+     */
+    public void clear() {
+        synchronized (mTargetCache) {
+            mTargetCache.clear();
+        }
+        synchronized (mAddressCache) {
+            mAddressCache.clear();
+        }
+    }
+
+    /**
+     * Queries the SRV records of a name.
+     * @return The answer, or null if the name has no SRV records.
+     */
+    protected SrvAnswer querySrv(String name) throws IOException {
+        final AbstractDnsClient client;
+        synchronized (this) {
+            if (mDnsClient == null) {
+                mDnsClient = new DnsClient();
+            }
+            client = mDnsClient;
+        }
+        DnsMessage message = client.query(name, Record.TYPE.SRV);
+        if (message == null || message.responseCode != DnsMessage.RESPONSE_CODE.NO_ERROR) {
+            return null;
+        }
+        return parseSrvAnswer(message.answerSection);
+    }
+
+    /**
+     * Collects the usable SRV records of an answer section.
+     * @param answers The answer section of a response.
+     * @return The records and their lowest TTL in seconds, or null if there are no usable records.
+     */
+    protected static SrvAnswer parseSrvAnswer(List<Record<? extends Data>> answers) {
+        List<SRV> records = new ArrayList<SRV>();
+        long ttl = Long.MAX_VALUE;
+        for (Record<? extends Data> record : answers) {
+            if (record.type != Record.TYPE.SRV) continue;
+            SRV srv = (SRV) record.payloadData;
+            // A target of "." means the service is decidedly not available there.
+            if (DnsName.ROOT.equals(srv.target)) continue;
+            records.add(srv);
+            ttl = Math.min(ttl, record.ttl);
+        }
+        return records.isEmpty() ? null : new SrvAnswer(records, ttl);
+    }
+
+    protected InetAddress[] queryAddresses(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    /**
+     * @return The current time in milliseconds, on a clock that does not jump.
+     */
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Orders SRV records as described in RFC 2782. Records are sorted by ascending priority.
+     * Within a priority, records are picked at random in proportion to their weight, with
+     * zero-weight records having a small chance of being picked first.
+     * @param records The records to order. The collection is not modified.
+     * @param random The source of randomness for weight selection.
+     * @return The targets of the records, in the order they should be tried.
+     */
+    public static List<Target> orderSrvRecords(Collection<SRV> records, Random random) {
+        List<SRV> sorted = new ArrayList<SRV>(records);
+        Collections.sort(sorted, new Comparator<SRV>() {
+            @Override
+            public int compare(SRV a, SRV b) {
+                if (a.priority != b.priority) {
+                    return a.priority < b.priority ? -1 : 1;
+                }
+                // Zero-weight records go first, as RFC 2782 asks for the running sum.
+                return (a.weight == 0 ? 0 : 1) - (b.weight == 0 ? 0 : 1);
+            }
+        });
+
+        List<Target> targets = new ArrayList<Target>(sorted.size());
+        int start = 0;
+        while (start < sorted.size()) {
+            int end = start;
+            while (end < sorted.size() && sorted.get(end).priority == sorted.get(start).priority) {
+                end++;
+            }
+            List<SRV> group = new ArrayList<SRV>(sorted.subList(start, end));
+            while (!group.isEmpty()) {
+                int totalWeight = 0;
+                for (SRV srv : group) {
+                    totalWeight += srv.weight;
+                }
+                int selection = random.nextInt(totalWeight + 1);
+                int runningSum = 0;
+                int index = 0;
+                for (; index < group.size() - 1; index++) {
+                    runningSum += group.get(index).weight;
+                    if (runningSum >= selection) break;
+                }
+                SRV chosen = group.remove(index);
+                targets.add(new Target(chosen.target.toString(), chosen.port));
+            }
+            start = end;
+        }
+        return targets;
+    }
+
+    /**
+     * A host and port to connect to.
+     */
+    public static final class Target {
+        private final String mHost;
+        private final int mPort;
+
+        public Target(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        public int getPort() {
+            return mPort;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Target)) return false;
+            Target other = (Target) o;
+            return mHost.equals(other.mHost) && mPort == other.mPort;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHost.hashCode() * 31 + mPort;
+        }
+
+        @Override
+        public String toString() {
+            return mHost + ":" + mPort;
+        }
+    }
+
+    /**
+     * The usable SRV records of a name, and the lowest TTL among them in seconds.
+     */
+    protected static final class SrvAnswer {
+        final List<SRV> records;
+        final long ttl;
+
+        public SrvAnswer(List<SRV> records, long ttl) {
+            this.records = records;
+            this.ttl = ttl;
+        }
+
+        public List<SRV> getRecords() {
+            return records;
+        }
+
+        /**
+         * @return The TTL of the answer, in seconds.
+         */
+        public long getTtl() {
+            return ttl;
+        }
+    }
+
+    private static final class CacheEntry<T> {
+        /** The cached value, or null if the records are ordered afresh on each use. */
+        final T value;
+        final List<SRV> records;
+        final long expiry;
+
+        CacheEntry(T value, List<SRV> records, long expiry) {
+            this.value = value;
+            this.records = records;
+            this.expiry = expiry;
+        }
+    }
+}
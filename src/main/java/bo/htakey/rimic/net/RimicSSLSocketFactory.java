@@ -34,6 +34,7 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -43,13 +44,21 @@ import javax.net.ssl.X509TrustManager;
 
 import bo.htakey.rimic.Constants;
 
+/**
+ * Creates TLS sockets authenticated with the user's certificate.
+ * Sockets from the same factory share a client session cache, so a factory kept across reconnects
+ * to a server lets the handshake resume the previous session instead of repeating a full one.
+ */
 public class RimicSSLSocketFactory {
+    /** Number of TLS sessions to keep for resumption. */
+    private static final int SESSION_CACHE_SIZE = 8;
+    /** How long a cached TLS session may be resumed for, in seconds. */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
     private SSLContext mContext;
     private RimicTrustManagerWrapper mTrustWrapper;
 
     public RimicSSLSocketFactory(KeyStore keystore, String keystorePassword, String trustStorePath, String trustStorePassword, String trustStoreFormat) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException, NoSuchProviderException, IOException, CertificateException {
-        mContext = SSLContext.getInstance("TLS");
-
         KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509");
         kmf.init(keystore, keystorePassword != null ? keystorePassword.toCharArray() : new char[0]);
 
@@ -67,7 +76,24 @@ public class RimicSSLSocketFactory {
             Log.i(Constants.TAG, "Using system trust store");
         }
 
-        mContext.init(kmf.getKeyManagers(), new TrustManager[] { mTrustWrapper }, null);
+        initContext(kmf.getKeyManagers());
+    }
+
+    /**
+     * Creates a factory from key managers that are already set up.
+     * @param keyManagers The key managers providing the client certificate.
+     * @param trustManager A trust manager consulted for chains the system does not trust, or null.
+     */
+    public RimicSSLSocketFactory(KeyManager[] keyManagers, X509TrustManager trustManager) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException {
+        mTrustWrapper = new RimicTrustManagerWrapper(trustManager);
+        initContext(keyManagers);
+    }
+
+    private void initContext(KeyManager[] keyManagers) throws NoSuchAlgorithmException, KeyManagementException {
+        mContext = SSLContext.getInstance("TLS");
+        mContext.init(keyManagers, new TrustManager[] { mTrustWrapper }, null);
+        mContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        mContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
     }
 
     /**
@@ -75,13 +101,31 @@ public class RimicSSLSocketFactory {
      */
     public SSLSocket createTorSocket(String host, int port, String proxyHost, int proxyPort) throws IOException {
         Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(proxyHost, proxyPort));
+        mTrustWrapper.resetServerChain();
         Socket socket = new Socket(proxy);
         socket.connect(InetSocketAddress.createUnresolved(host, port));
         return (SSLSocket) mContext.getSocketFactory().createSocket(socket, host, port, true);
     }
 
+    /**
+     * Layers TLS over a socket already connected to the server.
+     * @param socket The connected socket, closed along with the returned socket.
+     * @param host The host name of the server, used to look up TLS sessions to resume.
+     * @param port The port of the server.
+     */
+    public SSLSocket createSocket(Socket socket, String host, int port) throws IOException {
+        mTrustWrapper.resetServerChain();
+        return (SSLSocket) mContext.getSocketFactory().createSocket(socket, host, port, true);
+    }
+
+    /**
+     * Connects to the first reachable address of the host, then layers TLS over the socket.
+     * @see HappyEyeballsConnector
+     */
     public SSLSocket createSocket(String host, int port) throws IOException {
-        return (SSLSocket) mContext.getSocketFactory().createSocket(InetAddress.getByName(host), port);
+        InetAddress[] addresses = RimicResolver.getDefault().lookupAddresses(host);
+        Socket socket = HappyEyeballsConnector.getDefault().connect(host, addresses, port);
+        return createSocket(socket, host, port);
     }
 
     /**
@@ -100,7 +144,7 @@ public class RimicSSLSocketFactory {
 
         private X509TrustManager mDefaultTrustManager;
         private X509TrustManager mTrustManager;
-        private X509Certificate[] mServerChain;
+        private volatile X509Certificate[] mServerChain;
 
         public RimicTrustManagerWrapper(X509TrustManager trustManager) throws NoSuchAlgorithmException, KeyStoreException {
             TrustManagerFactory dmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
@@ -138,5 +182,13 @@ public class RimicSSLSocketFactory {
         public X509Certificate[] getServerChain() {
             return mServerChain;
         }
+
+        /**
+         * Forgets the chain of a previous connection. Resumed handshakes do not check the chain
+         * again, so it would otherwise outlive the connection it came from.
+         */
+        public void resetServerChain() {
+            mServerChain = null;
+        }
     }
 }
@@ -19,16 +19,30 @@ package bo.htakey.rimic.net;
 
 import android.net.SSLCertificateSocketFactory;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSocket;
@@ -41,25 +55,116 @@ import bo.htakey.rimic.util.RimicException;
  * Parses Mumble protobuf packets according to the Mumble protocol specification.
  */
 public class RimicTCP extends RimicNetworkThread {
+    /** Size of the Mumble TCP header: a 2 byte type and a 4 byte length. */
+    private static final int HEADER_SIZE = 6;
+    /** Initial size of the pooled send buffer. It grows to fit the largest batch. */
+    private static final int SEND_BUFFER_SIZE = 8192;
+    /** Pending bytes at which a delayed flush is brought forward, the largest TLS record. */
+    private static final int FLUSH_THRESHOLD = 16384;
+    /** Default time a message may wait for others to be batched with it, in milliseconds. */
+    public static final int DEFAULT_MAX_FLUSH_DELAY = 0;
+    /** Default largest accepted incoming message, matching the limit of the Mumble client. */
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 0x7FFFFF;
+    /** Initial size of the pooled receive buffer. */
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    /** Largest size the pooled receive buffer grows to. Larger messages get their own buffer. */
+    private static final int MAX_RECEIVE_BUFFER_SIZE = 65536;
+
     private final RimicSSLSocketFactory mSocketFactory;
+    private final RimicResolver mResolver = RimicResolver.getDefault();
+    private final HappyEyeballsConnector mConnector = HappyEyeballsConnector.getDefault();
     private String mHost;
     private int mPort;
+    /** The host name of the target connected to, after SRV resolution. */
+    private volatile String mRemoteHost;
+    /** The address connected to, or null before connecting or over Tor. */
+    private volatile InetSocketAddress mRemoteAddress;
     private boolean mUseTor;
     private SSLSocket mTCPSocket;
     private DataInputStream mDataInput;
-    private DataOutputStream mDataOutput;
+    /** Set on the receive thread, then written on the send thread. Null once writes failed. */
+    private volatile OutputStream mDataOutput;
     private boolean mRunning;
     private boolean mConnected;
     private TCPConnectionListener mListener;
+    private volatile int mMaxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+
+    /** Receive buffers, reused for every frame. Only used on the receive thread. */
+    private final byte[] mReceiveHeader = new byte[HEADER_SIZE];
+    private byte[] mReceiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+    private ByteBuffer mReceiveView = ByteBuffer.wrap(mReceiveBuffer);
+
+    /** Delivers parsed messages to the listener on the callback thread, using pooled messages. */
+    private final Handler mMessageHandler;
+
+    /** Messages waiting for the next flush. Guarded by itself. */
+    private List<PendingMessage> mPending = new ArrayList<>();
+    /** Batch being written by the send thread, swapped with mPending on each flush. */
+    private List<PendingMessage> mFlushing = new ArrayList<>();
+    /** Bytes of mPending once encoded. Guarded by mPending. */
+    private int mPendingBytes;
+    /** Whether a flush is queued on the send thread. Guarded by mPending. */
+    private boolean mFlushScheduled;
+    /** Whether the queued flush runs without delay. Guarded by mPending. */
+    private boolean mFlushImmediate;
+    private volatile int mMaxFlushDelay = DEFAULT_MAX_FLUSH_DELAY;
+    /** Encoding buffer reused for every flush. Only used on the send thread. */
+    private byte[] mSendBuffer = new byte[SEND_BUFFER_SIZE];
+
+    private volatile long mFlushCount;
+    private volatile long mFlushedMessages;
+    private volatile long mFlushedBytes;
+    private volatile int mMaxFlushMessages;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
 
     public RimicTCP(RimicSSLSocketFactory socketFactory) {
+        this(socketFactory, Looper.getMainLooper());
+    }
+
+    /**
+     * @param socketFactory The factory to create the TLS socket with.
+     * @param callbackLooper The looper to invoke listener callbacks on, other than UDPTunnel.
+     */
+    public RimicTCP(RimicSSLSocketFactory socketFactory, Looper callbackLooper) {
+        super(callbackLooper);
         mSocketFactory = socketFactory;
+        mMessageHandler = new Handler(callbackLooper, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(android.os.Message msg) {
+                if (mListener != null) {
+                    mListener.onTCPMessageReceived(RimicTCPMessageType.fromId(msg.what), (Message) msg.obj);
+                }
+                return true;
+            }
+        });
     }
 
     public void setTCPConnectionListener(TCPConnectionListener listener) {
         mListener = listener;
     }
 
+    /**
+     * Sets the largest incoming message accepted. Larger messages are treated as a protocol error.
+     * @param length The maximum message length in bytes.
+     */
+    public void setMaxMessageLength(int length) {
+        mMaxMessageLength = length;
+    }
+
+    /**
+     * Starts connecting to the server on the TCP threads.
+     * Over Tor, the host is passed to the proxy as is. Otherwise, it is resolved with the shared
+     * {@link RimicResolver}, and each of its targets and addresses is tried in turn.
+     * @param host The host of the server.
+     * @param port The port of the server, or 0 to look up an SRV record.
+     * @param useTor Whether to connect through the local Tor proxy.
+     */
     public void connect(String host, int port, boolean useTor) throws ConnectException {
         if(mRunning) throw new ConnectException("TCP connection already established!");
         mHost = host;
@@ -77,29 +182,34 @@ public class RimicTCP extends RimicNetworkThread {
         try {
             Log.i(Constants.TAG, "RimicTCP: Connecting");
 
-            if(mUseTor)
-                mTCPSocket = mSocketFactory.createTorSocket(mHost, mPort, RimicConnection.TOR_HOST, RimicConnection.TOR_PORT);
-            else
-                mTCPSocket = mSocketFactory.createSocket(mHost, mPort);
+            if(mUseTor) {
+                // Resolving locally would leak the lookup outside of Tor.
+                mRemoteHost = mHost;
+                mTCPSocket = mSocketFactory.createTorSocket(mHost, mPort != 0 ? mPort : Constants.DEFAULT_PORT,
+                        RimicConnection.TOR_HOST, RimicConnection.TOR_PORT);
+            } else {
+                mTCPSocket = connectToTargets();
+            }
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) { // SNI support requires at least API 17
                 SSLCertificateSocketFactory scsf = (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0);
-                scsf.setHostname(mTCPSocket, mHost);
+                scsf.setHostname(mTCPSocket, mRemoteHost);
             }
 
             mTCPSocket.setKeepAlive(true);
+            final long handshakeStart = System.currentTimeMillis();
             mTCPSocket.startHandshake();
-
-            Log.v(Constants.TAG, "RimicTCP: Started handshake");
+            Log.v(Constants.TAG, "RimicTCP: Finished handshake in " +
+                    (System.currentTimeMillis() - handshakeStart) + "ms");
 
             mDataInput = new DataInputStream(mTCPSocket.getInputStream());
-            mDataOutput = new DataOutputStream(mTCPSocket.getOutputStream());
+            mDataOutput = mTCPSocket.getOutputStream();
 
             Log.v(Constants.TAG, "RimicTCP: Now listening");
             mConnected = true;
 
             if(mListener != null) {
-                executeOnMainThread(new Runnable() {
+                executeOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
                         mListener.onTCPConnectionEstablished();
@@ -108,28 +218,48 @@ public class RimicTCP extends RimicNetworkThread {
             }
 
             while(mConnected) {
-                final short messageType = mDataInput.readShort();
-                final int messageLength = mDataInput.readInt();
-                final byte[] data = new byte[messageLength];
-                mDataInput.readFully(data);
+                mDataInput.readFully(mReceiveHeader);
+                final int messageType = (mReceiveHeader[0] & 0xFF) << 8 | (mReceiveHeader[1] & 0xFF);
+                final int messageLength = (mReceiveHeader[2] & 0xFF) << 24 |
+                        (mReceiveHeader[3] & 0xFF) << 16 |
+                        (mReceiveHeader[4] & 0xFF) << 8 |
+                        (mReceiveHeader[5] & 0xFF);
+                if (messageLength < 0 || messageLength > mMaxMessageLength) {
+                    throw new ProtocolException("TCP message length " + messageLength +
+                            " exceeds the maximum of " + mMaxMessageLength);
+                }
 
-                final RimicTCPMessageType tcpMessageType = RimicTCPMessageType.values()[messageType];
-                if (mListener != null) {
-                    executeOnMainThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mListener.onTCPMessageReceived(tcpMessageType, messageLength, data);
-                        }
-                    });
+                final byte[] data = obtainReceiveBuffer(messageLength);
+                mDataInput.readFully(data, 0, messageLength);
+
+                final RimicTCPMessageType tcpMessageType = RimicTCPMessageType.fromId(messageType);
+                if (tcpMessageType == null) {
+                    Log.w(Constants.TAG, "RimicTCP: Discarding message of unknown type " + messageType);
+                } else if (mListener != null && tcpMessageType == RimicTCPMessageType.UDPTunnel) {
+                    // Tunnelled voice takes the same path as UDP voice, off the main thread.
+                    final ByteBuffer view = data == mReceiveBuffer ? mReceiveView : ByteBuffer.wrap(data);
+                    view.clear();
+                    view.limit(messageLength);
+                    mListener.onUDPTunnelReceived(view);
+                } else if (mListener != null) {
+                    try {
+                        final Message message = RimicTCPMessageDispatcher.parse(
+                                CodedInputStream.newInstance(data, 0, messageLength), tcpMessageType);
+                        mMessageHandler.obtainMessage(tcpMessageType.ordinal(), message).sendToTarget();
+                    } catch (InvalidProtocolBufferException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
+        } catch (ProtocolException e) {
+            error("TCP: Received an invalid message from the host", e);
         } catch (SocketException e) {
             error("TCP: Could not open a connection to the host", e);
         } catch (SSLHandshakeException e) {
             // Try and verify certificate manually.
             if(mSocketFactory.getServerChain() != null && mListener != null) {
                 if(!mRunning) return;
-                executeOnMainThread(new Runnable() {
+                executeOnCallbackThread(new Runnable() {
                     @Override
                     public void run() {
                         mListener.onTLSHandshakeFailed(mSocketFactory.getServerChain());
@@ -156,68 +286,253 @@ public class RimicTCP extends RimicNetworkThread {
     }
 
     /**
-     * Attempts to send a protobuf message over TCP. Thread-safe, executes on a single threaded executor.
-     * @param message The message to send.
-     * @param messageType The type of the message to send.
+     * Tries each resolved target in order until a socket connects. The addresses of a target are
+     * raced against each other by the {@link HappyEyeballsConnector}.
+     * @return A connected socket, before its handshake.
+     * @throws IOException The error of the last attempt, if none succeeded.
      */
-    public void sendMessage(final Message message, final RimicTCPMessageType messageType) {
-        executeOnSendThread(new Runnable() {
-            @Override
-            public void run() {
-                if (!RimicConnection.UNLOGGED_MESSAGES.contains(messageType))
-                    Log.v(Constants.TAG, "TCP OUT: " + messageType);
-                try {
-                    mDataOutput.writeShort(messageType.ordinal());
-                    mDataOutput.writeInt(message.getSerializedSize());
-                    message.writeTo(mDataOutput);
-                } catch (IOException e) {
-                    e.printStackTrace();
+    private SSLSocket connectToTargets() throws IOException {
+        IOException lastError = null;
+        for (RimicResolver.Target target : mResolver.resolve(mHost, mPort)) {
+            final InetAddress[] addresses;
+            try {
+                addresses = mResolver.lookupAddresses(target.getHost());
+            } catch (UnknownHostException e) {
+                Log.w(Constants.TAG, "RimicTCP: Could not resolve " + target.getHost());
+                lastError = e;
+                continue;
+            }
+            if (!mRunning) throw new SocketException("Connection cancelled");
+            Socket socket = null;
+            try {
+                socket = mConnector.connect(target.getHost(), addresses, target.getPort());
+                mRemoteHost = target.getHost();
+                mRemoteAddress = new InetSocketAddress(socket.getInetAddress(), target.getPort());
+                return mSocketFactory.createSocket(socket, target.getHost(), target.getPort());
+            } catch (IOException e) {
+                // The TLS wrap failed on a connected socket, which is not closed for us.
+                if (socket != null) {
                     try {
-                        if (!mRunning) {
-                            mDataOutput.close();
-                            mDataOutput = null;
-                        } else {
-                            mDataOutput.flush();
-                        }
-                    } catch  (IOException err) {
-                        err.printStackTrace();
+                        socket.close();
+                    } catch (IOException closeError) {
+                        closeError.printStackTrace();
                     }
-                    // TODO handle
                 }
+                Log.w(Constants.TAG, "RimicTCP: Could not connect to " + target + ": " + e);
+                lastError = e;
             }
-        });
+            // The addresses may be stale, look them up again next time.
+            mResolver.invalidateAddresses(target.getHost());
+        }
+        throw lastError;
+    }
+
+    /**
+     * @return The address of the server connected to, or null if not connected directly.
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    /**
+     * Returns a buffer of at least the given length to read a frame into, growing the pooled
+     * receive buffer if needed. Must be called on the receive thread.
+     */
+    private byte[] obtainReceiveBuffer(int length) {
+        if (length <= mReceiveBuffer.length) {
+            return mReceiveBuffer;
+        } else if (length > MAX_RECEIVE_BUFFER_SIZE) {
+            // Rare, such as large blobs. Don't hold on to the memory.
+            return new byte[length];
+        }
+        int size = mReceiveBuffer.length;
+        while (size < length) size *= 2;
+        mReceiveBuffer = new byte[size];
+        mReceiveView = ByteBuffer.wrap(mReceiveBuffer);
+        return mReceiveBuffer;
     }
+
+    /**
+     * Sets how long a message may wait for others to be batched into the same TLS write.
+     * Messages queued while a write is in progress are always batched, regardless of this delay.
+     * @param delay The maximum delay in milliseconds, or 0 to flush as soon as possible.
+     */
+    public void setMaxFlushDelay(int delay) {
+        mMaxFlushDelay = delay;
+    }
+
+    /**
+     * Attempts to send a protobuf message over TCP. Thread-safe, executes on a single threaded executor.
+     * @param message The message to send.
+     * @param messageType The type of the message to send.
+     */
+    public void sendMessage(final Message message, final RimicTCPMessageType messageType) {
+        enqueue(new PendingMessage(messageType, message, null, message.getSerializedSize()));
+    }
+
     /**
      * Attempts to send a protobuf message over TCP. Thread-safe, executes on a single threaded executor.
+     * The data is not copied until it is written, so it must not be modified afterwards.
      * @param message The data to send.
      * @param length The length of the byte array.
      * @param messageType The type of the message to send.
      */
     public void sendMessage(final byte[] message, final int length, final RimicTCPMessageType messageType) {
-        executeOnSendThread(new Runnable() {
-            @Override
-            public void run() {
-                if (!RimicConnection.UNLOGGED_MESSAGES.contains(messageType))
-                    Log.v(Constants.TAG, "TCP OUT: " + messageType);
-                try {
-                    mDataOutput.writeShort(messageType.ordinal());
-                    mDataOutput.writeInt(length);
-                    mDataOutput.write(message, 0, length);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    try {
-                        if (!mRunning) {
-                            mDataOutput.close();
-                            mDataOutput = null;
-                        } else {
-                            mDataOutput.flush();
-                        }
-                    } catch  (IOException err) {
-                        err.printStackTrace();
-                    }
+        enqueue(new PendingMessage(messageType, null, message, length));
+    }
+
+    /**
+     * Sends several protobuf messages over TCP in a single write, in order.
+     * @param messages The messages to send.
+     * @param messageTypes The type of each message, at the same index.
+     */
+    public void sendMessages(final List<? extends Message> messages,
+                             final List<RimicTCPMessageType> messageTypes) {
+        if (messages.size() != messageTypes.size()) {
+            throw new IllegalArgumentException("Expected a type for each message");
+        }
+        final List<PendingMessage> pending = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            final Message message = messages.get(i);
+            pending.add(new PendingMessage(messageTypes.get(i), message, null, message.getSerializedSize()));
+        }
+        enqueue(pending);
+    }
+
+    /**
+     * Queues a message for the next flush, scheduling one if needed.
+     */
+    private void enqueue(PendingMessage message) {
+        enqueue(Collections.singletonList(message));
+    }
+
+    /**
+     * Queues messages for the same flush, scheduling one if needed.
+     */
+    private void enqueue(List<PendingMessage> messages) {
+        final int delay = mMaxFlushDelay;
+        final boolean immediate;
+        synchronized (mPending) {
+            for (PendingMessage message : messages) {
+                mPending.add(message);
+                mPendingBytes += HEADER_SIZE + message.mLength;
+            }
+            if (mFlushImmediate) return;
+            immediate = delay <= 0 || mPendingBytes >= FLUSH_THRESHOLD;
+            // A delayed flush is already due. Only bring it forward once a record's worth is queued.
+            if (mFlushScheduled && !immediate) return;
+            mFlushScheduled = true;
+            mFlushImmediate = immediate;
+        }
+        if (immediate) {
+            executeOnSendThread(mFlushRunnable);
+        } else {
+            scheduleOnSendThread(mFlushRunnable, delay);
+        }
+    }
+
+    /**
+     * Encodes all pending messages into the send buffer and writes them with a single flush.
+     * Must be called on the send thread.
+     */
+    private void flushPending() {
+        final List<PendingMessage> batch = mFlushing;
+        final int size;
+        synchronized (mPending) {
+            if (mPending.isEmpty()) return;
+            mFlushing = mPending;
+            mPending = batch;
+            size = mPendingBytes;
+            mPendingBytes = 0;
+            mFlushScheduled = false;
+            mFlushImmediate = false;
+        }
+        final List<PendingMessage> messages = mFlushing;
+        final OutputStream dataOutput = mDataOutput;
+        if (dataOutput == null) {
+            Log.w(Constants.TAG, "RimicTCP: Discarding " + messages.size() + " messages, not connected");
+            messages.clear();
+            return;
+        }
+        if (mSendBuffer.length < size) {
+            mSendBuffer = new byte[Math.max(size, mSendBuffer.length * 2)];
+        }
+
+        try {
+            final CodedOutputStream output = CodedOutputStream.newInstance(mSendBuffer, 0, size);
+            for (int i = 0; i < messages.size(); i++) {
+                final PendingMessage message = messages.get(i);
+                if (!RimicConnection.UNLOGGED_MESSAGES.contains(message.mType))
+                    Log.v(Constants.TAG, "TCP OUT: " + message.mType);
+                final int type = message.mType.ordinal();
+                output.write((byte) (type >> 8));
+                output.write((byte) type);
+                output.write((byte) (message.mLength >> 24));
+                output.write((byte) (message.mLength >> 16));
+                output.write((byte) (message.mLength >> 8));
+                output.write((byte) message.mLength);
+                if (message.mMessage != null) {
+                    message.mMessage.writeTo(output);
+                } else {
+                    output.write(message.mData, 0, message.mLength);
                 }
             }
-        });
+            output.checkNoSpaceLeft();
+
+            dataOutput.write(mSendBuffer, 0, size);
+            dataOutput.flush();
+
+            mFlushCount++;
+            mFlushedMessages += messages.size();
+            mFlushedBytes += size;
+            if (messages.size() > mMaxFlushMessages) mMaxFlushMessages = messages.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mDataOutput = null;
+            try {
+                if (mRunning) {
+                    // The batch is lost, so the connection cannot go on. Closing the socket ends
+                    // the receive loop, which reports the failure to the listener.
+                    Log.w(Constants.TAG, "RimicTCP: Failed to send " + messages.size() + " messages");
+                    final SSLSocket socket = mTCPSocket;
+                    if (socket != null) socket.close();
+                } else {
+                    dataOutput.close();
+                }
+            } catch (IOException err) {
+                err.printStackTrace();
+            }
+        } finally {
+            messages.clear();
+        }
+    }
+
+    /**
+     * @return The number of TLS writes made, each holding one or more messages.
+     */
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * @return The number of messages written. Divide by the flush count for the batch size.
+     */
+    public long getFlushedMessageCount() {
+        return mFlushedMessages;
+    }
+
+    /**
+     * @return The number of bytes written, including headers.
+     */
+    public long getFlushedByteCount() {
+        return mFlushedBytes;
+    }
+
+    /**
+     * @return The largest number of messages written in a single flush.
+     */
+    public int getMaxFlushMessageCount() {
+        return mMaxFlushMessages;
     }
 
     /**
@@ -234,6 +549,8 @@ public class RimicTCP extends RimicNetworkThread {
         executeOnSendThread(new Runnable() {
             @Override
             public void run() {
+                // Dispatch anything still waiting on a delayed flush.
+                flushPending();
                 try {
                     if (mTCPSocket != null) {
                         mTCPSocket.close();
@@ -246,7 +563,7 @@ public class RimicTCP extends RimicNetworkThread {
         });
 
         if(mListener != null) {
-            executeOnMainThread(new Runnable() {
+            executeOnCallbackThread(new Runnable() {
                 @Override
                 public void run() {
                     mListener.onTCPConnectionDisconnect();
@@ -261,7 +578,7 @@ public class RimicTCP extends RimicNetworkThread {
         final RimicException ce = new RimicException(desc, e,
                 RimicException.RimicDisconnectReason.CONNECTION_ERROR);
         if(mListener != null)
-            executeOnMainThread(new Runnable() {
+            executeOnCallbackThread(new Runnable() {
                 @Override
                 public void run() {
                     mListener.onTCPConnectionFailed(ce);
@@ -269,11 +586,40 @@ public class RimicTCP extends RimicNetworkThread {
             });
     }
 
+    /**
+     * Calls are made on the callback looper's thread, except for UDPTunnel messages which are
+     * delivered on the TCP receive thread.
+     */
     public interface TCPConnectionListener {
         public void onTCPConnectionEstablished();
         public void onTLSHandshakeFailed(X509Certificate[] chain);
         public void onTCPConnectionFailed(RimicException e);
         public void onTCPConnectionDisconnect();
-        public void onTCPMessageReceived(RimicTCPMessageType type, int length, byte[] data);
+        /**
+         * Called on the callback thread with a message parsed on the receive thread.
+         */
+        public void onTCPMessageReceived(RimicTCPMessageType type, Message message);
+        /**
+         * Called on the receive thread with the contents of a UDPTunnel message.
+         * The buffer is only valid for the duration of the call.
+         */
+        public void onUDPTunnelReceived(ByteBuffer data);
+    }
+
+    /**
+     * A message waiting to be flushed. Exactly one of message and data is set.
+     */
+    private static class PendingMessage {
+        private final RimicTCPMessageType mType;
+        private final Message mMessage;
+        private final byte[] mData;
+        private final int mLength;
+
+        private PendingMessage(RimicTCPMessageType type, Message message, byte[] data, int length) {
+            mType = type;
+            mMessage = message;
+            mData = data;
+            mLength = length;
+        }
     }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import bo.htakey.rimic.protobuf.Mumble;
+import bo.htakey.rimic.protocol.RimicTCPMessageListener;
+
+/**
+ * Parses TCP messages and routes them to the listeners subscribed to their type.
+ * Parsers and listener methods are held in tables indexed by {@link RimicTCPMessageType} ordinal,
+ * so a message only reaches the listeners that asked for its type.
+ * Listeners may be added and removed from any thread.
+ */
+public class RimicTCPMessageDispatcher {
+    private static final int TYPE_COUNT = RimicTCPMessageType.values().length;
+    private static final Route<?>[] ROUTES = new Route<?>[TYPE_COUNT];
+
+    static {
+        addRoute(RimicTCPMessageType.Authenticate, new Route<Mumble.Authenticate>(Mumble.Authenticate.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.Authenticate msg) {
+                listener.messageAuthenticate(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.BanList, new Route<Mumble.BanList>(Mumble.BanList.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.BanList msg) {
+                listener.messageBanList(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.Reject, new Route<Mumble.Reject>(Mumble.Reject.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.Reject msg) {
+                listener.messageReject(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.ServerSync, new Route<Mumble.ServerSync>(Mumble.ServerSync.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.ServerSync msg) {
+                listener.messageServerSync(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.ServerConfig, new Route<Mumble.ServerConfig>(Mumble.ServerConfig.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.ServerConfig msg) {
+                listener.messageServerConfig(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.PermissionDenied, new Route<Mumble.PermissionDenied>(Mumble.PermissionDenied.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.PermissionDenied msg) {
+                listener.messagePermissionDenied(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.UDPTunnel, new Route<Mumble.UDPTunnel>(Mumble.UDPTunnel.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.UDPTunnel msg) {
+                listener.messageUDPTunnel(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.UserState, new Route<Mumble.UserState>(Mumble.UserState.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.UserState msg) {
+                listener.messageUserState(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.UserRemove, new Route<Mumble.UserRemove>(Mumble.UserRemove.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.UserRemove msg) {
+                listener.messageUserRemove(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.ChannelState, new Route<Mumble.ChannelState>(Mumble.ChannelState.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.ChannelState msg) {
+                listener.messageChannelState(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.ChannelRemove, new Route<Mumble.ChannelRemove>(Mumble.ChannelRemove.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.ChannelRemove msg) {
+                listener.messageChannelRemove(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.TextMessage, new Route<Mumble.TextMessage>(Mumble.TextMessage.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.TextMessage msg) {
+                listener.messageTextMessage(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.ACL, new Route<Mumble.ACL>(Mumble.ACL.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.ACL msg) {
+                listener.messageACL(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.QueryUsers, new Route<Mumble.QueryUsers>(Mumble.QueryUsers.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.QueryUsers msg) {
+                listener.messageQueryUsers(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.Ping, new Route<Mumble.Ping>(Mumble.Ping.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.Ping msg) {
+                listener.messagePing(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.CryptSetup, new Route<Mumble.CryptSetup>(Mumble.CryptSetup.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.CryptSetup msg) {
+                listener.messageCryptSetup(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.ContextAction, new Route<Mumble.ContextAction>(Mumble.ContextAction.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.ContextAction msg) {
+                listener.messageContextAction(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.ContextActionModify, new Route<Mumble.ContextActionModify>(Mumble.ContextActionModify.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.ContextActionModify msg) {
+                if (msg.getOperation() == Mumble.ContextActionModify.Operation.Add)
+                    listener.messageContextActionModify(msg);
+                else if (msg.getOperation() == Mumble.ContextActionModify.Operation.Remove)
+                    listener.messageRemoveContextAction(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.Version, new Route<Mumble.Version>(Mumble.Version.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.Version msg) {
+                listener.messageVersion(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.UserList, new Route<Mumble.UserList>(Mumble.UserList.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.UserList msg) {
+                listener.messageUserList(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.PermissionQuery, new Route<Mumble.PermissionQuery>(Mumble.PermissionQuery.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.PermissionQuery msg) {
+                listener.messagePermissionQuery(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.CodecVersion, new Route<Mumble.CodecVersion>(Mumble.CodecVersion.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.CodecVersion msg) {
+                listener.messageCodecVersion(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.UserStats, new Route<Mumble.UserStats>(Mumble.UserStats.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.UserStats msg) {
+                listener.messageUserStats(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.RequestBlob, new Route<Mumble.RequestBlob>(Mumble.RequestBlob.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.RequestBlob msg) {
+                listener.messageRequestBlob(msg);
+            }
+        });
+        addRoute(RimicTCPMessageType.SuggestConfig, new Route<Mumble.SuggestConfig>(Mumble.SuggestConfig.parser()) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.SuggestConfig msg) {
+                listener.messageSuggestConfig(msg);
+            }
+        });
+        // VoiceTarget is only ever sent by clients, so it is never parsed from the server.
+        addRoute(RimicTCPMessageType.VoiceTarget, new Route<Mumble.VoiceTarget>(null) {
+            @Override
+            void dispatch(RimicTCPMessageListener listener, Mumble.VoiceTarget msg) {
+                listener.messageVoiceTarget(msg);
+            }
+        });
+    }
+
+    private final List<RimicTCPMessageListener>[] mSubscribers;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RimicTCPMessageDispatcher() {
+        mSubscribers = new List[TYPE_COUNT];
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mSubscribers[i] = new CopyOnWriteArrayList<RimicTCPMessageListener>();
+        }
+    }
+
+    private static void addRoute(RimicTCPMessageType type, Route<?> route) {
+        ROUTES[type.ordinal()] = route;
+    }
+
+    /**
+     * Parses a protobuf message of the given type.
+     * @param data Raw protobuf TCP data, limited to the length of the message.
+     * @param type Type of the message.
+     * @return The parsed protobuf message.
+     * @throws InvalidProtocolBufferException If the data is invalid, or the type is not one we
+     *                                        receive.
+     */
+    public static Message parse(CodedInputStream data, RimicTCPMessageType type) throws InvalidProtocolBufferException {
+        final Route<?> route = ROUTES[type.ordinal()];
+        if (route == null || route.parser == null) {
+            throw new InvalidProtocolBufferException("Unknown TCP data passed.");
+        }
+        return route.parser.parseFrom(data);
+    }
+
+    /**
+     * Calls the method of the listener that handles the given message type.
+     * @param listener The listener to call, regardless of its subscriptions.
+     * @param msg The message, which must be of the given type.
+     * @param type The type of the message.
+     */
+    public static void dispatch(RimicTCPMessageListener listener, Message msg, RimicTCPMessageType type) {
+        final Route<?> route = ROUTES[type.ordinal()];
+        if (route != null) {
+            route.dispatchUnchecked(listener, msg);
+        }
+    }
+
+    /**
+     * Subscribes the listener to the given message types.
+     * Subscribing to a type more than once has no further effect.
+     */
+    public void subscribe(RimicTCPMessageListener listener, Collection<RimicTCPMessageType> types) {
+        for (RimicTCPMessageType type : types) {
+            final List<RimicTCPMessageListener> subscribers = mSubscribers[type.ordinal()];
+            if (!subscribers.contains(listener)) {
+                subscribers.add(listener);
+            }
+        }
+    }
+
+    /**
+     * Subscribes the listener to every message type.
+     */
+    public void subscribeAll(RimicTCPMessageListener listener) {
+        for (List<RimicTCPMessageListener> subscribers : mSubscribers) {
+            if (!subscribers.contains(listener)) {
+                subscribers.add(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes the listener from every message type it was subscribed to.
+     */
+    public void unsubscribe(RimicTCPMessageListener listener) {
+        for (List<RimicTCPMessageListener> subscribers : mSubscribers) {
+            subscribers.remove(listener);
+        }
+    }
+
+    /**
+     * Delivers the message to the listeners subscribed to its type, in subscription order.
+     */
+    public void dispatch(RimicTCPMessageType type, Message msg) {
+        final Route<?> route = ROUTES[type.ordinal()];
+        if (route == null) {
+            return;
+        }
+        for (RimicTCPMessageListener listener : mSubscribers[type.ordinal()]) {
+            route.dispatchUnchecked(listener, msg);
+        }
+    }
+
+    /**
+     * The parser and listener method for a single message type.
+     */
+    private static abstract class Route<M extends Message> {
+        final Parser<M> parser;
+
+        Route(Parser<M> parser) {
+            this.parser = parser;
+        }
+
+        abstract void dispatch(RimicTCPMessageListener listener, M msg);
+
+        @SuppressWarnings("unchecked")
+        final void dispatchUnchecked(RimicTCPMessageListener listener, Message msg) {
+            dispatch(listener, (M) msg);
+        }
+    }
+}
@@ -46,5 +46,20 @@ public enum RimicTCPMessageType {
     UserStats,
     RequestBlob,
     ServerConfig,
-    SuggestConfig
+    SuggestConfig;
+
+    /** Cached, as values() clones the array on every call. */
+    private static final RimicTCPMessageType[] TYPES = values();
+
+    /**
+     * Looks up a message type by its wire id, without allocating.
+     * @param id The type id from the TCP header.
+     * @return The message type, or null if the id is unknown.
+     */
+    public static RimicTCPMessageType fromId(int id) {
+        if (id < 0 || id >= TYPES.length) {
+            return null;
+        }
+        return TYPES[id];
+    }
 }
@@ -26,8 +26,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -39,7 +38,7 @@ import bo.htakey.rimic.Constants;
  * Class to maintain and receive packets from the UDP connection to a Mumble server.
  * Public interface is not thread safe.
  */
-public class RimicUDP implements Runnable {
+public class RimicUDP implements IUDPTransport, Runnable {
     private static final String TAG = "RimicUDP";
 
     private static final int BUFFER_SIZE = 1024;
@@ -47,10 +46,9 @@ public class RimicUDP implements Runnable {
 
     private DatagramSocket mUDPSocket;
     private UDPConnectionListener mListener;
-    private String mHost;
+    private InetAddress mAddress;
     private int mPort;
-    private InetAddress mResolvedHost;
-    private boolean mConnected;
+    private volatile boolean mConnected;
 
     /** Main datagram thread hosting this runnable. */
     private final Thread mDatagramThread;
@@ -58,14 +56,18 @@ public class RimicUDP implements Runnable {
     /** Handler to invoke listener callback invocations on. */
     private final Handler mCallbackHandler;
 
-    /** Unbounded queue of outgoing packets to be sent. */
-    private final BlockingQueue<DatagramPacket> mSendQueue;
+    /** Bounded queue of encrypted outgoing packets to be sent. */
+    private final RimicUDPSendQueue mSendQueue;
+
+    /** Scratch array used to encrypt outgoing packets. Guarded by itself. */
+    private final byte[] mEncryptBuffer = new byte[BUFFER_SIZE];
 
     /**
      * Sets up a new UDP connection context.
      * @param cryptState Cryptographic state provider.
-     * @param listener Callback target. Messages will be posted on the callback handler given.
-     * @param callbackHandler Handler to post listener invocations on.
+     * @param listener Callback target. Data is delivered on the receive thread, while connection
+     *                 state calls are posted on the callback handler given.
+     * @param callbackHandler Handler to post connection state listener invocations on.
      */
     public RimicUDP(@NotNull CryptState cryptState, @NotNull UDPConnectionListener listener,
                      @NotNull Handler callbackHandler) {
@@ -73,28 +75,36 @@ public class RimicUDP implements Runnable {
         mListener = listener;
         mCallbackHandler = callbackHandler;
         mDatagramThread = new Thread(this);
-        mSendQueue = new LinkedBlockingQueue<>();
+        mSendQueue = new RimicUDPSendQueue(RimicUDPSendQueue.DEFAULT_CAPACITY, BUFFER_SIZE,
+                RimicUDPSendQueue.DEFAULT_DEADLINE);
     }
 
-    public void connect(@NotNull String host, @NotNull int port) {
-        mHost = host;
+    @Override
+    public void connect(@NotNull InetAddress address, int port) {
+        mAddress = address;
         mPort = port;
+        // Set before starting, so that a disconnect racing the thread start is not lost.
+        mConnected = true;
         mDatagramThread.start();
     }
 
+    @Override
     public boolean isRunning() {
         return mConnected;
     }
 
+    @Override
+    public RimicUDPSendQueue getSendQueue() {
+        return mSendQueue;
+    }
+
     @Override
     public void run() {
         Thread outgoingConsumerThread = null;
-        mConnected = true;
         try {
-            mResolvedHost = InetAddress.getByName(mHost);
             mUDPSocket = new DatagramSocket();
 
-            mUDPSocket.connect(mResolvedHost, mPort);
+            mUDPSocket.connect(mAddress, mPort);
             Log.d(TAG, "Created socket");
 
             // Start outgoing consumer once the UDP socket is open, as a child thread.
@@ -103,6 +113,8 @@ public class RimicUDP implements Runnable {
             outgoingConsumerThread.start();
 
             final DatagramPacket packet = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+            final byte[] plaintext = new byte[BUFFER_SIZE];
+            final ByteBuffer plaintextBuffer = ByteBuffer.wrap(plaintext);
             while (mConnected) {
                 mUDPSocket.receive(packet);
                 final byte[] data = packet.getData();
@@ -118,16 +130,14 @@ public class RimicUDP implements Runnable {
                 }
 
                 try {
-                    final byte[] buffer = mCryptState.decrypt(data, length);
+                    final boolean decrypted = mCryptState.decrypt(data, 0, length, plaintext, 0);
 
                     if (mListener != null) {
-                        if (buffer != null) {
-                            mCallbackHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mListener.onUDPDataReceived(buffer);
-                                }
-                            });
+                        if (decrypted) {
+                            // Voice is delivered on this thread, see UDPConnectionListener.
+                            plaintextBuffer.clear();
+                            plaintextBuffer.limit(length - 4);
+                            mListener.onUDPDataReceived(plaintextBuffer);
                         } else if (mCryptState.getLastGoodElapsed() > 5000000 &&
                                 mCryptState.getLastRequestElapsed() > 5000000) {
                             mCryptState.resetLastRequestTime();
@@ -171,10 +181,11 @@ public class RimicUDP implements Runnable {
             // Clear the outgoing queue, in case the caller decides to reconnect with the same socket.
             mSendQueue.clear();
 
-            mUDPSocket.close();
+            if (mUDPSocket != null) mUDPSocket.close();
         }
     }
 
+    @Override
     public void sendMessage(@NotNull final byte[] data, final int length) {
         if (!mCryptState.isValid()) {
             Log.w(TAG, "Invalid cryptstate prior to sendMessage call.");
@@ -185,12 +196,16 @@ public class RimicUDP implements Runnable {
             return;
         }
 
+        if (length + 4 > BUFFER_SIZE) {
+            Log.w(TAG, "Tried to send oversized UDP message of " + length + " bytes.");
+            return;
+        }
+
         try {
-            byte[] encryptedData = mCryptState.encrypt(data, length);
-            final DatagramPacket packet = new DatagramPacket(encryptedData, encryptedData.length);
-            packet.setAddress(mResolvedHost);
-            packet.setPort(mPort);
-            mSendQueue.add(packet);
+            synchronized (mEncryptBuffer) {
+                mCryptState.encrypt(data, 0, length, mEncryptBuffer, 0);
+                mSendQueue.offer(mEncryptBuffer, 0, length + 4);
+            }
         } catch (BadPaddingException e) {
             // TODO
             e.printStackTrace();
@@ -206,31 +221,23 @@ public class RimicUDP implements Runnable {
     /**
      * Lazy, non-blocking idempotent disconnect.
      */
+    @Override
     public void disconnect() {
         mConnected = false;
         // Closing a socket will trigger an IOException on the consumer thread.
-        mUDPSocket.close();
-    }
-
-    /**
-     * Note that all connection state related calls are made on the main thread.
-     * onUDPDataReceived is always called on the UDP receive thread.
-     */
-    public interface UDPConnectionListener {
-        void onUDPDataReceived(byte[] data);
-        void onUDPConnectionError(Exception e);
-        void resyncCryptState();
+        if (mUDPSocket != null) mUDPSocket.close();
     }
 
     /**
-     * Runnable that reads from a shared blocking queue, dispatching datagrams when available.
+     * Runnable that reads from the send queue, dispatching datagrams when available.
+     * A single packet and buffer are reused for every send.
      */
     private static class OutgoingConsumer implements Runnable {
         private final DatagramSocket mSocket;
-        private final BlockingQueue<DatagramPacket> mQueue;
+        private final RimicUDPSendQueue mQueue;
 
         public OutgoingConsumer(@NotNull DatagramSocket socket,
-                                @NotNull BlockingQueue<DatagramPacket> queue) {
+                                @NotNull RimicUDPSendQueue queue) {
             mSocket = socket;
             mQueue = queue;
         }
@@ -238,10 +245,12 @@ public class RimicUDP implements Runnable {
         @Override
         public void run() {
             Log.d(TAG, "Datagram outbox consumer active");
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            final DatagramPacket packet = new DatagramPacket(buffer, BUFFER_SIZE);
             boolean interrupted = false;
             while (!interrupted) {
                 try {
-                    DatagramPacket packet = mQueue.take();
+                    packet.setLength(mQueue.take(buffer));
                     mSocket.send(packet);
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+import bo.htakey.rimic.Constants;
+
+/**
+ * UDP transport backed by a connected {@link DatagramChannel}.
+ * Datagrams are received into a single heap buffer and decrypted in place in its backing array,
+ * so the receive path neither allocates nor copies per packet. The buffer is reused as soon as
+ * the listener returns, as packets are delivered synchronously on the receive thread.
+ * Public interface is not thread safe.
+ */
+public class RimicUDPChannel implements IUDPTransport, Runnable {
+    private static final String TAG = "RimicUDPChannel";
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private final CryptState mCryptState;
+    private final UDPConnectionListener mListener;
+    private InetAddress mAddress;
+    private int mPort;
+    private DatagramChannel mChannel;
+    private volatile boolean mConnected;
+
+    /** Main datagram thread hosting this runnable. */
+    private final Thread mDatagramThread;
+
+    /** Handler to invoke listener callback invocations on. */
+    private final Handler mCallbackHandler;
+
+    /**
+     * Buffer datagrams are received into. A heap buffer, as CryptState decrypts those in their
+     * backing array without a staging copy. Only used by the receive thread.
+     */
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Bounded queue of encrypted outgoing datagrams to be sent. */
+    private final RimicUDPSendQueue mSendQueue;
+
+    /** Scratch array used to encrypt outgoing datagrams. Guarded by itself. */
+    private final byte[] mEncryptBuffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Sets up a new UDP connection context.
+     * @param cryptState Cryptographic state provider.
+     * @param listener Callback target. Data is delivered on the receive thread, while connection
+     *                 state calls are posted on the callback handler given.
+     * @param callbackHandler Handler to post connection state listener invocations on.
+     */
+    public RimicUDPChannel(@NotNull CryptState cryptState, @NotNull UDPConnectionListener listener,
+                           @NotNull Handler callbackHandler) {
+        mCryptState = cryptState;
+        mListener = listener;
+        mCallbackHandler = callbackHandler;
+        mDatagramThread = new Thread(this);
+        mSendQueue = new RimicUDPSendQueue(RimicUDPSendQueue.DEFAULT_CAPACITY, BUFFER_SIZE,
+                RimicUDPSendQueue.DEFAULT_DEADLINE);
+    }
+
+    @Override
+    public void connect(@NotNull InetAddress address, int port) {
+        mAddress = address;
+        mPort = port;
+        mConnected = true;
+        mDatagramThread.start();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mConnected;
+    }
+
+    @Override
+    public RimicUDPSendQueue getSendQueue() {
+        return mSendQueue;
+    }
+
+    @Override
+    public void run() {
+        Thread outgoingConsumerThread = null;
+        try {
+            synchronized (this) {
+                if (!mConnected) return;
+                mChannel = DatagramChannel.open();
+            }
+            mChannel.connect(new InetSocketAddress(mAddress, mPort));
+            Log.d(TAG, "Created channel");
+
+            outgoingConsumerThread = new Thread(new OutgoingConsumer());
+            outgoingConsumerThread.start();
+
+            final ByteBuffer buffer = mReceiveBuffer;
+            while (mConnected) {
+                buffer.clear();
+                mChannel.read(buffer);
+                buffer.flip();
+
+                try {
+                    if (!mCryptState.isValid()) {
+                        Log.d(TAG, "CryptState invalid, discarding packet");
+                        continue;
+                    }
+                    if (buffer.remaining() < 5) {
+                        Log.d(TAG, "Packet too short, discarding");
+                        continue;
+                    }
+
+                    if (mCryptState.decrypt(buffer)) {
+                        // Voice is delivered on this thread, see UDPConnectionListener.
+                        mListener.onUDPDataReceived(buffer);
+                    } else {
+                        if (mCryptState.getLastGoodElapsed() > 5000000 &&
+                                mCryptState.getLastRequestElapsed() > 5000000) {
+                            mCryptState.resetLastRequestTime();
+                            mCallbackHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mListener.resyncCryptState();
+                                }
+                            });
+                            Log.d(TAG, "Packet failed to decrypt, discarding and requesting crypt state resync");
+                        } else {
+                            Log.d(TAG, "Packet failed to decrypt, discarding");
+                        }
+                    }
+                } catch (BadPaddingException | IllegalBlockSizeException | ShortBufferException e) {
+                    Log.d(Constants.TAG, "Discarding packet", e);
+                }
+            }
+        } catch (final IOException e) {
+            // If mConnected is false, then this is a user-triggered disconnection. Report no error.
+            if (mConnected) {
+                Log.d(TAG, "UDP channel closed unexpectedly");
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onUDPConnectionError(e);
+                    }
+                });
+            } else {
+                Log.d(TAG, "UDP channel closed in response to user disconnect");
+            }
+        } finally {
+            mConnected = false;
+
+            if (outgoingConsumerThread != null) {
+                outgoingConsumerThread.interrupt();
+            }
+            mSendQueue.clear();
+            closeChannel();
+        }
+    }
+
+    @Override
+    public void sendMessage(@NotNull byte[] data, int length) {
+        if (!mCryptState.isValid()) {
+            Log.w(TAG, "Invalid cryptstate prior to sendMessage call.");
+            return;
+        }
+        if (!mConnected) {
+            Log.w(TAG, "Tried to send UDP message without an active connection.");
+            return;
+        }
+        if (length + 4 > BUFFER_SIZE) {
+            Log.w(TAG, "Tried to send oversized UDP message of " + length + " bytes.");
+            return;
+        }
+
+        try {
+            synchronized (mEncryptBuffer) {
+                mCryptState.encrypt(data, 0, length, mEncryptBuffer, 0);
+                mSendQueue.offer(mEncryptBuffer, 0, length + 4);
+            }
+        } catch (BadPaddingException | IllegalBlockSizeException | ShortBufferException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Lazy, non-blocking idempotent disconnect.
+     */
+    @Override
+    public void disconnect() {
+        mConnected = false;
+        // Closing the channel will trigger an AsynchronousCloseException on the receive thread.
+        closeChannel();
+    }
+
+    private synchronized void closeChannel() {
+        if (mChannel == null) return;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runnable that writes queued datagrams to the channel straight from a single array.
+     */
+    private class OutgoingConsumer implements Runnable {
+        @Override
+        public void run() {
+            Log.d(TAG, "Datagram outbox consumer active");
+            final byte[] data = new byte[BUFFER_SIZE];
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            boolean interrupted = false;
+            while (!interrupted) {
+                try {
+                    final int length = mSendQueue.take(data);
+                    buffer.clear();
+                    buffer.limit(length);
+                    mChannel.write(buffer);
+                } catch (IOException e) {
+                    // Closing the channel from the receive thread ends the outbox.
+                    interrupted = !mChannel.isOpen();
+                    if (!interrupted) e.printStackTrace();
+                } catch (InterruptedException e) {
+                    // Our datagram thread interrupted us. We should stop reading.
+                    interrupted = true;
+                }
+            }
+            Log.d(TAG, "Datagram outbox consumer shutdown");
+        }
+    }
+}
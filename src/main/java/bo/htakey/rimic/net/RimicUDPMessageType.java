@@ -22,5 +22,20 @@ public enum RimicUDPMessageType {
     UDPPing,
     UDPVoiceSpeex,
     UDPVoiceCELTBeta,
-    UDPVoiceOpus
+    UDPVoiceOpus;
+
+    /** Cached, as values() clones the array on every call. */
+    private static final RimicUDPMessageType[] TYPES = values();
+
+    /**
+     * Looks up a message type by its id, without allocating.
+     * @param id The type id from the top three bits of the UDP header.
+     * @return The message type, or null if the id is unknown.
+     */
+    public static RimicUDPMessageType fromId(int id) {
+        if (id < 0 || id >= TYPES.length) {
+            return null;
+        }
+        return TYPES[id];
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring of outgoing datagrams with preallocated slots.
+ * Voice that could not be sent in time is useless to the server's jitter buffer, so rather than
+ * letting packets pile up while the network stalls, the queue drops the oldest packet when full
+ * and discards packets that have waited longer than the deadline when they are taken.
+ * Safe for one or more producers and a single consumer.
+ */
+public class RimicUDPSendQueue {
+    /** Default number of queued datagrams, about a second of voice at the smallest packet size. */
+    public static final int DEFAULT_CAPACITY = 64;
+    /** Default maximum time a datagram may wait in the queue, in milliseconds. */
+    public static final int DEFAULT_DEADLINE = 200;
+
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final long[] mEnqueueTimes;
+    private final int mSlotSize;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private volatile long mDeadlineNanos;
+
+    /** Index of the oldest queued datagram. Guarded by mLock. */
+    private int mHead;
+    /** Number of queued datagrams. Guarded by mLock. */
+    private int mCount;
+
+    private volatile int mMaxDepth;
+    private volatile long mSent;
+    private volatile long mDroppedOverflow;
+    private volatile long mDroppedStale;
+
+    /**
+     * @param capacity The maximum number of datagrams held.
+     * @param slotSize The maximum length of a datagram.
+     * @param deadline The maximum time a datagram may wait in the queue, in milliseconds.
+     */
+    public RimicUDPSendQueue(int capacity, int slotSize, int deadline) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        mSlots = new byte[capacity][slotSize];
+        mLengths = new int[capacity];
+        mEnqueueTimes = new long[capacity];
+        mSlotSize = slotSize;
+        setDeadline(deadline);
+    }
+
+    /**
+     * Sets the maximum time a datagram may wait before it is dropped instead of sent.
+     * @param deadline The deadline in milliseconds.
+     */
+    public void setDeadline(int deadline) {
+        mDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadline);
+    }
+
+    /**
+     * Copies a datagram into the queue. If the queue is full, the oldest datagram is dropped.
+     * @param data The buffer containing the datagram.
+     * @param offset The offset of the datagram in data.
+     * @param length The length of the datagram.
+     * @throws IllegalArgumentException if the datagram is larger than a slot.
+     */
+    public void offer(byte[] data, int offset, int length) {
+        if (length > mSlotSize) {
+            throw new IllegalArgumentException("Datagram of " + length + " bytes exceeds slot size " + mSlotSize);
+        }
+        mLock.lock();
+        try {
+            if (mCount == mSlots.length) {
+                mHead = (mHead + 1) % mSlots.length;
+                mCount--;
+                mDroppedOverflow++;
+            }
+            final int tail = (mHead + mCount) % mSlots.length;
+            System.arraycopy(data, offset, mSlots[tail], 0, length);
+            mLengths[tail] = length;
+            mEnqueueTimes[tail] = System.nanoTime();
+            mCount++;
+            if (mCount > mMaxDepth) mMaxDepth = mCount;
+            mNotEmpty.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a datagram younger than the deadline is available, and copies it out.
+     * Datagrams past the deadline are dropped on the way.
+     * @param dst The buffer to copy the datagram to, at least as large as a slot.
+     * @return The length of the datagram.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public int take(byte[] dst) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (true) {
+                while (mCount == 0) {
+                    mNotEmpty.await();
+                }
+                final int head = mHead;
+                mHead = (mHead + 1) % mSlots.length;
+                mCount--;
+                if (System.nanoTime() - mEnqueueTimes[head] > mDeadlineNanos) {
+                    mDroppedStale++;
+                    continue;
+                }
+                final int length = mLengths[head];
+                System.arraycopy(mSlots[head], 0, dst, 0, length);
+                mSent++;
+                return length;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drops all queued datagrams without counting them.
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            mHead = 0;
+            mCount = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of datagrams currently queued.
+     */
+    public int getDepth() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return The largest number of datagrams that have been queued at once.
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return The number of datagrams taken from the queue to be sent.
+     */
+    public long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * @return The number of datagrams dropped because the queue was full.
+     */
+    public long getDroppedOverflowCount() {
+        return mDroppedOverflow;
+    }
+
+    /**
+     * @return The number of datagrams dropped because they were older than the deadline.
+     */
+    public long getDroppedStaleCount() {
+        return mDroppedStale;
+    }
+}
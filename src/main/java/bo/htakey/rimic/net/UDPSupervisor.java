@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.net;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import bo.htakey.rimic.Constants;
+
+/**
+ * Recovers the UDP transport after it fails, instead of tunnelling over TCP for the rest of the
+ * session. After a failure, the transport is recreated with exponential backoff and probed with
+ * UDP pings. Voice is switched back to UDP once both our and the server's good packet counts
+ * have grown since the restart.
+ * All methods except {@link #getState()} must be called on the thread of the handler given.
+ */
+public class UDPSupervisor {
+    /** Delay before the first restart attempt, in milliseconds. */
+    public static final int MIN_BACKOFF = 1000;
+    /** Maximum delay between restart attempts, in milliseconds. */
+    public static final int MAX_BACKOFF = 60000;
+    /** Interval between UDP ping probes while waiting for a restarted transport to recover. */
+    public static final int PROBE_INTERVAL = 1000;
+    /** Time to wait for a restarted transport to recover. Spans several TCP pings, which carry
+     *  the server's good packet count. */
+    public static final int PROBE_TIMEOUT = 15000;
+
+    public enum State {
+        /** The supervisor is stopped, or UDP is forced off. */
+        DISABLED,
+        /** Voice is sent over UDP. */
+        CONNECTED,
+        /** The transport failed. Voice is tunnelled over TCP until the next restart attempt. */
+        BACKOFF,
+        /** The transport was restarted and is being probed. Voice is still tunnelled over TCP. */
+        PROBING
+    }
+
+    private final Handler mHandler;
+    private final CryptState mCryptState;
+    private final Callback mCallback;
+    private Listener mListener;
+
+    private volatile State mState = State.DISABLED;
+    private long mStateTimestamp = SystemClock.elapsedRealtime();
+    private int mBackoff = MIN_BACKOFF;
+    private int mAttempt;
+    private int mProbeGood;
+    private int mProbeRemoteGood;
+
+    private final Runnable mRestartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAttempt++;
+            mProbeGood = mCryptState.mUiGood;
+            mProbeRemoteGood = mCryptState.mUiRemoteGood;
+            setState(State.PROBING);
+            mCallback.restartTransport();
+            mHandler.post(mProbeRunnable);
+            mHandler.postDelayed(mProbeTimeoutRunnable, PROBE_TIMEOUT);
+        }
+    };
+
+    private final Runnable mProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.sendProbe();
+            mHandler.postDelayed(this, PROBE_INTERVAL);
+        }
+    };
+
+    private final Runnable mProbeTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(Constants.TAG, "UDP did not recover after restart attempt " + mAttempt);
+            onTransportFailed();
+        }
+    };
+
+    public UDPSupervisor(Handler handler, CryptState cryptState, Callback callback) {
+        mHandler = handler;
+        mCryptState = cryptState;
+        mCallback = callback;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts supervising a freshly connected transport.
+     */
+    public void start() {
+        cancelCallbacks();
+        mBackoff = MIN_BACKOFF;
+        mAttempt = 0;
+        setState(State.CONNECTED);
+    }
+
+    /**
+     * Stops supervision, cancelling any pending restart.
+     */
+    public void stop() {
+        cancelCallbacks();
+        setState(State.DISABLED);
+    }
+
+    /**
+     * Called when the transport fails. Falls back to TCP and schedules a restart.
+     */
+    public void onTransportFailed() {
+        if (mState == State.DISABLED) return;
+        cancelCallbacks();
+        mCallback.stopTransport();
+        setState(State.BACKOFF);
+        Log.i(Constants.TAG, "Restarting UDP in " + mBackoff + "ms");
+        mHandler.postDelayed(mRestartRunnable, mBackoff);
+        mBackoff = Math.min(mBackoff * 2, MAX_BACKOFF);
+    }
+
+    /**
+     * Called when the packet counters may have changed, such as after a ping.
+     * Switches back to UDP if a restarted transport has recovered.
+     */
+    public void checkRecovery() {
+        if (mState != State.PROBING) return;
+        if (mCryptState.mUiGood > mProbeGood && mCryptState.mUiRemoteGood > mProbeRemoteGood) {
+            cancelCallbacks();
+            mBackoff = MIN_BACKOFF;
+            setState(State.CONNECTED);
+            mAttempt = 0;
+            mCallback.resumeTransport();
+        }
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return The number of restart attempts since UDP was last connected.
+     */
+    public int getAttempt() {
+        return mAttempt;
+    }
+
+    private void cancelCallbacks() {
+        mHandler.removeCallbacks(mRestartRunnable);
+        mHandler.removeCallbacks(mProbeRunnable);
+        mHandler.removeCallbacks(mProbeTimeoutRunnable);
+    }
+
+    private void setState(State state) {
+        if (state == mState) return;
+        final State oldState = mState;
+        final long now = SystemClock.elapsedRealtime();
+        final long duration = now - mStateTimestamp;
+        mState = state;
+        mStateTimestamp = now;
+        Log.i(Constants.TAG, "UDP " + oldState + " -> " + state + " after " + duration +
+                "ms, attempt " + mAttempt);
+        if (mListener != null) mListener.onUDPStateChanged(oldState, state, mAttempt, duration);
+    }
+
+    /**
+     * Transport operations performed on behalf of the supervisor.
+     */
+    public interface Callback {
+        /** Closes the failed transport and tunnels voice over TCP. */
+        void stopTransport();
+        /** Creates and connects a new transport, still tunnelling voice over TCP. */
+        void restartTransport();
+        /** Sends a UDP ping over the restarted transport. */
+        void sendProbe();
+        /** Switches voice back to the restarted transport. */
+        void resumeTransport();
+    }
+
+    /**
+     * Receives a metric event for every state transition.
+     */
+    public interface Listener {
+        /**
+         * @param oldState The state being left.
+         * @param newState The state being entered.
+         * @param attempt The number of restart attempts since UDP was last connected.
+         * @param duration The time spent in the old state, in milliseconds.
+         */
+        void onUDPStateChanged(State oldState, State newState, int attempt, long duration);
+    }
+}
@@ -21,6 +21,11 @@ import android.content.Context;
 import android.media.AudioManager;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
 import bo.htakey.rimic.Constants;
 import bo.htakey.rimic.audio.AudioInput;
 import bo.htakey.rimic.audio.AudioOutput;
@@ -37,6 +42,7 @@ import bo.htakey.rimic.exception.NativeAudioException;
 import bo.htakey.rimic.model.User;
 import bo.htakey.rimic.net.PacketBuffer;
 import bo.htakey.rimic.net.RimicConnection;
+import bo.htakey.rimic.net.RimicTCPMessageType;
 import bo.htakey.rimic.net.RimicUDPMessageType;
 import bo.htakey.rimic.protobuf.Mumble;
 import bo.htakey.rimic.util.RimicLogger;
@@ -60,6 +66,11 @@ public class AudioHandler extends RimicNetworkListener implements AudioInput.Aud
     public static final int SAMPLE_RATE = 16000;
     public static final int FRAME_SIZE = SAMPLE_RATE/100;
     public static final int MAX_BUFFER_SIZE = FRAME_SIZE * 12;
+    /** The TCP message types handled by the audio handler. */
+    public static final Set<RimicTCPMessageType> MESSAGE_TYPES = Collections.unmodifiableSet(
+            EnumSet.of(RimicTCPMessageType.CodecVersion,
+                    RimicTCPMessageType.ServerSync,
+                    RimicTCPMessageType.UserState));
 
     private final Context mContext;
     private final RimicLogger mLogger;
@@ -428,7 +439,7 @@ public class AudioHandler extends RimicNetworkListener implements AudioInput.Aud
     }
 
     @Override
-    public void messageVoiceData(byte[] data, RimicUDPMessageType messageType) {
+    public void messageVoiceData(ByteBuffer data, RimicUDPMessageType messageType) {
         synchronized (mOutput) {
             mOutput.queueVoiceData(data, messageType);
         }
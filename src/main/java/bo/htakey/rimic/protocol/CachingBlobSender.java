@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.protocol;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import bo.htakey.rimic.model.ChannelSnapshot;
+import bo.htakey.rimic.model.ModelSnapshot;
+import bo.htakey.rimic.model.UserSnapshot;
+import bo.htakey.rimic.net.RimicConnection;
+import bo.htakey.rimic.net.RimicTCPMessageType;
+import bo.htakey.rimic.protobuf.Mumble;
+import bo.htakey.rimic.util.BlobCache;
+
+/**
+ * Sends blob requests to the server only for the blobs missing from the cache.
+ *
+ * Cached blobs are looked up by the hash the server last sent, on the cache's executor, as they
+ * may be read from disk. Blobs found are delivered to the protocol thread as if the server had
+ * sent them, so that the model, observers and pending requests are updated the same way. The
+ * model does not store these blobs again, so a hit costs only the lookup.
+ */
+public class CachingBlobSender implements RequestBlobBatcher.Sender {
+    private final RimicConnection mConnection;
+    private final ModelHandler mModel;
+    private final BlobCache mCache;
+
+    public CachingBlobSender(RimicConnection connection, ModelHandler model, BlobCache cache) {
+        mConnection = connection;
+        mModel = model;
+        mCache = cache;
+    }
+
+    @Override
+    public void sendRequestBlob(final Mumble.RequestBlob request) {
+        mCache.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                resolve(request);
+            }
+        });
+    }
+
+    private void resolve(Mumble.RequestBlob request) {
+        final ModelSnapshot snapshot = mModel.getSnapshot();
+        final Mumble.RequestBlob.Builder misses = Mumble.RequestBlob.newBuilder();
+        for (int session : request.getSessionTextureList()) {
+            final UserSnapshot user = snapshot.getUser(session);
+            final ByteString texture = user != null ? lookup(user.getTextureHash()) : null;
+            if (texture != null) {
+                deliver(Mumble.UserState.newBuilder()
+                        .setSession(session)
+                        .setTexture(texture)
+                        .build());
+            } else {
+                misses.addSessionTexture(session);
+            }
+        }
+        for (int session : request.getSessionCommentList()) {
+            final UserSnapshot user = snapshot.getUser(session);
+            final ByteString comment = user != null ? lookup(user.getCommentHash()) : null;
+            if (comment != null) {
+                deliver(Mumble.UserState.newBuilder()
+                        .setSession(session)
+                        .setCommentBytes(comment)
+                        .build());
+            } else {
+                misses.addSessionComment(session);
+            }
+        }
+        for (int id : request.getChannelDescriptionList()) {
+            final ChannelSnapshot channel = snapshot.getChannel(id);
+            final ByteString description =
+                    channel != null ? lookup(channel.getDescriptionHash()) : null;
+            if (description != null) {
+                deliver(Mumble.ChannelState.newBuilder()
+                        .setChannelId(id)
+                        .setDescriptionBytes(description)
+                        .build());
+            } else {
+                misses.addChannelDescription(id);
+            }
+        }
+        if (misses.getSessionTextureCount() > 0 || misses.getSessionCommentCount() > 0
+                || misses.getChannelDescriptionCount() > 0) {
+            mConnection.sendTCPMessage(misses.build(), RimicTCPMessageType.RequestBlob);
+        }
+    }
+
+    private void deliver(final Mumble.UserState state) {
+        mConnection.runOnProtocolThread(new Runnable() {
+            @Override
+            public void run() {
+                // The user may have left since the snapshot; the state would add it back.
+                if (mModel.getUser(state.getSession()) != null) {
+                    dispatch(state, RimicTCPMessageType.UserState);
+                }
+            }
+        });
+    }
+
+    private void deliver(final Mumble.ChannelState state) {
+        mConnection.runOnProtocolThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mModel.getChannel(state.getChannelId()) != null) {
+                    dispatch(state, RimicTCPMessageType.ChannelState);
+                }
+            }
+        });
+    }
+
+    /**
+     * Dispatches a message carrying a cached blob, so that the model does not store it again.
+     * Must be called on the protocol thread.
+     */
+    private void dispatch(final Message message, final RimicTCPMessageType type) {
+        mModel.replayCachedBlobs(new Runnable() {
+            @Override
+            public void run() {
+                mConnection.dispatchTCPMessage(message, type);
+            }
+        });
+    }
+
+    /**
+     * @return The cached blob, without copying it, or null if there is no hash or it is not cached.
+     */
+    private ByteString lookup(byte[] hash) {
+        if (hash == null) return null;
+        // The snapshot returns a copy of the hash, so it can be wrapped.
+        final ByteBuffer blob = mCache.get(UnsafeByteOperations.unsafeWrap(hash));
+        return blob != null ? UnsafeByteOperations.unsafeWrap(blob) : null;
+    }
+}
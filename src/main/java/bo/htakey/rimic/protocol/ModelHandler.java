@@ -20,20 +20,29 @@ package bo.htakey.rimic.protocol;
 import android.content.Context;
 import android.util.Log;
 
+import com.google.protobuf.ByteString;
+
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import bo.htakey.rimic.Constants;
 import bo.htakey.rimic.R;
 import bo.htakey.rimic.model.Channel;
+import bo.htakey.rimic.model.ChannelSnapshot;
 import bo.htakey.rimic.model.Message;
+import bo.htakey.rimic.model.ModelSnapshot;
 import bo.htakey.rimic.model.User;
+import bo.htakey.rimic.model.UserSnapshot;
+import bo.htakey.rimic.net.RimicTCPMessageType;
 import bo.htakey.rimic.protobuf.Mumble;
+import bo.htakey.rimic.util.BlobCache;
+import bo.htakey.rimic.util.ConcurrentIntMap;
 import bo.htakey.rimic.util.RimicLogger;
 import bo.htakey.rimic.util.IRimicObserver;
 import bo.htakey.rimic.util.MessageFormatter;
@@ -44,26 +53,63 @@ import bo.htakey.rimic.util.MessageFormatter;
  * Created by andrew on 18/07/13.
  */
 public class ModelHandler extends RimicTCPMessageListener.Stub {
+    /** The TCP message types handled by the model. */
+    public static final Set<RimicTCPMessageType> MESSAGE_TYPES = Collections.unmodifiableSet(
+            EnumSet.of(RimicTCPMessageType.ChannelState,
+                    RimicTCPMessageType.ChannelRemove,
+                    RimicTCPMessageType.PermissionQuery,
+                    RimicTCPMessageType.UserState,
+                    RimicTCPMessageType.UserRemove,
+                    RimicTCPMessageType.PermissionDenied,
+                    RimicTCPMessageType.TextMessage,
+                    RimicTCPMessageType.ServerSync));
+
     private final Context mContext;
-    private final Map<Integer, Channel> mChannels;
-    private final Map<Integer, User> mUsers;
+    /** Concurrent, as the model is updated on the protocol thread and read from the UI. */
+    private final ConcurrentIntMap<Channel> mChannels;
+    /** Concurrent, as users are also looked up for every voice packet on the audio threads. */
+    private final ConcurrentIntMap<User> mUsers;
     private final List<Integer> mLocalMuteHistory;
     private final List<Integer> mLocalIgnoreHistory;
     private final IRimicObserver mObserver;
     private final RimicLogger mLogger;
+    private final BlobCache mBlobCache;
+    /** Set while blobs from the cache are replayed, so they are not stored again. */
+    private boolean mReplayingCachedBlobs;
     private int mPermissions;
-    private int mSession;
+    /** Volatile, as the session user is read after disconnection from the main thread. */
+    private volatile int mSession;
+    /** The latest snapshot of the model, published after each message that changes it. */
+    private final AtomicReference<ModelSnapshot> mSnapshot =
+            new AtomicReference<ModelSnapshot>(ModelSnapshot.EMPTY);
+    /**
+     * Whether the server is still sending its initial state. Until it is done, state is applied
+     * without notifying observers, and the snapshot is built once at the end.
+     */
+    private boolean mSynchronizing = true;
 
     public ModelHandler(Context context, IRimicObserver observer, RimicLogger logger,
                         @Nullable List<Integer> localMuteHistory,
                         @Nullable List<Integer> localIgnoreHistory) {
+        this(context, observer, logger, localMuteHistory, localIgnoreHistory, null);
+    }
+
+    /**
+     * @param blobCache The cache to add textures, comments and channel descriptions to when the
+     *                  server sends them. Cached blobs are only looked up when requested.
+     */
+    public ModelHandler(Context context, IRimicObserver observer, RimicLogger logger,
+                        @Nullable List<Integer> localMuteHistory,
+                        @Nullable List<Integer> localIgnoreHistory,
+                        @Nullable BlobCache blobCache) {
         mContext = context;
-        mChannels = new HashMap<Integer, Channel>();
-        mUsers = new HashMap<Integer, User>();
+        mChannels = new ConcurrentIntMap<Channel>();
+        mUsers = new ConcurrentIntMap<User>();
         mLocalMuteHistory = localMuteHistory;
         mLocalIgnoreHistory = localIgnoreHistory;
         mObserver = observer;
         mLogger = logger;
+        mBlobCache = blobCache;
     }
 
     public Channel getChannel(int id) {
@@ -74,6 +120,15 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
         return mUsers.get(session);
     }
 
+    /**
+     * Returns the user of this client. Unlike the connection's session, it remains available
+     * after disconnection.
+     * @return The session user, or null if not yet synchronized.
+     */
+    public User getSessionUser() {
+        return mUsers.get(mSession);
+    }
+
     /**
      * Creates a stub channel with the given ID.
      * Useful for keeping user references when we get a UserState message before a ChannelState.
@@ -86,12 +141,27 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
         return channel;
     }
 
-    public Map<Integer, Channel> getChannels() {
-        return Collections.unmodifiableMap(mChannels);
+    /**
+     * @return A copy of the known channels, in no particular order.
+     */
+    public List<Channel> getChannels() {
+        return mChannels.values();
+    }
+
+    /**
+     * @return A copy of the known users, in no particular order.
+     */
+    public List<User> getUsers() {
+        return mUsers.values();
     }
 
-    public Map<Integer, User> getUsers() {
-        return Collections.unmodifiableMap(mUsers);
+    /**
+     * Returns an immutable snapshot of the channel tree and its users. Unlike the live model, it
+     * is safe to read from any thread.
+     * @return The latest snapshot.
+     */
+    public ModelSnapshot getSnapshot() {
+        return mSnapshot.get();
     }
 
     /**
@@ -105,6 +175,109 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
     public void clear() {
         mChannels.clear();
         mUsers.clear();
+        mSnapshot.set(mSnapshot.get().toBuilder().clear().build());
+        mSynchronizing = true;
+    }
+
+    private void storeBlob(ByteString blob) {
+        if (mBlobCache != null && !mReplayingCachedBlobs) mBlobCache.putAsync(blob);
+    }
+
+    /**
+     * Runs a task that delivers blobs read from the cache, without hashing and storing them again.
+     * Must be called on the protocol thread.
+     */
+    public void replayCachedBlobs(Runnable task) {
+        mReplayingCachedBlobs = true;
+        try {
+            task.run();
+        } finally {
+            mReplayingCachedBlobs = false;
+        }
+    }
+
+    /**
+     * @return A builder for the next snapshot, or null while synchronizing.
+     */
+    private ModelSnapshot.Builder editSnapshot() {
+        return mSynchronizing ? null : mSnapshot.get().toBuilder();
+    }
+
+    /**
+     * Copies a channel into the snapshot, if one is being built.
+     */
+    private static void putChannel(ModelSnapshot.Builder snapshot, Channel channel) {
+        if (snapshot != null) {
+            snapshot.putChannel(new ChannelSnapshot(channel, snapshot.getChannel(channel.getId())));
+        }
+    }
+
+    /**
+     * Copies a channel and its ancestors into the snapshot, if one is being built. The parent is
+     * copied as well, as the order of its subchannels may change with the channel. Only the user
+     * counts of the ancestors above it can change, so just those are updated, stopping at the
+     * first ancestor whose count is unchanged.
+     */
+    private static void putChannelPath(ModelSnapshot.Builder snapshot, Channel channel) {
+        if (snapshot == null || channel == null) return;
+        putChannel(snapshot, channel);
+        final Channel parent = channel.getParent();
+        if (parent == null) return;
+        putChannel(snapshot, parent);
+        for (Channel ancestor = parent.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+            final ChannelSnapshot previous = snapshot.getChannel(ancestor.getId());
+            if (previous == null) {
+                putChannel(snapshot, ancestor);
+                continue;
+            }
+            final ChannelSnapshot updated = previous.withSubchannelUserCount(ancestor.getSubchannelUserCount());
+            if (updated == previous) break;
+            snapshot.putChannel(updated);
+        }
+    }
+
+    /**
+     * Copies a user into the snapshot, along with the channels whose user lists changed.
+     * @param previousChannel The user's channel before the update, or null if new.
+     * @param reordered Whether the user's place in their channel's user list may have changed.
+     */
+    private void publishUser(User user, Channel previousChannel, boolean reordered) {
+        final ModelSnapshot.Builder snapshot = editSnapshot();
+        if (snapshot == null) return;
+        snapshot.putUser(new UserSnapshot(user));
+        final Channel channel = user.getChannel();
+        if (channel != previousChannel) {
+            putChannelPath(snapshot, previousChannel);
+            putChannelPath(snapshot, channel);
+        } else if (reordered && channel != null) {
+            putChannel(snapshot, channel);
+        }
+        publish(snapshot);
+    }
+
+    /**
+     * Publishes the next snapshot, if one is being built. Only the protocol thread publishes, so
+     * no update is lost.
+     */
+    private void publish(ModelSnapshot.Builder snapshot) {
+        if (snapshot != null) mSnapshot.set(snapshot.build());
+    }
+
+    /**
+     * Builds the snapshot of the whole model in one pass, at the end of synchronization.
+     */
+    private ModelSnapshot publishAll() {
+        final ModelSnapshot.Builder snapshot = mSnapshot.get().toBuilder().clear();
+        snapshot.setSession(mSession);
+        for (Channel channel : mChannels.values()) {
+            snapshot.putChannel(new ChannelSnapshot(channel));
+        }
+        for (User user : mUsers.values()) {
+            if (user.getChannel() != null) snapshot.putUser(new UserSnapshot(user));
+        }
+        final ModelSnapshot built = snapshot.build();
+        mSnapshot.set(built);
+        return built;
     }
 
     @Override
@@ -116,6 +289,7 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
         Channel parent = mChannels.get(msg.getParent());
 
         final boolean newChannel = channel == null;
+        final ModelSnapshot.Builder snapshot = editSnapshot();
 
         if(channel == null) {
             channel = new Channel(msg.getChannelId(), msg.getTemporary());
@@ -134,6 +308,7 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
             parent.addSubchannel(channel);
             if(oldParent != null) {
                 oldParent.removeSubchannel(channel);
+                putChannelPath(snapshot, oldParent);
             }
         }
 
@@ -145,6 +320,7 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
         if(msg.hasDescription()) {
             channel.setDescription(msg.getDescription());
             channel.setDescriptionHash(null);
+            storeBlob(msg.getDescriptionBytes());
         }
 
         if(msg.getLinksCount() > 0) {
@@ -163,6 +339,7 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
                 Channel linked = mChannels.get(link);
                 channel.removeLink(linked);
                 linked.removeLink(channel);
+                putChannel(snapshot, linked);
             }
         }
 
@@ -171,9 +348,15 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
                 Channel linked = mChannels.get(link);
                 channel.addLink(linked);
                 linked.addLink(channel);
+                putChannel(snapshot, linked);
             }
         }
 
+        putChannelPath(snapshot, channel);
+        publish(snapshot);
+
+        if(mSynchronizing)
+            return;
         if(newChannel)
             mObserver.onChannelAdded(channel);
         else
@@ -189,22 +372,39 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
             if(parent != null) {
                 parent.removeSubchannel(channel);
             }
-            mObserver.onChannelRemoved(channel);
+            final ModelSnapshot.Builder snapshot = editSnapshot();
+            if(snapshot != null) {
+                snapshot.removeChannel(channel.getId());
+                putChannelPath(snapshot, parent);
+                publish(snapshot);
+            }
+            if(!mSynchronizing)
+                mObserver.onChannelRemoved(channel);
         }
     }
 
     @Override
     public void messagePermissionQuery(Mumble.PermissionQuery msg) {
-        if(msg.getFlush())
-            for(Channel channel : mChannels.values())
+        final ModelSnapshot.Builder snapshot = editSnapshot();
+        if(msg.getFlush()) {
+            for(Channel channel : mChannels.values()) {
                 channel.setPermissions(0);
+                putChannel(snapshot, channel);
+            }
+        }
 
         final Channel channel = mChannels.get(msg.getChannelId());
         if(channel != null) {
             channel.setPermissions(msg.getPermissions());
+            putChannel(snapshot, channel);
+        }
+        publish(snapshot);
+
+        if(channel != null) {
             if(msg.getChannelId() == 0) // If we're provided permissions for the root channel, we'll apply these as our server permissions.
                 mPermissions = channel.getPermissions();
-            mObserver.onChannelPermissionsUpdated(channel);
+            if(!mSynchronizing)
+                mObserver.onChannelPermissionsUpdated(channel);
         }
     }
 
@@ -212,6 +412,7 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
     public void messageUserState(Mumble.UserState msg) {
         User user = mUsers.get(msg.getSession());
         boolean newUser = false;
+        final Channel previousChannel = user != null ? user.getChannel() : null;
 
         User self = mUsers.get(mSession);
 
@@ -256,7 +457,8 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
              */
         }
 
-        if(newUser)
+        // Users present before we joined are not announced.
+        if(newUser && !mSynchronizing)
             mLogger.logInfo(mContext.getString(R.string.chat_notify_connected, MessageFormatter.highlightString(user.getName())));
 
         if(msg.hasSelfDeaf() || msg.hasSelfMute()) {
@@ -332,13 +534,14 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
             final Channel channel = mChannels.get(msg.getChannelId());
             if(channel == null) {
                 Log.e(Constants.TAG, "Invalid channel for user!");
+                publishUser(user, previousChannel, msg.hasName());
                 return; // TODO handle better
             }
             final Channel old = user.getChannel();
 
             user.setChannel(channel);
 
-            if(!newUser) {
+            if(!newUser && !mSynchronizing) {
                 mObserver.onUserJoinedChannel(finalUser, channel, old);
             }
 
@@ -387,6 +590,7 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
             // FIXME: is it reasonable to create a bitmap here? How expensive?
             user.setTexture(msg.getTexture());
             user.setTextureHash(null);
+            storeBlob(msg.getTexture());
         }
 
         if(msg.hasCommentHash()) {
@@ -397,8 +601,13 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
         if(msg.hasComment()) {
             user.setComment(msg.getComment());
             user.setCommentHash(null);
+            storeBlob(msg.getCommentBytes());
         }
 
+        publishUser(user, previousChannel, msg.hasName());
+
+        if (mSynchronizing)
+            return;
         if (newUser)
             mObserver.onUserConnected(user);
         else
@@ -424,9 +633,17 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
             mLogger.logInfo(mContext.getString(R.string.chat_notify_disconnected, MessageFormatter.highlightString(userName)));
 
         if (user != null) {
+            final Channel channel = user.getChannel();
             user.setChannel(null);
+            final ModelSnapshot.Builder snapshot = editSnapshot();
+            if (snapshot != null) {
+                snapshot.removeUser(user.getSession());
+                putChannelPath(snapshot, channel);
+                publish(snapshot);
+            }
         }
-        mObserver.onUserRemoved(user, reason);
+        if (!mSynchronizing)
+            mObserver.onUserRemoved(user, reason);
     }
 
     @Override
@@ -485,6 +702,14 @@ public class ModelHandler extends RimicTCPMessageListener.Stub {
     @Override
     public void messageServerSync(Mumble.ServerSync msg) {
         mSession = msg.getSession();
+        final boolean synchronizing = mSynchronizing;
+        mSynchronizing = false;
+        final ModelSnapshot snapshot = publishAll();
+        if (synchronizing) {
+            Log.v(Constants.TAG, "Model synchronized: " + snapshot.getChannelCount() +
+                    " channels, " + snapshot.getUserCount() + " users");
+            mObserver.onModelSynchronized(snapshot);
+        }
         mLogger.logInfo(msg.getWelcomeText());
     }
 }
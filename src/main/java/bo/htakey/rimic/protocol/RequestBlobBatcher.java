@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.protocol;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import bo.htakey.rimic.net.RimicTCPMessageType;
+import bo.htakey.rimic.protobuf.Mumble;
+
+/**
+ * Merges requests for user textures, user comments and channel descriptions made within a short
+ * window into a single RequestBlob message, such as when a user list is scrolled.
+ *
+ * A request made again while the first is pending or in flight shares its future. Futures
+ * complete when the model is given the blob, as this listener must be subscribed after the
+ * {@link ModelHandler}. They are cancelled when the user or channel is removed, on
+ * {@link #cancelAll()}, or when the server does not answer in time, as it sends nothing for a
+ * user without a texture or comment; a later request is then sent again. Requests may be made
+ * from any thread.
+ */
+public class RequestBlobBatcher extends RimicTCPMessageListener.Stub {
+    /** The TCP message types that complete or cancel requests. */
+    public static final Set<RimicTCPMessageType> MESSAGE_TYPES = Collections.unmodifiableSet(
+            EnumSet.of(RimicTCPMessageType.UserState,
+                    RimicTCPMessageType.UserRemove,
+                    RimicTCPMessageType.ChannelState,
+                    RimicTCPMessageType.ChannelRemove));
+    /** Default time to wait for more requests before sending, in milliseconds. */
+    public static final long DEFAULT_DELAY = 50;
+    /** Default time to wait for the server to send a blob, in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    public interface Sender {
+        void sendRequestBlob(Mumble.RequestBlob request);
+    }
+
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final long mDelay;
+    private final long mTimeout;
+    // Requests by session or channel ID, pending and in flight. Guarded by this.
+    private final Map<Integer, BlobFuture> mTextures = new HashMap<Integer, BlobFuture>();
+    private final Map<Integer, BlobFuture> mComments = new HashMap<Integer, BlobFuture>();
+    private final Map<Integer, BlobFuture> mDescriptions = new HashMap<Integer, BlobFuture>();
+    /** The request to send at the end of the window, or null if none is pending. Guarded by this. */
+    private Mumble.RequestBlob.Builder mPending;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param handler The handler to send batched requests on.
+     * @param sender Sends the batched requests.
+     * @param delay The time to wait for more requests after the first, in milliseconds.
+     */
+    public RequestBlobBatcher(Handler handler, Sender sender, long delay) {
+        this(handler, sender, delay, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout The time to wait for each blob before cancelling its future, in
+     *                milliseconds.
+     */
+    public RequestBlobBatcher(Handler handler, Sender sender, long delay, long timeout) {
+        mHandler = handler;
+        mSender = sender;
+        mDelay = delay;
+        mTimeout = timeout;
+    }
+
+    /**
+     * @return A future completed once the user's texture is in the model.
+     */
+    public Future<Void> requestTexture(int session) {
+        return request(mTextures, session, Kind.TEXTURE);
+    }
+
+    /**
+     * @return A future completed once the user's comment is in the model.
+     */
+    public Future<Void> requestComment(int session) {
+        return request(mComments, session, Kind.COMMENT);
+    }
+
+    /**
+     * @return A future completed once the channel's description is in the model.
+     */
+    public Future<Void> requestDescription(int channel) {
+        return request(mDescriptions, channel, Kind.DESCRIPTION);
+    }
+
+    /**
+     * Sends the pending requests now, rather than at the end of the window.
+     */
+    public void flush() {
+        final Mumble.RequestBlob request;
+        synchronized (this) {
+            if (mPending == null) return;
+            request = mPending.build();
+            mPending = null;
+        }
+        // A scheduled flush that finds nothing pending does nothing, so it is left in place;
+        // removing it could drop the flush of a window opened since.
+        mSender.sendRequestBlob(request);
+    }
+
+    /**
+     * Drops pending requests and cancels all futures, such as on disconnection.
+     */
+    public void cancelAll() {
+        final List<BlobFuture> futures = new ArrayList<BlobFuture>();
+        synchronized (this) {
+            mPending = null;
+            futures.addAll(mTextures.values());
+            futures.addAll(mComments.values());
+            futures.addAll(mDescriptions.values());
+            mTextures.clear();
+            mComments.clear();
+            mDescriptions.clear();
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        for (BlobFuture future : futures) {
+            mHandler.removeCallbacks(future.mTimeout);
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * @return The number of requests pending or in flight.
+     */
+    public synchronized int getOutstandingCount() {
+        return mTextures.size() + mComments.size() + mDescriptions.size();
+    }
+
+    /**
+     * @return A future that is already complete, for a blob that need not be requested.
+     */
+    public static Future<Void> completed() {
+        final BlobFuture future = new BlobFuture();
+        future.complete();
+        return future;
+    }
+
+    private Future<Void> request(final Map<Integer, BlobFuture> requests, final int id, Kind kind) {
+        final boolean schedule;
+        final BlobFuture future;
+        synchronized (this) {
+            final BlobFuture existing = requests.get(id);
+            if (existing != null) return existing;
+            future = new BlobFuture();
+            future.mTimeout = new Runnable() {
+                @Override
+                public void run() {
+                    expire(requests, id, future);
+                }
+            };
+            requests.put(id, future);
+            schedule = mPending == null;
+            if (schedule) mPending = Mumble.RequestBlob.newBuilder();
+            switch (kind) {
+                case TEXTURE:
+                    mPending.addSessionTexture(id);
+                    break;
+                case COMMENT:
+                    mPending.addSessionComment(id);
+                    break;
+                case DESCRIPTION:
+                    mPending.addChannelDescription(id);
+                    break;
+            }
+        }
+        // The window starts at the first request, so that a steady stream of requests is still
+        // sent on time.
+        if (schedule) mHandler.postDelayed(mFlushRunnable, mDelay);
+        mHandler.postDelayed(future.mTimeout, mDelay + mTimeout);
+        return future;
+    }
+
+    /**
+     * Cancels a request the server did not answer, so that it can be made again.
+     */
+    private void expire(Map<Integer, BlobFuture> requests, int id, BlobFuture future) {
+        synchronized (this) {
+            // The entry may already belong to a newer request.
+            if (requests.get(id) != future) return;
+            requests.remove(id);
+        }
+        future.cancel(false);
+    }
+
+    private void complete(Map<Integer, BlobFuture> requests, int id, boolean received) {
+        final BlobFuture future;
+        synchronized (this) {
+            future = requests.remove(id);
+        }
+        if (future == null) return;
+        mHandler.removeCallbacks(future.mTimeout);
+        if (received) future.complete();
+        else future.cancel(false);
+    }
+
+    @Override
+    public void messageUserState(Mumble.UserState msg) {
+        if (msg.hasTexture()) complete(mTextures, msg.getSession(), true);
+        if (msg.hasComment()) complete(mComments, msg.getSession(), true);
+    }
+
+    @Override
+    public void messageUserRemove(Mumble.UserRemove msg) {
+        complete(mTextures, msg.getSession(), false);
+        complete(mComments, msg.getSession(), false);
+    }
+
+    @Override
+    public void messageChannelState(Mumble.ChannelState msg) {
+        if (msg.hasChannelId() && msg.hasDescription())
+            complete(mDescriptions, msg.getChannelId(), true);
+    }
+
+    @Override
+    public void messageChannelRemove(Mumble.ChannelRemove msg) {
+        complete(mDescriptions, msg.getChannelId(), false);
+    }
+
+    private enum Kind {
+        TEXTURE,
+        COMMENT,
+        DESCRIPTION
+    }
+
+    /**
+     * A future completed by the batcher rather than by running a task.
+     */
+    private static class BlobFuture extends FutureTask<Void> {
+        private static final Runnable NOTHING = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        /** Cancels the request if the server does not answer in time. */
+        Runnable mTimeout;
+
+        BlobFuture() {
+            super(NOTHING, null);
+        }
+
+        void complete() {
+            set(null);
+        }
+    }
+}
@@ -17,20 +17,25 @@
 
 package bo.htakey.rimic.protocol;
 
+import java.nio.ByteBuffer;
+
 import bo.htakey.rimic.net.RimicUDPMessageType;
 
 /**
  * Created by andrew on 21/01/14.
+ * Message data is passed as a buffer holding the datagram between its position and limit.
+ * Buffers may be reused once the call returns, and must not be repositioned by handlers;
+ * use {@link ByteBuffer#slice()} or absolute reads instead.
  */
 
 public interface RimicUDPMessageListener {
 
-    public void messageUDPPing(byte[] data);
-    public void messageVoiceData(byte[] data, RimicUDPMessageType messageType);
+    public void messageUDPPing(ByteBuffer data);
+    public void messageVoiceData(ByteBuffer data, RimicUDPMessageType messageType);
 
     public static class Stub implements RimicUDPMessageListener {
 
-        public void messageUDPPing(byte[] data) {}
-        public void messageVoiceData(byte[] data, RimicUDPMessageType messageType) {}
+        public void messageUDPPing(ByteBuffer data) {}
+        public void messageVoiceData(ByteBuffer data, RimicUDPMessageType messageType) {}
     }
 }
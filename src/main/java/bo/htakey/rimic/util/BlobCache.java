@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.util;
+
+import com.google.protobuf.ByteString;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A cache of the blobs the server refers to by SHA-1 hash: user textures, user comments and
+ * channel descriptions. As blobs are addressed by their content, one cache can be shared by all
+ * servers and sessions.
+ *
+ * Recently used blobs are kept in memory, up to a total size in bytes. All blobs are also
+ * written to a directory, which is trimmed to a total size by discarding the least recently used
+ * files. Blobs are returned as read-only views, without copying.
+ *
+ * {@link #get(ByteString)} and {@link #put(ByteString)} may read or write the directory, so they
+ * should not be called on the protocol or main threads; {@link #putAsync(ByteString)} runs on the
+ * cache's executor instead.
+ */
+public class BlobCache {
+    /** The length of a SHA-1 hash, in bytes. */
+    public static final int HASH_LENGTH = 20;
+    /** The server sends smaller blobs in full rather than by hash, so they are not cached. */
+    public static final int MIN_BLOB_SIZE = 128;
+
+    private final File mDirectory;
+    private final long mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+    private final Executor mExecutor;
+    /** Blobs by hash, least recently used first. Guarded by this. */
+    private final LinkedHashMap<ByteString, ByteBuffer> mMemory =
+            new LinkedHashMap<ByteString, ByteBuffer>(16, 0.75f, true);
+    /** Guarded by this. */
+    private long mMemoryBytes;
+    /** The total size of the files in the directory, or -1 if not yet counted. Guarded by this. */
+    private long mDiskBytes = -1;
+
+    /**
+     * @param directory The directory to store blobs in, or null to keep them in memory only.
+     * @param maxMemoryBytes The total size of the blobs to keep in memory.
+     * @param maxDiskBytes The total size of the blobs to keep on disk.
+     */
+    public BlobCache(File directory, long maxMemoryBytes, long maxDiskBytes) {
+        this(directory, maxMemoryBytes, maxDiskBytes, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * @param executor The executor to hash and write blobs added with
+     *                 {@link #putAsync(ByteString)} on.
+     */
+    public BlobCache(File directory, long maxMemoryBytes, long maxDiskBytes, Executor executor) {
+        mDirectory = directory;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return The executor blobs are added on, which lookups may share.
+     */
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * @param hash The SHA-1 hash of the blob, as sent by the server.
+     * @return A read-only view of the blob, or null if it is not cached.
+     */
+    public ByteBuffer get(ByteString hash) {
+        if (hash == null || hash.size() != HASH_LENGTH) return null;
+        synchronized (this) {
+            final ByteBuffer blob = mMemory.get(hash);
+            if (blob != null) return blob.duplicate();
+        }
+        final byte[] data = readFile(hash);
+        if (data == null) return null;
+        final ByteBuffer blob = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        synchronized (this) {
+            putInMemory(hash, blob);
+        }
+        return blob.duplicate();
+    }
+
+    public boolean contains(ByteString hash) {
+        if (hash == null || hash.size() != HASH_LENGTH) return false;
+        synchronized (this) {
+            if (mMemory.containsKey(hash)) return true;
+        }
+        return mDirectory != null && getFile(hash).exists();
+    }
+
+    /**
+     * Adds a blob, keyed by the SHA-1 hash of its content.
+     * @param data The blob. Blobs smaller than {@link #MIN_BLOB_SIZE} are not cached.
+     * @return The hash of the blob, or null if it was not cached.
+     */
+    public ByteString put(ByteString data) {
+        if (data == null || data.size() < MIN_BLOB_SIZE) return null;
+        final ByteString hash = sha1(data);
+        final ByteBuffer blob = data.asReadOnlyByteBuffer();
+        final boolean stored;
+        synchronized (this) {
+            stored = mMemory.containsKey(hash);
+            putInMemory(hash, blob);
+        }
+        if (!stored) writeFile(hash, blob.duplicate());
+        return hash;
+    }
+
+    /**
+     * Adds a blob on the cache's executor, so that hashing and writing it do not hold up the
+     * caller.
+     * @see #put(ByteString)
+     */
+    public void putAsync(final ByteString data) {
+        if (data == null || data.size() < MIN_BLOB_SIZE) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                put(data);
+            }
+        });
+    }
+
+    /**
+     * Removes all blobs from memory. Blobs on disk are kept.
+     */
+    public synchronized void trimMemory() {
+        mMemory.clear();
+        mMemoryBytes = 0;
+    }
+
+    /**
+     * @return The SHA-1 hash of the data, as the server computes it.
+     */
+    public static ByteString sha1(ByteString data) {
+        final MessageDigest digest = newDigest();
+        digest.update(data.asReadOnlyByteBuffer());
+        return ByteString.copyFrom(digest.digest());
+    }
+
+    private static ByteString sha1(byte[] data) {
+        final MessageDigest digest = newDigest();
+        digest.update(data);
+        return ByteString.copyFrom(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // SHA-1 is always available.
+        }
+    }
+
+    private void putInMemory(ByteString hash, ByteBuffer blob) {
+        // Blobs too large for memory are only kept on disk.
+        if (blob.remaining() > mMaxMemoryBytes) return;
+        final ByteBuffer previous = mMemory.put(hash, blob);
+        if (previous != null) mMemoryBytes -= previous.remaining();
+        mMemoryBytes += blob.remaining();
+        final Iterator<Map.Entry<ByteString, ByteBuffer>> it = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && it.hasNext()) {
+            mMemoryBytes -= it.next().getValue().remaining();
+            it.remove();
+        }
+    }
+
+    private File getFile(ByteString hash) {
+        final StringBuilder name = new StringBuilder(HASH_LENGTH * 2);
+        for (int i = 0; i < hash.size(); i++) {
+            final int b = hash.byteAt(i) & 0xFF;
+            name.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return new File(mDirectory, name.toString());
+    }
+
+    /**
+     * @return The contents of the blob's file, or null if it is missing or corrupt.
+     */
+    private byte[] readFile(ByteString hash) {
+        if (mDirectory == null) return null;
+        final File file = getFile(hash);
+        final long length = file.length();
+        if (length <= 0 || length > Integer.MAX_VALUE) return null;
+        final byte[] data = new byte[(int) length];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < data.length) {
+                final int count = in.read(data, read, data.length - read);
+                if (count < 0) return null;
+                read += count;
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        if (!sha1(data).equals(hash)) {
+            file.delete();
+            return null;
+        }
+        // Mark the file as recently used, so that trimming keeps it.
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    private void writeFile(ByteString hash, ByteBuffer blob) {
+        if (mDirectory == null) return;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return;
+        final File file = getFile(hash);
+        // Written under another name first, so that a partial file is never read.
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        final long length = blob.remaining();
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            final byte[] chunk = new byte[(int) Math.min(length, 8192)];
+            while (blob.hasRemaining()) {
+                final int count = Math.min(chunk.length, blob.remaining());
+                blob.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        synchronized (this) {
+            if (mDiskBytes < 0) {
+                mDiskBytes = 0;
+                final File[] files = mDirectory.listFiles();
+                if (files != null) for (File f : files) mDiskBytes += f.length();
+            } else {
+                mDiskBytes += length;
+            }
+            if (mDiskBytes > mMaxDiskBytes) trimDisk();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the directory is at three quarters of its
+     * maximum size, so that trimming does not happen on every write.
+     */
+    private void trimDisk() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final long ma = a.lastModified();
+                final long mb = b.lastModified();
+                return ma < mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+        long size = 0;
+        for (File file : files) size += file.length();
+        for (int i = 0; i < files.length && size > mMaxDiskBytes * 3 / 4; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) size -= length;
+        }
+        mDiskBytes = size;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
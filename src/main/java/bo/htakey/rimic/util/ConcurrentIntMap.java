@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from primitive ints to objects, using open addressing with linear probing.
+ * Lookups neither box the key nor allocate, and do not lock, so they are safe on the audio
+ * threads. Writes are serialized with a lock. Each slot holds an immutable entry with both the
+ * key and the value, so a lookup never pairs one key with another's value. Removed entries leave
+ * a marker behind, so that a concurrent lookup never misses an entry that is present; markers are
+ * dropped when the table is rebuilt. Null values are not supported.
+ */
+public class ConcurrentIntMap<V> {
+    private static final int MIN_CAPACITY = 16;
+    /** Marks a removed entry. Probing continues past it. */
+    private static final Entry REMOVED = new Entry(0, null);
+
+    private volatile Table mTable;
+    /** Number of live entries. Guarded by this. */
+    private int mSize;
+    /** Number of live and removed entries. Guarded by this. */
+    private int mUsed;
+
+    public ConcurrentIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize The number of entries to size the table for.
+     */
+    public ConcurrentIntMap(int expectedSize) {
+        mTable = new Table(capacityFor(expectedSize));
+    }
+
+    /**
+     * @return The value for the key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        final AtomicReferenceArray<Entry> entries = mTable.entries;
+        final int mask = entries.length() - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            final Entry entry = entries.get(i);
+            if (entry == null) return null;
+            if (entry != REMOVED && entry.key == key) return (V) entry.value;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the key to the value, replacing any previous value.
+     * @return The previous value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int key, V value) {
+        if (value == null) throw new NullPointerException("Null values are not supported");
+        final AtomicReferenceArray<Entry> entries = mTable.entries;
+        final int mask = entries.length() - 1;
+        int free = -1;
+        int i = hash(key) & mask;
+        for (; ; i = (i + 1) & mask) {
+            final Entry current = entries.get(i);
+            if (current == null) break;
+            if (current == REMOVED) {
+                if (free < 0) free = i;
+            } else if (current.key == key) {
+                entries.set(i, new Entry(key, value));
+                return (V) current.value;
+            }
+        }
+        if (free >= 0) {
+            entries.set(free, new Entry(key, value));
+            mSize++;
+            return null;
+        }
+        entries.set(i, new Entry(key, value));
+        mSize++;
+        mUsed++;
+        if (mUsed * 4 >= entries.length() * 3) {
+            rebuild(capacityFor(mSize));
+        }
+        return null;
+    }
+
+    /**
+     * @return The removed value, or null if the key was not mapped.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key) {
+        final AtomicReferenceArray<Entry> entries = mTable.entries;
+        final int mask = entries.length() - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            final Entry entry = entries.get(i);
+            if (entry == null) return null;
+            if (entry != REMOVED && entry.key == key) {
+                entries.set(i, REMOVED);
+                mSize--;
+                return (V) entry.value;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mTable = new Table(MIN_CAPACITY);
+        mSize = 0;
+        mUsed = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return A copy of the values, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        final AtomicReferenceArray<Entry> entries = mTable.entries;
+        final List<V> values = new ArrayList<V>();
+        for (int i = 0; i < entries.length(); i++) {
+            final Entry entry = entries.get(i);
+            if (entry != null && entry != REMOVED) values.add((V) entry.value);
+        }
+        return values;
+    }
+
+    /**
+     * Copies the live entries into a new table and publishes it. Lookups in progress finish on
+     * the old table, which is no longer written to.
+     */
+    private void rebuild(int capacity) {
+        final AtomicReferenceArray<Entry> old = mTable.entries;
+        final Table table = new Table(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < old.length(); i++) {
+            final Entry entry = old.get(i);
+            if (entry == null || entry == REMOVED) continue;
+            int j = hash(entry.key) & mask;
+            while (table.entries.get(j) != null) j = (j + 1) & mask;
+            table.entries.set(j, entry);
+        }
+        mUsed = mSize;
+        mTable = table;
+    }
+
+    /**
+     * @return A power of two at which the given number of entries fill at most half the table.
+     */
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) capacity <<= 1;
+        return capacity;
+    }
+
+    /**
+     * Spreads sequential keys, such as sessions and channel IDs, across the table.
+     */
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final int key;
+        final Object value;
+
+        Entry(int key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Table {
+        final AtomicReferenceArray<Entry> entries;
+
+        Table(int capacity) {
+            entries = new AtomicReferenceArray<Entry>(capacity);
+        }
+    }
+}
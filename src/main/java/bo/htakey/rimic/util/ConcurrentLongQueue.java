@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue of primitive longs, for many producers and a single consumer.
+ * Its storage is allocated up front, and neither offers nor polls lock or allocate, so it is safe
+ * to offer from the audio threads. Each slot carries a sequence number that tells producers
+ * whether it is free and the consumer whether it has been written.
+ */
+public class ConcurrentLongQueue {
+    private final long[] mValues;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    /** The position of the next offer. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** The position of the next poll. Only used by the consumer. */
+    private long mHead;
+
+    /**
+     * @param capacity The maximum number of values queued, rounded up to a power of two.
+     */
+    public ConcurrentLongQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mValues = new long[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) mSequences.set(i, i);
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds a value. May be called from any thread.
+     * @return false if the queue is full, and the value was not added.
+     */
+    public boolean offer(long value) {
+        long position = mTail.get();
+        while (true) {
+            final int index = (int) position & mMask;
+            final long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mValues[index] = value;
+                    // Publishes the value to the consumer.
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false; // The consumer has not yet freed this slot.
+            } else {
+                position = mTail.get(); // Another producer took this slot.
+            }
+        }
+    }
+
+    /**
+     * Removes values in the order they were offered, up to the first that is not yet written.
+     * Must only be called from one thread at a time.
+     * @param values The array to remove values into.
+     * @return The number of values removed, at most the length of the array.
+     */
+    public int drainTo(long[] values) {
+        int count = 0;
+        while (count < values.length) {
+            final int index = (int) mHead & mMask;
+            if (mSequences.get(index) != mHead + 1) break;
+            values[count++] = mValues[index];
+            // Frees the slot for the producer one lap ahead.
+            mSequences.set(index, mHead + mMask + 1);
+            mHead++;
+        }
+        return count;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+}
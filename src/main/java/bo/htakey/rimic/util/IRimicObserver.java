@@ -22,6 +22,7 @@ import java.security.cert.X509Certificate;
 import bo.htakey.rimic.model.IChannel;
 import bo.htakey.rimic.model.IMessage;
 import bo.htakey.rimic.model.IUser;
+import bo.htakey.rimic.model.ModelSnapshot;
 
 /**
  * Created by andrew on 18/10/15.
@@ -35,6 +36,14 @@ public interface IRimicObserver {
 
     void onTLSHandshakeFailed(X509Certificate[] chain);
 
+    /**
+     * Called once the server has sent its initial state. The channels and users it contains are
+     * not announced one by one with {@link #onChannelAdded(IChannel)} and
+     * {@link #onUserConnected(IUser)}; those are only called for changes made after it.
+     * @param snapshot The model as synchronized.
+     */
+    void onModelSynchronized(ModelSnapshot snapshot);
+
     void onChannelAdded(IChannel channel);
 
     void onChannelStateUpdated(IChannel channel);
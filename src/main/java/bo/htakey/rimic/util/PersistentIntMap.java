@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable map from primitive ints to objects. Updates return a new map that shares all but
+ * the changed path with the old one, so keeping old versions around is cheap.
+ *
+ * The map is a trie on the bits of the key, five at a time from the lowest, with each node
+ * storing only its occupied slots. Lookups and updates touch at most seven nodes. Null values are
+ * not supported.
+ */
+public final class PersistentIntMap<V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentIntMap<Object> EMPTY = new PersistentIntMap<Object>(null, 0);
+
+    private final Node mRoot;
+    private final int mSize;
+
+    private PersistentIntMap(Node root, int size) {
+        mRoot = root;
+        mSize = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    /**
+     * @return The value for the key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Node node = mRoot;
+        for (int shift = 0; node != null; shift += BITS) {
+            final int bit = 1 << ((key >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) return null;
+            final Object entry = node.entries[node.index(bit)];
+            if (entry instanceof Leaf) {
+                final Leaf leaf = (Leaf) entry;
+                return leaf.key == key ? (V) leaf.value : null;
+            }
+            node = (Node) entry;
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return A map with the key mapped to the value, replacing any previous value.
+     */
+    public PersistentIntMap<V> plus(int key, V value) {
+        if (value == null) throw new NullPointerException("Null values are not supported");
+        final boolean[] added = new boolean[1];
+        final Node root = plus(mRoot, 0, new Leaf(key, value), added);
+        return new PersistentIntMap<V>(root, added[0] ? mSize + 1 : mSize);
+    }
+
+    /**
+     * @return A map without the key, or this map if the key was not mapped.
+     */
+    public PersistentIntMap<V> minus(int key) {
+        if (get(key) == null) return this;
+        final Object root = minus(mRoot, 0, key);
+        // A lone leaf is kept in a node, so that the root is always a node.
+        final Node node = root instanceof Leaf ? Node.of((Leaf) root) : (Node) root;
+        return new PersistentIntMap<V>(node, mSize - 1);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return The values, ordered by the bits of their keys from the lowest.
+     */
+    public List<V> values() {
+        final List<V> values = new ArrayList<V>(mSize);
+        if (mRoot != null) collect(mRoot, values);
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void collect(Node node, List<V> values) {
+        for (Object entry : node.entries) {
+            if (entry instanceof Leaf) values.add((V) ((Leaf) entry).value);
+            else collect((Node) entry, values);
+        }
+    }
+
+    private static Node plus(Node node, int shift, Leaf leaf, boolean[] added) {
+        final int bit = 1 << ((leaf.key >>> shift) & MASK);
+        if (node == null) {
+            added[0] = true;
+            return new Node(bit, new Object[] { leaf });
+        }
+        final int index = node.index(bit);
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            final Object[] entries = new Object[node.entries.length + 1];
+            System.arraycopy(node.entries, 0, entries, 0, index);
+            entries[index] = leaf;
+            System.arraycopy(node.entries, index, entries, index + 1, node.entries.length - index);
+            return new Node(node.bitmap | bit, entries);
+        }
+        final Object entry = node.entries[index];
+        final Object replacement;
+        if (entry instanceof Leaf) {
+            final Leaf existing = (Leaf) entry;
+            if (existing.key == leaf.key) {
+                replacement = leaf;
+            } else {
+                added[0] = true;
+                replacement = split(existing, leaf, shift + BITS);
+            }
+        } else {
+            replacement = plus((Node) entry, shift + BITS, leaf, added);
+        }
+        return node.with(index, replacement);
+    }
+
+    /**
+     * @return A node holding two leaves whose keys agree in the bits below the shift.
+     */
+    private static Node split(Leaf a, Leaf b, int shift) {
+        final int indexA = (a.key >>> shift) & MASK;
+        final int indexB = (b.key >>> shift) & MASK;
+        if (indexA == indexB) {
+            return new Node(1 << indexA, new Object[] { split(a, b, shift + BITS) });
+        }
+        final Object[] entries = indexA < indexB ? new Object[] { a, b } : new Object[] { b, a };
+        return new Node((1 << indexA) | (1 << indexB), entries);
+    }
+
+    /**
+     * Removes a key known to be present.
+     * @return The replacement for the node: null if it became empty, or its only leaf, so that
+     *         the parent can hold the leaf directly.
+     */
+    private static Object minus(Node node, int shift, int key) {
+        final int bit = 1 << ((key >>> shift) & MASK);
+        final int index = node.index(bit);
+        final Object entry = node.entries[index];
+        final Object replacement = entry instanceof Leaf ? null
+                : minus((Node) entry, shift + BITS, key);
+        if (replacement != null) {
+            if (replacement instanceof Leaf && node.entries.length == 1) return replacement;
+            return node.with(index, replacement);
+        }
+        if (node.entries.length == 1) return null;
+        if (node.entries.length == 2) {
+            final Object other = node.entries[1 - index];
+            if (other instanceof Leaf) return other;
+        }
+        final Object[] entries = new Object[node.entries.length - 1];
+        System.arraycopy(node.entries, 0, entries, 0, index);
+        System.arraycopy(node.entries, index + 1, entries, index, entries.length - index);
+        return new Node(node.bitmap & ~bit, entries);
+    }
+
+    private static final class Node {
+        /** The occupied slots. */
+        final int bitmap;
+        /** A leaf or a child node for each occupied slot, in slot order. */
+        final Object[] entries;
+
+        Node(int bitmap, Object[] entries) {
+            this.bitmap = bitmap;
+            this.entries = entries;
+        }
+
+        static Node of(Leaf leaf) {
+            return new Node(1 << (leaf.key & MASK), new Object[] { leaf });
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Node with(int index, Object entry) {
+            final Object[] entries = this.entries.clone();
+            entries[index] = entry;
+            return new Node(bitmap, entries);
+        }
+    }
+
+    private static final class Leaf {
+        final int key;
+        final Object value;
+
+        Leaf(int key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -17,164 +17,514 @@
 
 package bo.htakey.rimic.util;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
 import java.security.cert.X509Certificate;
-import java.util.Collections;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bo.htakey.rimic.model.IChannel;
 import bo.htakey.rimic.model.IMessage;
 import bo.htakey.rimic.model.IUser;
+import bo.htakey.rimic.model.ModelSnapshot;
 
 /**
  * A composite wrapper around Rimic observers to easily broadcast to each observer.
+ * Events may be raised from any thread. Each observer has its own queue and executor, so a slow
+ * observer only delays its own events; each observer sees events in the order they were raised.
+ *
+ * Talk state updates are coalesced per observer: within an interval, each user is delivered at
+ * most once, and the observer reads the latest state from the user when it is called.
  * Created by andrew on 12/07/14.
  */
 public class RimicCallbacks implements IRimicObserver {
-    private final Set<IRimicObserver> mCallbacks;
+    /** Default minimum time between talk state deliveries, about one frame, in milliseconds. */
+    public static final long DEFAULT_TALK_STATE_INTERVAL = 16;
+
+    private final Map<IRimicObserver, Subscription> mSubscriptions =
+            new ConcurrentHashMap<IRimicObserver, Subscription>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mMainHandler.post(command);
+        }
+    };
+    /** The executor of observers registered without one. */
+    private volatile Executor mExecutor = mMainExecutor;
+
+    /**
+     * Sets the executor of observers registered without one. Events are serialised per observer,
+     * so a thread pool may be given without observers seeing them out of order.
+     * @param executor The executor to deliver events on, or null to use the main thread.
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor != null ? executor : mMainExecutor;
+    }
 
-    public RimicCallbacks() {
-        mCallbacks = Collections.newSetFromMap(new ConcurrentHashMap<IRimicObserver, Boolean>());
+    /**
+     * Registers an observer on the default executor, with the default talk state interval.
+     */
+    public Subscription registerObserver(IRimicObserver observer) {
+        return registerObserver(observer, null, DEFAULT_TALK_STATE_INTERVAL);
     }
 
-    public void registerObserver(IRimicObserver observer) {
-        mCallbacks.add(observer);
+    /**
+     * @param observer The observer to deliver events to.
+     * @param executor The executor to call the observer on, or null to use the default.
+     * @param talkStateInterval The minimum time between talk state deliveries, in milliseconds,
+     *                          or 0 to deliver each update.
+     * @return The subscription, for its delivery statistics.
+     */
+    public Subscription registerObserver(IRimicObserver observer, Executor executor,
+                                         long talkStateInterval) {
+        final Subscription subscription = new Subscription(observer, executor, talkStateInterval);
+        final Subscription previous = mSubscriptions.put(observer, subscription);
+        // Events queued for the replaced subscription would otherwise be delivered twice.
+        if (previous != null) previous.mActive = false;
+        return subscription;
     }
 
     public void unregisterObserver(IRimicObserver observer) {
-        mCallbacks.remove(observer);
+        final Subscription subscription = mSubscriptions.remove(observer);
+        if (subscription != null) subscription.mActive = false;
+    }
+
+    /**
+     * @return The observer's subscription, or null if it is not registered.
+     */
+    public Subscription getSubscription(IRimicObserver observer) {
+        return mSubscriptions.get(observer);
+    }
+
+    private void post(Event event) {
+        for (Subscription subscription : mSubscriptions.values()) {
+            subscription.post(event);
+        }
     }
 
     @Override
     public void onConnected() {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onConnected();
-        }
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onConnected();
+            }
+        });
     }
 
     @Override
     public void onConnecting() {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onConnecting();
-        }
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onConnecting();
+            }
+        });
     }
 
     @Override
-    public void onDisconnected(RimicException e) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onDisconnected(e);
+    public void onDisconnected(final RimicException e) {
+        for (Subscription subscription : mSubscriptions.values()) {
+            subscription.dropTalkStates();
         }
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onDisconnected(e);
+            }
+        });
     }
 
     @Override
-    public void onTLSHandshakeFailed(X509Certificate[] chain) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onTLSHandshakeFailed(chain);
-        }
+    public void onTLSHandshakeFailed(final X509Certificate[] chain) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onTLSHandshakeFailed(chain);
+            }
+        });
     }
 
     @Override
-    public void onChannelAdded(IChannel channel) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onChannelAdded(channel);
-        }
+    public void onModelSynchronized(final ModelSnapshot snapshot) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onModelSynchronized(snapshot);
+            }
+        });
     }
 
     @Override
-    public void onChannelStateUpdated(IChannel channel) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onChannelStateUpdated(channel);
-        }
+    public void onChannelAdded(final IChannel channel) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onChannelAdded(channel);
+            }
+        });
     }
 
     @Override
-    public void onChannelRemoved(IChannel channel) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onChannelRemoved(channel);
-        }
+    public void onChannelStateUpdated(final IChannel channel) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onChannelStateUpdated(channel);
+            }
+        });
     }
 
     @Override
-    public void onChannelPermissionsUpdated(IChannel channel) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onChannelPermissionsUpdated(channel);
-        }
+    public void onChannelRemoved(final IChannel channel) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onChannelRemoved(channel);
+            }
+        });
     }
 
     @Override
-    public void onUserConnected(IUser user) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onUserConnected(user);
-        }
+    public void onChannelPermissionsUpdated(final IChannel channel) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onChannelPermissionsUpdated(channel);
+            }
+        });
     }
 
     @Override
-    public void onUserStateUpdated(IUser user) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onUserStateUpdated(user);
-        }
+    public void onUserConnected(final IUser user) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onUserConnected(user);
+            }
+        });
     }
 
     @Override
-    public void onUserTalkStateUpdated(IUser user) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onUserTalkStateUpdated(user);
-        }
+    public void onUserStateUpdated(final IUser user) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onUserStateUpdated(user);
+            }
+        });
     }
 
     @Override
-    public void onUserJoinedChannel(IUser user, IChannel newChannel, IChannel oldChannel) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onUserJoinedChannel(user, newChannel, oldChannel);
+    public void onUserTalkStateUpdated(final IUser user) {
+        for (Subscription subscription : mSubscriptions.values()) {
+            subscription.postTalkState(user);
         }
     }
 
     @Override
-    public void onUserRemoved(IUser user, String reason) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onUserRemoved(user, reason);
-        }
+    public void onUserJoinedChannel(final IUser user, final IChannel newChannel, final IChannel oldChannel) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onUserJoinedChannel(user, newChannel, oldChannel);
+            }
+        });
     }
 
     @Override
-    public void onPermissionDenied(String reason) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onPermissionDenied(reason);
+    public void onUserRemoved(final IUser user, final String reason) {
+        // Talk states still waiting for the user are not worth delivering after its removal.
+        // The user is null if the server removed a session we never knew about.
+        if (user != null) {
+            for (Subscription subscription : mSubscriptions.values()) {
+                subscription.dropTalkState(user.getSession());
+            }
         }
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onUserRemoved(user, reason);
+            }
+        });
     }
 
     @Override
-    public void onMessageLogged(IMessage message) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onMessageLogged(message);
-        }
+    public void onPermissionDenied(final String reason) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onPermissionDenied(reason);
+            }
+        });
     }
 
     @Override
-    public void onVoiceTargetChanged(VoiceTargetMode mode) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onVoiceTargetChanged(mode);
-        }
+    public void onMessageLogged(final IMessage message) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onMessageLogged(message);
+            }
+        });
     }
 
     @Override
-    public void onLogInfo(String message) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onLogInfo(message);
-        }
+    public void onVoiceTargetChanged(final VoiceTargetMode mode) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onVoiceTargetChanged(mode);
+            }
+        });
     }
 
     @Override
-    public void onLogWarning(String message) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onLogWarning(message);
-        }
+    public void onLogInfo(final String message) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onLogInfo(message);
+            }
+        });
+    }
+
+    @Override
+    public void onLogWarning(final String message) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onLogWarning(message);
+            }
+        });
     }
 
     @Override
-    public void onLogError(String message) {
-        for (IRimicObserver observer : mCallbacks) {
-            observer.onLogError(message);
+    public void onLogError(final String message) {
+        post(new Event() {
+            @Override
+            void deliver(IRimicObserver observer) {
+                observer.onLogError(message);
+            }
+        });
+    }
+
+    /**
+     * A call to make on each observer, stamped with the time it was raised.
+     */
+    private abstract static class Event {
+        final long time;
+
+        Event() {
+            this(SystemClock.elapsedRealtime());
+        }
+
+        Event(long time) {
+            this.time = time;
+        }
+
+        abstract void deliver(IRimicObserver observer);
+    }
+
+    /**
+     * An observer's queue of events, and statistics on their delivery.
+     */
+    public final class Subscription {
+        private final IRimicObserver mObserver;
+        private final Executor mOwnExecutor;
+        private final long mTalkStateInterval;
+        private final ConcurrentLinkedQueue<Event> mQueue = new ConcurrentLinkedQueue<Event>();
+        private final AtomicInteger mQueueDepth = new AtomicInteger();
+        /** Whether a drain is submitted to the executor and has not yet finished. */
+        private final AtomicBoolean mDraining = new AtomicBoolean();
+        private volatile boolean mActive = true;
+
+        /** Users with a talk state update waiting, by session. Guarded by this. */
+        private final LinkedHashMap<Integer, IUser> mTalkStates = new LinkedHashMap<Integer, IUser>();
+        /** The time the first waiting talk state update was raised. Guarded by this. */
+        private long mTalkStateTime;
+        /** Whether a talk state flush is scheduled. Guarded by this. */
+        private boolean mTalkStateScheduled;
+        /** Guarded by this. */
+        private long mLastTalkStateFlush;
+
+        /** Guarded by this. */
+        private long mDeliveredCount;
+        /** Guarded by this. */
+        private long mCoalescedCount;
+        /** Guarded by this. */
+        private long mTotalLatency;
+        /** Guarded by this. */
+        private long mMaxLatency;
+
+        private final Runnable mDrainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private final Runnable mTalkStateRunnable = new Runnable() {
+            @Override
+            public void run() {
+                final long time;
+                synchronized (Subscription.this) {
+                    mTalkStateScheduled = false;
+                    mLastTalkStateFlush = SystemClock.elapsedRealtime();
+                    if (mTalkStates.isEmpty()) return;
+                    time = mTalkStateTime;
+                }
+                // Latency is counted from the oldest waiting update, not from the flush.
+                post(new TalkStateEvent(time));
+            }
+        };
+
+        private Subscription(IRimicObserver observer, Executor executor, long talkStateInterval) {
+            mObserver = observer;
+            mOwnExecutor = executor;
+            mTalkStateInterval = talkStateInterval;
+        }
+
+        /**
+         * @return The number of events raised but not yet delivered.
+         */
+        public int getQueueDepth() {
+            return mQueueDepth.get();
+        }
+
+        public synchronized long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        /**
+         * @return The number of talk state updates dropped as a newer one for the user was waiting.
+         */
+        public synchronized long getCoalescedCount() {
+            return mCoalescedCount;
+        }
+
+        /**
+         * @return The mean time from an event being raised to the observer being called, in
+         *         milliseconds.
+         */
+        public synchronized float getMeanLatency() {
+            return mDeliveredCount > 0 ? (float) mTotalLatency / mDeliveredCount : 0;
+        }
+
+        /**
+         * @return The longest time from an event being raised to the observer being called, in
+         *         milliseconds.
+         */
+        public synchronized long getMaxLatency() {
+            return mMaxLatency;
+        }
+
+        private void post(Event event) {
+            if (!mActive) return;
+            mQueue.offer(event);
+            mQueueDepth.incrementAndGet();
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (mDraining.compareAndSet(false, true)) {
+                final Executor executor = mOwnExecutor != null ? mOwnExecutor : mExecutor;
+                executor.execute(mDrainRunnable);
+            }
+        }
+
+        private void postTalkState(IUser user) {
+            if (mTalkStateInterval <= 0) {
+                post(new SingleTalkStateEvent(user));
+                return;
+            }
+            final long delay;
+            synchronized (this) {
+                if (!mActive) return;
+                if (mTalkStates.put(user.getSession(), user) != null) mCoalescedCount++;
+                if (mTalkStates.size() == 1) mTalkStateTime = SystemClock.elapsedRealtime();
+                if (mTalkStateScheduled) return;
+                mTalkStateScheduled = true;
+                final long elapsed = SystemClock.elapsedRealtime() - mLastTalkStateFlush;
+                delay = Math.max(0, mTalkStateInterval - elapsed);
+            }
+            mMainHandler.postDelayed(mTalkStateRunnable, delay);
+        }
+
+        private synchronized void dropTalkState(int session) {
+            mTalkStates.remove(session);
+        }
+
+        private synchronized void dropTalkStates() {
+            mTalkStates.clear();
+        }
+
+        private void drain() {
+            try {
+                Event event;
+                while (mActive && (event = mQueue.poll()) != null) {
+                    mQueueDepth.decrementAndGet();
+                    record(event.time);
+                    event.deliver(mObserver);
+                }
+            } finally {
+                // Also reached if the observer threw, so that later events are still delivered.
+                mDraining.set(false);
+                // An event may have been queued after the last poll, but before the flag was
+                // cleared.
+                if (mActive && !mQueue.isEmpty()) scheduleDrain();
+            }
+        }
+
+        private synchronized void record(long time) {
+            final long latency = SystemClock.elapsedRealtime() - time;
+            mDeliveredCount++;
+            mTotalLatency += latency;
+            if (latency > mMaxLatency) mMaxLatency = latency;
+        }
+
+        /**
+         * Delivers the talk state of each waiting user, in the order they first changed.
+         */
+        private final class TalkStateEvent extends Event {
+            TalkStateEvent(long time) {
+                super(time);
+            }
+
+            @Override
+            void deliver(IRimicObserver observer) {
+                final List<IUser> users;
+                synchronized (Subscription.this) {
+                    users = new ArrayList<IUser>(mTalkStates.values());
+                    mTalkStates.clear();
+                }
+                for (IUser user : users) {
+                    observer.onUserTalkStateUpdated(user);
+                }
+            }
+        }
+    }
+
+    private static final class SingleTalkStateEvent extends Event {
+        private final IUser mUser;
+
+        SingleTalkStateEvent(IUser user) {
+            mUser = user;
+        }
+
+        @Override
+        void deliver(IRimicObserver observer) {
+            observer.onUserTalkStateUpdated(mUser);
         }
     }
 }
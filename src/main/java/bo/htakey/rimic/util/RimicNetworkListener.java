@@ -17,6 +17,8 @@
 
 package bo.htakey.rimic.util;
 
+import java.nio.ByteBuffer;
+
 import bo.htakey.rimic.net.RimicUDPMessageType;
 import bo.htakey.rimic.protobuf.Mumble;
 import bo.htakey.rimic.protocol.RimicTCPMessageListener;
@@ -162,12 +164,12 @@ public class RimicNetworkListener implements RimicTCPMessageListener, RimicUDPMe
     }
 
     @Override
-    public void messageUDPPing(byte[] data) {
+    public void messageUDPPing(ByteBuffer data) {
 
     }
 
     @Override
-    public void messageVoiceData(byte[] data, RimicUDPMessageType messageType) {
+    public void messageVoiceData(ByteBuffer data, RimicUDPMessageType messageType) {
 
     }
 }
@@ -22,6 +22,7 @@ import java.security.cert.X509Certificate;
 import bo.htakey.rimic.model.IChannel;
 import bo.htakey.rimic.model.IMessage;
 import bo.htakey.rimic.model.IUser;
+import bo.htakey.rimic.model.ModelSnapshot;
 
 /**
  * Stub class for Rimic service observation.
@@ -48,6 +49,11 @@ public class RimicObserver implements IRimicObserver {
 
     }
 
+    @Override
+    public void onModelSynchronized(ModelSnapshot snapshot) {
+
+    }
+
     @Override
     public void onChannelAdded(IChannel channel) {
 
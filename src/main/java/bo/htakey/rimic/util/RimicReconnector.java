@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 Andrew Comminos
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bo.htakey.rimic.util;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+import bo.htakey.rimic.Constants;
+
+/**
+ * Decides when to reconnect after the connection was lost.
+ *
+ * Attempts are spaced by an exponential backoff, capped at {@link #MAX_DELAY}, with half of each
+ * delay drawn at random so that clients dropped together do not return together. Attempts are
+ * posted to a handler rather than set as wakeup alarms, so a sleeping device is left asleep; a
+ * network coming back triggers an attempt right away instead.
+ *
+ * Also measures the time from the network being available to the session being restored.
+ * Must only be used from the thread of its handler.
+ */
+public class RimicReconnector {
+    /** Default delay before the first attempt, in milliseconds. */
+    public static final long DEFAULT_BASE_DELAY = 2000;
+    /** Upper bound on the delay between attempts, in milliseconds. */
+    public static final long MAX_DELAY = 5 * 60 * 1000;
+
+    public enum State {
+        /** Not reconnecting. */
+        IDLE,
+        /** Waiting for a network before the next attempt. */
+        WAITING_FOR_NETWORK,
+        /** Waiting for the backoff delay to pass before the next attempt. */
+        BACKOFF,
+        /** An attempt is in progress. */
+        CONNECTING
+    }
+
+    public interface Listener {
+        /**
+         * @return true if there is a network to connect over.
+         */
+        boolean isNetworkAvailable();
+
+        /**
+         * Called when it is time to connect. The outcome must be reported with
+         * {@link #onAttemptFailed()} or {@link #onConnected()}.
+         * @param attempt The number of the attempt, starting at 1.
+         */
+        void onReconnect(int attempt);
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final Random mRandom;
+    private State mState = State.IDLE;
+    private long mBaseDelay = DEFAULT_BASE_DELAY;
+    private int mAttempts;
+    /** When the network was last seen available while reconnecting, or -1. */
+    private long mNetworkAvailableTime = -1;
+    /** Whether a connection was made by this reconnector and is yet to be restored. */
+    private boolean mRestoring;
+    private long mLastRecoveryTime = -1;
+
+    private final Runnable mAttemptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    public RimicReconnector(Handler handler, Listener listener) {
+        this(handler, listener, new Random());
+    }
+
+    public RimicReconnector(Handler handler, Listener listener, Random random) {
+        mHandler = handler;
+        mListener = listener;
+        mRandom = random;
+    }
+
+    /**
+     * Sets the delay before the first attempt, which doubles after each failure.
+     * @param delay The delay in milliseconds. Non-positive values restore the default.
+     */
+    public void setBaseDelay(long delay) {
+        mBaseDelay = delay > 0 ? delay : DEFAULT_BASE_DELAY;
+    }
+
+    /**
+     * Starts reconnecting after the connection was lost. Does nothing if already reconnecting.
+     */
+    public void start() {
+        if (mState != State.IDLE) return;
+        mAttempts = 0;
+        mRestoring = false;
+        mNetworkAvailableTime = -1;
+        if (mListener.isNetworkAvailable()) {
+            mNetworkAvailableTime = now();
+            scheduleAttempt();
+        } else {
+            Log.v(Constants.TAG, "Reconnect: waiting for network");
+            mState = State.WAITING_FOR_NETWORK;
+        }
+    }
+
+    /**
+     * Stops reconnecting. The attempt in progress, if any, is not aborted.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mState = State.IDLE;
+        mRestoring = false;
+        mNetworkAvailableTime = -1;
+    }
+
+    /**
+     * Attempts right away when a network became available while waiting for one, as the failures
+     * counted so far were most likely due to the one that went away. Repeated notifications for
+     * a network that is already up leave the backoff alone.
+     */
+    public void onNetworkAvailable() {
+        if (mState != State.WAITING_FOR_NETWORK) return;
+        mNetworkAvailableTime = now();
+        mAttempts = 0;
+        attempt();
+    }
+
+    /**
+     * Holds off attempts until a network is available again.
+     */
+    public void onNetworkLost() {
+        if (mState != State.BACKOFF) return;
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mNetworkAvailableTime = -1;
+        mState = State.WAITING_FOR_NETWORK;
+    }
+
+    /**
+     * Reports that the attempt in progress failed, scheduling the next one.
+     */
+    public void onAttemptFailed() {
+        if (mState != State.CONNECTING) return;
+        if (mListener.isNetworkAvailable()) {
+            scheduleAttempt();
+        } else {
+            mNetworkAvailableTime = -1;
+            mState = State.WAITING_FOR_NETWORK;
+        }
+    }
+
+    /**
+     * Reports that the attempt in progress synchronized with the server.
+     * @return true if the connection was made by this reconnector, and the session should be
+     *         restored.
+     */
+    public boolean onConnected() {
+        if (mState != State.CONNECTING) return false;
+        mState = State.IDLE;
+        mRestoring = true;
+        return true;
+    }
+
+    /**
+     * Reports that the previous session was restored and audio is running again, ending the
+     * recovery time measurement.
+     */
+    public void onRestored() {
+        if (!mRestoring) return;
+        mRestoring = false;
+        if (mNetworkAvailableTime >= 0) {
+            mLastRecoveryTime = now() - mNetworkAvailableTime;
+            Log.i(Constants.TAG, "Reconnect: restored after " + mLastRecoveryTime + "ms, " +
+                    mAttempts + " attempt(s)");
+        }
+        mNetworkAvailableTime = -1;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return true if a reconnect is pending or in progress.
+     */
+    public boolean isReconnecting() {
+        return mState != State.IDLE;
+    }
+
+    /**
+     * @return The number of attempts made since reconnecting started, or the network returned.
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * @return The time from the network being available to the session being restored on the
+     *         last reconnect, in milliseconds, or -1 if there has been none.
+     */
+    public long getLastRecoveryTime() {
+        return mLastRecoveryTime;
+    }
+
+    private void scheduleAttempt() {
+        final long delay = computeDelay(mBaseDelay, mAttempts, mRandom);
+        Log.v(Constants.TAG, "Reconnect: attempt " + (mAttempts + 1) + " in " + delay + "ms");
+        mState = State.BACKOFF;
+        mHandler.postDelayed(mAttemptRunnable, delay);
+    }
+
+    private void attempt() {
+        mState = State.CONNECTING;
+        mAttempts++;
+        mListener.onReconnect(mAttempts);
+    }
+
+    /**
+     * @return The current time in milliseconds, on a clock that counts deep sleep.
+     */
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Computes the delay before an attempt. The delay doubles with each failure up to
+     * {@link #MAX_DELAY}, and its upper half is drawn at random.
+     * @param baseDelay The delay before the first attempt, in milliseconds.
+     * @param failures The number of attempts that failed so far.
+     * @param random The source of jitter.
+     * @return The delay in milliseconds, between half and all of the capped exponential delay.
+     */
+    public static long computeDelay(long baseDelay, int failures, Random random) {
+        long delay = baseDelay;
+        for (int i = 0; i < failures && delay < MAX_DELAY; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, MAX_DELAY);
+        final long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}